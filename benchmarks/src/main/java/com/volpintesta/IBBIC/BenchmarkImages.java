@@ -0,0 +1,89 @@
+package com.volpintesta.IBBIC;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Synthetic images for the benchmarks, written once in a temporary directory.
+ * They look like cathodoluminescence micrographs: a grain texture with an inhomogeneous brightness, which is
+ * brighter in the center, and a slight color tint. The content is deterministic, so the results are comparable.
+ */
+final class BenchmarkImages
+{
+    static
+    {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private static File directory = null;
+
+    private BenchmarkImages () { }
+
+    /**
+     * @param size The image size, as "<width>x<height>" (e.g. "3000x2000").
+     * @param fileType The file extension (e.g. "png").
+     * @return The path of the image file, created if it does not exist.
+     */
+    static synchronized String getImageFile (String size, String fileType) throws IOException
+    {
+        if (directory == null)
+        {
+            directory = Files.createTempDirectory("IBBIC-benchmarks").toFile();
+            directory.deleteOnExit();
+        }
+        File file = new File(directory, size + "." + fileType);
+        if (!file.exists())
+        {
+            Mat image = createImage(getWidth(size), getHeight(size));
+            boolean written = Imgcodecs.imwrite(file.getAbsolutePath(), image);
+            image.release();
+            if (!written)
+            {
+                throw new IOException("Cannot write the benchmark image " + file);
+            }
+            file.deleteOnExit();
+        }
+        return file.getAbsolutePath();
+    }
+
+    static int getWidth (String size)
+    {
+        return Integer.parseInt(size.substring(0, size.indexOf('x')));
+    }
+
+    static int getHeight (String size)
+    {
+        return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+    }
+
+    private static Mat createImage (int width, int height)
+    {
+        Random random = new Random(width * 31L + height);
+        byte[] pixels = new byte[width * height * 3];
+        double centerX = width / 2.0;
+        double centerY = height / 2.0;
+        double maxDistance2 = centerX * centerX + centerY * centerY;
+        int i = 0;
+        for (int y = 0; y < height; ++y)
+        {
+            for (int x = 0; x < width; ++x)
+            {
+                double distance2 = ((x - centerX) * (x - centerX) + (y - centerY) * (y - centerY)) / maxDistance2;
+                double brightness = (1.0 - 0.7 * distance2) * (0.35 + 0.65 * random.nextDouble());
+                pixels[i++] = (byte) Math.round(brightness * 200);   // B
+                pixels[i++] = (byte) Math.round(brightness * 230);   // G
+                pixels[i++] = (byte) Math.round(brightness * 255);   // R
+            }
+        }
+        Mat image = new Mat(height, width, CvType.CV_8UC3);
+        image.put(0, 0, pixels);
+        return image;
+    }
+}
@@ -0,0 +1,226 @@
+package com.volpintesta.IBBIC;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the ImageConverter stages, from the decoding of the source file to the encoding of the result.
+ * Each stage is measured on its own: the images it needs are computed (and cached) in the setup.
+ * The parameters of each stage are in its own state, so a benchmark runs only for the parameters of its stage
+ * (e.g. the blur filter for each sigma and blur mode, the encoding for each output type), on each image size.
+ * The noise reduction and the HSV recombination are computed inside the correction, so they are measured by
+ * removing their cached images before converting again: noiseReduction measures the noise reduction followed by
+ * the recombination, hsvRecombination measures the recombination alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageConverterBenchmark
+{
+    // Size of the previews, as the preview panes of the window
+    private static final int PREVIEW_WIDTH = 700;
+    private static final int PREVIEW_HEIGHT = 500;
+
+    @State(Scope.Thread)
+    public static class Image
+    {
+        @Param({ "1024x768", "3000x2000", "6000x4000" })
+        public String imageSize;
+
+        ImageConverter converter;
+        ConversionCacheBudget budget;
+        String imageFile;
+        ConversionSession session;          // converts the full size image
+        ConversionSession previewSession;   // converts the image resized as a preview
+        Mat source;
+        Mat vChannel32F;
+
+        @Setup(Level.Trial)
+        public void setUp () throws IOException
+        {
+            converter = new ImageConverter();
+            converter.setCacheMemoryBudget(Long.MAX_VALUE);
+            budget = new ConversionCacheBudget(Long.MAX_VALUE);
+            imageFile = BenchmarkImages.getImageFile(imageSize, "png");
+
+            // decodes the file and selects its caches
+            session = converter.createSession();
+            converter.convertImageToPixels(session, imageFile, ImageConverter.ConversionType.NONE, ConversionParameters.DEFAULT, -1, -1);
+            source = session.getSharedCache().getImage(ImageConverter.RESIZED_IMAGE_CACHE_KEY);
+            previewSession = converter.createSession();
+            converter.convertImageToPixels(previewSession, imageFile, ImageConverter.ConversionType.NONE, ConversionParameters.DEFAULT, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+
+            Mat vChannel8U = converter.ComputeVChannel(source);
+            vChannel32F = new Mat();
+            vChannel8U.convertTo(vChannel32F, CvType.CV_32FC1);
+            vChannel8U.release();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown ()
+        {
+            vChannel32F.release();
+            session.close();
+            previewSession.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SourceFile
+    {
+        @Param({ "png", "jpg", "tif", "bmp", "webp" })
+        public String fileType;
+
+        String file;
+
+        @Setup(Level.Trial)
+        public void setUp (Image image) throws IOException
+        {
+            file = BenchmarkImages.getImageFile(image.imageSize, fileType);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Blur
+    {
+        // Blur filter radius, in fraction of the image size
+        @Param({ "0.05", "0.2", "0.5" })
+        public double sigma;
+
+        @Param({ "EXACT", "PYRAMID", "RECURSIVE" })
+        public ImageConverter.BlurMode blurMode;
+    }
+
+    @State(Scope.Thread)
+    public static class Correction
+    {
+        @Param({ "FLOAT", "REDUCED" })
+        public ImageConverter.PrecisionMode precisionMode;
+
+        ConversionParameters params;
+
+        @Setup(Level.Trial)
+        public void setUp (Image image)
+        {
+            params = new ConversionParameters.Builder()
+                    .setSigma(0.2)
+                    .setNoiseReductionActivated(true)
+                    .setBlurMode(ImageConverter.BlurMode.PYRAMID)
+                    .setPrecisionMode(precisionMode)
+                    .build();
+            image.converter.ConvertMat(image.session, image.source, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, params);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Encoding
+    {
+        @Param({ "png", "jpg", "tif", "bmp", "webp", "ppm" })
+        public String outputType;
+
+        Mat result;
+
+        @Setup(Level.Trial)
+        public void setUp (Image image)
+        {
+            ConversionParameters params = new ConversionParameters.Builder()
+                    .setSigma(0.2)
+                    .setNoiseReductionActivated(true)
+                    .setBlurMode(ImageConverter.BlurMode.PYRAMID)
+                    .build();
+            // cached by the session of the image
+            result = image.converter.ConvertMat(image.session, image.source, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, params);
+        }
+    }
+
+    @Benchmark
+    public Size decode (Image image, SourceFile sourceFile)
+    {
+        ConversionCache cache = new ConversionCache(image.budget, image.converter.getMatPool(), image.converter.getMetrics());
+        image.converter.DecodeSource(sourceFile.file, cache, -1, -1);
+        Size size = cache.getSrcImageSize();
+        cache.clear();
+        return size;
+    }
+
+    // The JPEG files are decoded at a reduced size for the previews
+    @Benchmark
+    public Size decodeForPreview (Image image, SourceFile sourceFile)
+    {
+        ConversionCache cache = new ConversionCache(image.budget, image.converter.getMatPool(), image.converter.getMetrics());
+        image.converter.DecodeSource(sourceFile.file, cache, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        Size size = cache.getSrcImageSize();
+        cache.clear();
+        return size;
+    }
+
+    @Benchmark
+    public Mat computeResizedSource (Image image)
+    {
+        // the decoded source is still cached, so only the resized image is computed again
+        image.previewSession.getSharedCache().clearCachedImage(ImageConverter.RESIZED_IMAGE_CACHE_KEY);
+        return image.converter.ComputeResizedSource(image.imageFile, image.previewSession, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+    }
+
+    @Benchmark
+    public int vChannel (Image image)
+    {
+        Mat vChannel = image.converter.ComputeVChannel(image.source);
+        int rows = vChannel.rows();
+        vChannel.release();
+        return rows;
+    }
+
+    @Benchmark
+    public int blurredVChannel (Image image, Blur blur)
+    {
+        Mat blurred = image.converter.ComputeBlurredVChannel(image.vChannel32F, blur.sigma, blur.blurMode);
+        int rows = blurred.rows();
+        image.converter.getMatPool().release(blurred);
+        return rows;
+    }
+
+    @Benchmark
+    public Mat noiseReduction (Image image, Correction correction)
+    {
+        ConversionCache cache = image.session.getCache(ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION);
+        if (correction.precisionMode == ImageConverter.PrecisionMode.REDUCED)
+        {
+            cache.clearCachedImage("CathodoLuminescenceCorrection_vChannelNew_16U");
+            cache.clearCachedImage("CathodoLuminescenceCorrection_vChannel_CorrectGamma_8U");
+        }
+        else
+        {
+            cache.clearCachedImage("CathodoLuminescenceCorrection_vChannelNew_0_255");
+            cache.clearCachedImage("CathodoLuminescenceCorrection_vChannel_CorrectGamma");
+        }
+        return hsvRecombination(image, correction);
+    }
+
+    @Benchmark
+    public Mat hsvRecombination (Image image, Correction correction)
+    {
+        ConversionCache cache = image.session.getCache(ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION);
+        cache.clearCachedImage("CathodoLuminescenceCorrection_result");
+        return image.converter.ConvertMat(image.session, image.source, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, correction.params);
+    }
+
+    @Benchmark
+    public long encode (Encoding encoding)
+    {
+        MatOfByte encodedImageBytes = new MatOfByte();
+        Imgcodecs.imencode("." + encoding.outputType, encoding.result, encodedImageBytes);
+        long bytes = encodedImageBytes.total();
+        encodedImageBytes.release();
+        return bytes;
+    }
+}
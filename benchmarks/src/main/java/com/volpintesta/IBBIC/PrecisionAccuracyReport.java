@@ -0,0 +1,104 @@
+package com.volpintesta.IBBIC;
+
+import org.opencv.core.Core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how much the result of the reduced precision mode differs from the float one (see
+ * ImageConverter.PrecisionMode), in levels of the 8-bit color channels: for each image and combination of the noise
+ * reduction and of the max contrast, it prints the mean and the maximum difference, and the share of the values
+ * that differ by more than 2 levels; the last line summarizes all the conversions.
+ * It converts the synthetic images of the benchmarks (see BenchmarkImages), or the image files given as arguments
+ * (e.g. real micrographs, whose most saturated colors differ more).
+ */
+public final class PrecisionAccuracyReport
+{
+    static
+    {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private static final String[] IMAGE_SIZES = { "1024x768", "3000x2000" };
+
+    private PrecisionAccuracyReport () { }
+
+    public static void main (String[] args) throws IOException
+    {
+        List<String> imageFiles = new ArrayList<>();
+        if (args.length > 0)
+        {
+            imageFiles.addAll(List.of(args));
+        }
+        else
+        {
+            for (String imageSize : IMAGE_SIZES)
+            {
+                imageFiles.add(BenchmarkImages.getImageFile(imageSize, "png"));
+            }
+        }
+
+        ImageConverter converter = new ImageConverter();
+        long totalDifference = 0;
+        long totalValues = 0;
+        int maxDifference = 0;
+        for (String imageFile : imageFiles)
+        {
+            for (boolean noiseReduction : new boolean[] { true, false })
+            {
+                for (boolean maxContrast : new boolean[] { false, true })
+                {
+                    ImageConverter.ConvertedPixels[] pixels = new ImageConverter.ConvertedPixels[2];
+                    for (ImageConverter.PrecisionMode precisionMode : new ImageConverter.PrecisionMode[] { ImageConverter.PrecisionMode.FLOAT, ImageConverter.PrecisionMode.REDUCED })
+                    {
+                        ConversionParameters params = new ConversionParameters.Builder()
+                                .setSigma(0.2)
+                                .setNoiseReductionActivated(noiseReduction)
+                                .setMaxContrastActivated(maxContrast)
+                                .setPrecisionMode(precisionMode)
+                                .build();
+                        try (ConversionSession session = converter.createSession())
+                        {
+                            pixels[precisionMode.ordinal()] = converter.convertImageToPixels(session, imageFile, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, params, -1, -1);
+                        }
+                        if (pixels[precisionMode.ordinal()] == null)
+                        {
+                            throw new IOException("Cannot read the image " + imageFile);
+                        }
+                    }
+
+                    // the alpha channel is always opaque
+                    byte[] floatPixels = pixels[ImageConverter.PrecisionMode.FLOAT.ordinal()].bgraPixels;
+                    byte[] reducedPixels = pixels[ImageConverter.PrecisionMode.REDUCED.ordinal()].bgraPixels;
+                    long difference = 0;
+                    long values = 0;
+                    long valuesOver2 = 0;
+                    int imageMaxDifference = 0;
+                    for (int i = 0; i < floatPixels.length; ++i)
+                    {
+                        if (i % 4 != 3)
+                        {
+                            int valueDifference = Math.abs((floatPixels[i] & 0xFF) - (reducedPixels[i] & 0xFF));
+                            difference += valueDifference;
+                            imageMaxDifference = Math.max(imageMaxDifference, valueDifference);
+                            if (valueDifference > 2)
+                            {
+                                ++valuesOver2;
+                            }
+                            ++values;
+                        }
+                    }
+                    System.out.printf(Locale.ROOT, "%s noise reduction %s, max contrast %s: mean %.3f levels, max %d levels, %.4f%% of the values over 2 levels%n"
+                            , imageFile, noiseReduction ? "on" : "off", maxContrast ? "on" : "off", (double) difference / values, imageMaxDifference, 100.0 * valuesOver2 / values);
+                    totalDifference += difference;
+                    totalValues += values;
+                    maxDifference = Math.max(maxDifference, imageMaxDifference);
+                }
+            }
+        }
+        System.out.printf(Locale.ROOT, "All the conversions: mean %.3f levels, max %d levels%n", (double) totalDifference / totalValues, maxDifference);
+    }
+}
@@ -0,0 +1,29 @@
+:: SCRIPT TO EXECUTE THE COMMAND LINE CONVERTER IN WINDOWS
+:: All the arguments are passed to the converter (use --help to list them).
+
+@ECHO OFF
+
+:: cache the current directory and move to the batch directory
+:: to ensure the relative paths remain consistent
+set CURRENT_DIRECTORY_BKP=%CD%
+set CURRENT_BATCH_FILE_PATH=%~dp0
+
+:: setup library environment variables
+call "%CURRENT_BATCH_FILE_PATH%set_environment_variables_win64.bat" "%CURRENT_BATCH_FILE_PATH%setup_installation_directories_win64.bat"
+@ECHO OFF
+
+cd %CURRENT_BATCH_FILE_PATH%
+
+:: JavaFX is not needed: the jar and OpenCV are put on the class path, so the module declaration is ignored.
+set ABSOLUTE_JAR_PATH="%CD%\%JAR_NAME%"
+set CLASS_PATH=%ABSOLUTE_JAR_PATH%;%OPENCV_LIB_PATH%
+
+:: Set library path, containing dependency native libraries (.dll files)
+set JAVA_LIBRARY_PATH=%OPENCV_NATIVE_LIBRARY_DIR%
+
+set MAIN_CLASS=com.volpintesta.IBBIC.ConverterCommandLine
+
+:: return to the current directory, so relative input and output paths are resolved from there
+cd %CURRENT_DIRECTORY_BKP%
+
+%JAVA_PATH%\java -cp %CLASS_PATH% -Djava.library.path=%JAVA_LIBRARY_PATH% %MAIN_CLASS% %*
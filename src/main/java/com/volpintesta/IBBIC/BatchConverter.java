@@ -0,0 +1,373 @@
+package com.volpintesta.IBBIC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * Converts and saves a collection of files using several worker threads.
+ * Each file is converted by {@link FileManager#convertAndSaveFile}, which uses a dedicated conversion session,
+ * so the conversion caches are never shared between threads and the saved images are the same of a sequential conversion.
+ * Each image is written in a temporary file and then moved over the destination file (see
+ * {@link FileManager#convertAndReplaceFile}), so an interrupted conversion never leaves a partially written image,
+ * and the conversions can be recorded in a {@link BatchManifest} to resume the interrupted ones.
+ * Identical source files (e.g. the same frame exported twice, or duplicated directories) are converted only once:
+ * the output of the first converted one is copied or linked for the other ones (see DuplicatesHandling).
+ */
+public class BatchConverter
+{
+    public static final String WORKERS_COUNT_PROPERTY = "ibbic.conversion.workers";
+
+    public interface ConversionListener
+    {
+        void onFileConverted (File srcFile, File dstFile, long conversionMillisecs);
+    }
+
+    // How the source files identical to a converted one are saved
+    public enum DuplicatesHandling
+    {
+        CONVERT     // converted as the other files
+        , COPY      // as a copy of the output of the converted file
+        , LINK      // as a hard link to the output of the converted file, or a copy if links are not supported
+    }
+
+    /**
+     * @return The workers count set with the "ibbic.conversion.workers" system property,
+     * or the number of available processors if the property is missing or not valid.
+     */
+    public static int getDefaultWorkersCount()
+    {
+        int workersCount = Runtime.getRuntime().availableProcessors();
+        String property = System.getProperty(WORKERS_COUNT_PROPERTY);
+        if (property != null)
+        {
+            try
+            {
+                workersCount = Integer.parseInt(property.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                // keep the default value
+            }
+        }
+        return Math.max(1, workersCount);
+    }
+
+    private final FileManager fileManager;
+    private final ConversionMetrics metrics;
+    private final int workersCount;
+    private DuplicatesHandling duplicatesHandling = DuplicatesHandling.COPY;
+
+    public BatchConverter (ImageConverter imageConverter, int workersCount)
+    {
+        if (workersCount < 1) throw new IllegalArgumentException("workersCount must be greater than 0");
+        this.fileManager = new FileManager(imageConverter);
+        this.metrics = imageConverter.getMetrics();
+        this.workersCount = workersCount;
+    }
+    public BatchConverter (ImageConverter imageConverter)
+    {
+        this(imageConverter, getDefaultWorkersCount());
+    }
+
+    public int getWorkersCount() { return workersCount; }
+
+    public DuplicatesHandling getDuplicatesHandling() { return duplicatesHandling; }
+    public void setDuplicatesHandling (DuplicatesHandling newVal)
+    {
+        if (newVal == null) throw new IllegalArgumentException("duplicatesHandling cannot be null");
+        duplicatesHandling = newVal;
+    }
+
+    /**
+     * Converts each source file of the map and saves it in the corresponding destination file, replacing any existing
+     * destination file. The source files contained in the skipped files collection are not converted.
+     * @param filePairs Key = source file; Value = destination file.
+     * @return The list of the source files whose conversion or save operation has failed, in the iteration order of filePairs.
+     */
+    public List<File> convertAndSaveFiles (Map<File, File> filePairs, Collection<File> skippedFiles, ImageConverter.ConversionType conversionType, ConversionParameters params, ConversionListener listener)
+    {
+        return convertAndSaveFiles(filePairs, skippedFiles, conversionType, params, listener, null);
+    }
+
+    /**
+     * As convertAndSaveFiles, but each conversion (successful or failed) is also recorded in the manifest, if not null.
+     */
+    public List<File> convertAndSaveFiles (Map<File, File> filePairs, Collection<File> skippedFiles, ImageConverter.ConversionType conversionType, ConversionParameters params, ConversionListener listener, BatchManifest manifest)
+    {
+        // Only the files with the same size and output type can be identical. Key = source file; Value = its size and output type
+        LinkedHashMap<File, String> candidateKeys = new LinkedHashMap<>();
+        HashMap<String, Integer> candidateCounts = new HashMap<>();
+        for (Map.Entry<File, File> filePair : filePairs.entrySet())
+        {
+            File srcFile = filePair.getKey();
+            if (!skippedFiles.contains(srcFile))
+            {
+                String outputType = FileManager.getFileType(filePair.getValue()).toLowerCase(Locale.ROOT);
+                String candidateKey = srcFile.length() + "." + outputType;
+                candidateKeys.put(srcFile, candidateKey);
+                candidateCounts.merge(candidateKey, 1, Integer::sum);
+            }
+        }
+
+        AtomicInteger workersNumber = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(workersCount, Math.max(1, candidateKeys.size())), runnable ->
+        {
+            Thread thread = new Thread(runnable, "IBBIC-conversion-worker-" + workersNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Key = size, output type and checksum of the source files; Value = the first files with that key, which are all different
+        ConcurrentHashMap<String, List<FirstIdenticalFile>> firstIdenticalFiles = new ConcurrentHashMap<>();
+        LinkedHashMap<File, Future<Boolean>> results = new LinkedHashMap<>();
+        try
+        {
+            // The files are fingerprinted by the workers, so the conversions start at once
+            for (Map.Entry<File, String> candidateKey : candidateKeys.entrySet())
+            {
+                File srcFile = candidateKey.getKey();
+                File dstFile = filePairs.get(srcFile);
+                boolean canHaveIdenticalFiles = duplicatesHandling != DuplicatesHandling.CONVERT && candidateCounts.get(candidateKey.getValue()) > 1;
+                results.put(srcFile, executor.submit(() -> canHaveIdenticalFiles
+                        ? convertOrSaveIdenticalFile(srcFile, dstFile, candidateKey.getValue(), firstIdenticalFiles, conversionType, params, listener, manifest)
+                        : convertAndSaveFile(srcFile, dstFile, conversionType, params, listener, manifest)));
+            }
+
+            ArrayList<File> errorFilesList = new ArrayList<>();
+            for (File srcFile : filePairs.keySet())
+            {
+                Future<Boolean> result = results.get(srcFile);
+                if (result != null && !Boolean.TRUE.equals(waitForResult(result)))
+                {
+                    errorFilesList.add(srcFile);
+                }
+            }
+            return errorFilesList;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    // The first converted file of a content, whose output is saved as the output of the identical files
+    private static final class FirstIdenticalFile
+    {
+        final File srcFile;
+        final File dstFile;
+        final CompletableFuture<Boolean> converted = new CompletableFuture<>();
+
+        FirstIdenticalFile (File srcFile, File dstFile)
+        {
+            this.srcFile = srcFile;
+            this.dstFile = dstFile;
+        }
+    }
+
+    /**
+     * Converts the source file, or saves the output of an identical file converted before it. The files are
+     * fingerprinted by the workers with a CRC32C checksum, and the files with the same checksum are compared byte by
+     * byte, so different files are never saved as identical even if their checksums collide.
+     * A worker waits only for the conversion of an identical file. If that conversion fails, the file is converted on
+     * its own (e.g. the failure could be caused by the destination file).
+     * @param candidateKey The size and output type of the source file.
+     * @return true if the file has been saved.
+     */
+    private boolean convertOrSaveIdenticalFile (File srcFile, File dstFile, String candidateKey, ConcurrentHashMap<String, List<FirstIdenticalFile>> firstIdenticalFiles, ImageConverter.ConversionType conversionType, ConversionParameters params, ConversionListener listener, BatchManifest manifest)
+    {
+        long checksum = computeChecksum(srcFile);
+        if (checksum < 0)
+        {
+            return convertAndSaveFile(srcFile, dstFile, conversionType, params, listener, manifest); // not readable, its conversion will fail
+        }
+
+        List<FirstIdenticalFile> sameChecksumFiles = firstIdenticalFiles.computeIfAbsent(candidateKey + "." + checksum, k -> new ArrayList<>());
+        FirstIdenticalFile identicalFile = null;
+        FirstIdenticalFile firstFile = null;
+        synchronized (sameChecksumFiles)
+        {
+            for (FirstIdenticalFile sameChecksumFile : sameChecksumFiles)
+            {
+                if (isSameContent(srcFile, sameChecksumFile.srcFile))
+                {
+                    identicalFile = sameChecksumFile;
+                    break;
+                }
+            }
+            if (identicalFile == null)
+            {
+                firstFile = new FirstIdenticalFile(srcFile, dstFile);
+                sameChecksumFiles.add(firstFile);
+            }
+        }
+
+        if (firstFile != null)
+        {
+            boolean converted = false;
+            try
+            {
+                converted = convertAndSaveFile(srcFile, dstFile, conversionType, params, listener, manifest);
+            }
+            finally
+            {
+                firstFile.converted.complete(converted); // the identical files never wait forever
+            }
+            return converted;
+        }
+        // The first file is being converted by another worker, which always completes it
+        return identicalFile.converted.join()
+                ? saveIdenticalFile(srcFile, dstFile, identicalFile.dstFile, conversionType, params, listener, manifest)
+                : convertAndSaveFile(srcFile, dstFile, conversionType, params, listener, manifest);
+    }
+
+    // @return The CRC32C checksum of the file content, or -1 if the file cannot be read
+    private static long computeChecksum (File file)
+    {
+        CRC32C checksum = new CRC32C();
+        byte[] buffer = new byte[1024 * 1024];
+        try (InputStream inputStream = Files.newInputStream(file.toPath()))
+        {
+            int readBytes;
+            while ((readBytes = inputStream.read(buffer)) >= 0)
+            {
+                checksum.update(buffer, 0, readBytes);
+            }
+            return checksum.getValue();
+        }
+        catch (IOException e)
+        {
+            return -1;
+        }
+    }
+
+    private static boolean isSameContent (File file, File otherFile)
+    {
+        try
+        {
+            return Files.mismatch(file.toPath(), otherFile.toPath()) == -1L;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    private boolean convertAndSaveFile (File srcFile, File dstFile, ImageConverter.ConversionType conversionType, ConversionParameters params, ConversionListener listener, BatchManifest manifest)
+    {
+        long startConversionMillisecs = System.currentTimeMillis();
+        boolean converted;
+        try
+        {
+            fileManager.convertAndReplaceFile(srcFile, dstFile, conversionType, params);
+            converted = true;
+        }
+        catch (IOException e)
+        {
+            converted = false;
+        }
+        long endConversionMillisecs = System.currentTimeMillis();
+        onFileSaved(srcFile, dstFile, converted, endConversionMillisecs - startConversionMillisecs, conversionType, params, listener, manifest);
+        return converted;
+    }
+
+    /**
+     * Saves the output of an identical source file as the output of the source file, as a copy or a hard link.
+     * As for the conversions, it is written with a temporary name and then moved over the destination file.
+     */
+    private boolean saveIdenticalFile (File srcFile, File dstFile, File identicalDstFile, ImageConverter.ConversionType conversionType, ConversionParameters params, ConversionListener listener, BatchManifest manifest)
+    {
+        long startSaveMillisecs = System.currentTimeMillis();
+        File partialFile = new File(dstFile.getAbsoluteFile().getParentFile(), FileManager.PARTIAL_FILE_PREFIX + dstFile.getName());
+        boolean saved;
+        try
+        {
+            Files.deleteIfExists(partialFile.toPath());
+            boolean linked = false;
+            if (duplicatesHandling == DuplicatesHandling.LINK)
+            {
+                try
+                {
+                    Files.createLink(partialFile.toPath(), identicalDstFile.toPath());
+                    linked = true;
+                }
+                catch (IOException | UnsupportedOperationException e)
+                {
+                    // e.g. the files are on different file systems, or the file system does not support links
+                }
+            }
+            if (!linked)
+            {
+                Files.copy(identicalDstFile.toPath(), partialFile.toPath());
+            }
+            FileManager.moveReplacing(partialFile.toPath(), dstFile.toPath());
+            metrics.addDuplicateFileSaved();
+            saved = true;
+        }
+        catch (IOException e)
+        {
+            try
+            {
+                Files.deleteIfExists(partialFile.toPath());
+            }
+            catch (IOException ignored)
+            {
+                // it is replaced by the next save of the file
+            }
+            saved = false;
+        }
+        long endSaveMillisecs = System.currentTimeMillis();
+        onFileSaved(srcFile, dstFile, saved, endSaveMillisecs - startSaveMillisecs, conversionType, params, listener, manifest);
+        return saved;
+    }
+
+    private static void onFileSaved (File srcFile, File dstFile, boolean saved, long millisecs, ImageConverter.ConversionType conversionType, ConversionParameters params, ConversionListener listener, BatchManifest manifest)
+    {
+        if (manifest != null)
+        {
+            try
+            {
+                if (saved)
+                    manifest.recordConverted(srcFile, dstFile, conversionType, params, millisecs);
+                else
+                    manifest.recordFailed(srcFile, dstFile, conversionType, params, millisecs);
+            }
+            catch (IOException e)
+            {
+                // the file is not recorded, so it is converted again when the batch is resumed
+            }
+        }
+        if (saved && listener != null)
+        {
+            listener.onFileConverted(srcFile, dstFile, millisecs);
+        }
+    }
+
+    // @return The result, or null if the task has been interrupted
+    private static <T> T waitForResult (Future<T> result)
+    {
+        try
+        {
+            return result.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            result.cancel(true);
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            // IOExceptions are handled by the workers, so here there can be only unchecked exceptions
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            return null;
+        }
+    }
+}
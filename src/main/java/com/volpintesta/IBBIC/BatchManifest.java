@@ -0,0 +1,283 @@
+package com.volpintesta.IBBIC;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Record of the conversions saved in an output directory, so an interrupted batch conversion (crashed, cancelled or
+ * terminated) can be resumed: a new conversion of the same source files skips the ones whose output is still valid.
+ * For each source file, the manifest records its size and last modification time, the conversion type and parameters,
+ * the output file (with its size and last modification time), the status and the conversion time.
+ * An output is valid if the conversion succeeded, the source file has not changed, the parameters are the same and
+ * the output file has not been changed or removed since then.
+ * The manifest is a tab separated text file in the output directory. Each conversion appends a line, so a terminated
+ * program loses at most the line being written (which is ignored); the last line of each source file is the valid one.
+ * When the manifest is opened and closed, it is compacted to one line for each source file, writing a temporary file
+ * that is then moved over the previous manifest, so the manifest itself is never partially written.
+ * The methods are thread-safe, so the workers of a BatchConverter can record their conversions.
+ */
+public class BatchManifest implements Closeable
+{
+    public static final String FILE_NAME = ".ibbic-manifest.tsv";
+    private static final String HEADER = "# IBBIC batch manifest 1";
+    private static final String COLUMNS = "# status\tsource\tsource size\tsource modified\tconversion type\tparameters\toutput\toutput size\toutput modified\tconversion ms\trecorded";
+
+    public enum Status
+    {
+        CONVERTED
+        , FAILED
+    }
+
+    private static final class Entry
+    {
+        final Status status;
+        final String srcPath;
+        final long srcSize;
+        final long srcLastModified;
+        final String conversionType;
+        final String params;
+        final String dstPath;
+        final long dstSize;
+        final long dstLastModified;
+        final long conversionMillisecs;
+        final long recordedMillisecs;
+
+        Entry (Status status, String srcPath, long srcSize, long srcLastModified, String conversionType, String params, String dstPath, long dstSize, long dstLastModified, long conversionMillisecs, long recordedMillisecs)
+        {
+            this.status = status;
+            this.srcPath = srcPath;
+            this.srcSize = srcSize;
+            this.srcLastModified = srcLastModified;
+            this.conversionType = conversionType;
+            this.params = params;
+            this.dstPath = dstPath;
+            this.dstSize = dstSize;
+            this.dstLastModified = dstLastModified;
+            this.conversionMillisecs = conversionMillisecs;
+            this.recordedMillisecs = recordedMillisecs;
+        }
+
+        String toLine ()
+        {
+            return status + "\t" + escape(srcPath) + "\t" + srcSize + "\t" + srcLastModified + "\t" + conversionType + "\t" + escape(params)
+                    + "\t" + escape(dstPath) + "\t" + dstSize + "\t" + dstLastModified + "\t" + conversionMillisecs + "\t" + recordedMillisecs;
+        }
+
+        // null if the line is not valid (e.g. the last line of a terminated program)
+        static Entry fromLine (String line)
+        {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 11)
+            {
+                return null;
+            }
+            try
+            {
+                return new Entry(Status.valueOf(fields[0]), unescape(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4], unescape(fields[5])
+                        , unescape(fields[6]), Long.parseLong(fields[7]), Long.parseLong(fields[8]), Long.parseLong(fields[9]), Long.parseLong(fields[10]));
+            }
+            catch (IllegalArgumentException e)
+            {
+                return null;
+            }
+        }
+    }
+
+    private final File file;
+    // Guarded by this. Key = absolute path of the source file
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private Writer writer = null; // opened by the first record
+    private boolean closed = false;
+
+    /**
+     * Opens the manifest of the output directory, creating it if it does not exist.
+     * @throws IOException If the manifest cannot be read or written.
+     */
+    public static BatchManifest open (File outputDirectory) throws IOException
+    {
+        return new BatchManifest(new File(outputDirectory, FILE_NAME));
+    }
+
+    private BatchManifest (File file) throws IOException
+    {
+        this.file = file;
+        if (file.exists())
+        {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    Entry entry = line.startsWith("#") ? null : Entry.fromLine(line);
+                    if (entry != null)
+                    {
+                        entries.remove(entry.srcPath); // the entries are kept in the order of their last conversion
+                        entries.put(entry.srcPath, entry);
+                    }
+                }
+            }
+        }
+        compact();
+    }
+
+    public final File getFile() { return file; }
+
+    /**
+     * @return The output file of the last conversion of the source file, if it is still valid for the given conversion
+     * type and parameters; null otherwise (e.g. never converted, failed, changed or removed since then).
+     */
+    public final synchronized File getValidOutput (File srcFile, ImageConverter.ConversionType conversionType, ConversionParameters params)
+    {
+        Entry entry = getUnmodifiedOutputEntry(srcFile, conversionType, params);
+        if (entry == null)
+        {
+            return null;
+        }
+        BasicFileAttributes srcAttributes = readAttributes(srcFile.getAbsoluteFile().toPath());
+        if (srcAttributes == null || srcAttributes.size() != entry.srcSize || srcAttributes.lastModifiedTime().toMillis() != entry.srcLastModified)
+        {
+            return null;
+        }
+        return new File(entry.dstPath);
+    }
+
+    /**
+     * @return The output file of the last conversion of the source file with the given conversion type and parameters,
+     * if it has not been changed or removed since then, even if the source file has changed; null otherwise.
+     * Such a file is stale, not a conflict: it can be replaced by the new conversion of the source file.
+     */
+    public final synchronized File getReplaceableOutput (File srcFile, ImageConverter.ConversionType conversionType, ConversionParameters params)
+    {
+        Entry entry = getUnmodifiedOutputEntry(srcFile, conversionType, params);
+        return (entry != null) ? new File(entry.dstPath) : null;
+    }
+
+    private Entry getUnmodifiedOutputEntry (File srcFile, ImageConverter.ConversionType conversionType, ConversionParameters params)
+    {
+        Entry entry = entries.get(srcFile.getAbsolutePath());
+        if (entry == null || entry.status != Status.CONVERTED
+                || !entry.conversionType.equals(conversionType.name()) || !entry.params.equals(params.toString()))
+        {
+            return null;
+        }
+        BasicFileAttributes dstAttributes = readAttributes(Paths.get(entry.dstPath));
+        if (dstAttributes == null || dstAttributes.size() != entry.dstSize || dstAttributes.lastModifiedTime().toMillis() != entry.dstLastModified)
+        {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Records the successful conversion of the source file, which has been saved in the destination file.
+     * The destination file must not be modified by other programs after being saved, or it is not valid anymore.
+     */
+    public final void recordConverted (File srcFile, File dstFile, ImageConverter.ConversionType conversionType, ConversionParameters params, long conversionMillisecs) throws IOException
+    {
+        record(Status.CONVERTED, srcFile, dstFile, conversionType, params, conversionMillisecs);
+    }
+
+    public final void recordFailed (File srcFile, File dstFile, ImageConverter.ConversionType conversionType, ConversionParameters params, long conversionMillisecs) throws IOException
+    {
+        record(Status.FAILED, srcFile, dstFile, conversionType, params, conversionMillisecs);
+    }
+
+    private synchronized void record (Status status, File srcFile, File dstFile, ImageConverter.ConversionType conversionType, ConversionParameters params, long conversionMillisecs) throws IOException
+    {
+        if (closed) throw new IOException("The manifest is closed");
+
+        // the attributes are read now, so a later change of the files is detected
+        BasicFileAttributes srcAttributes = readAttributes(srcFile.getAbsoluteFile().toPath());
+        BasicFileAttributes dstAttributes = (status == Status.CONVERTED) ? readAttributes(dstFile.getAbsoluteFile().toPath()) : null;
+        Entry entry = new Entry(status, srcFile.getAbsolutePath()
+                , (srcAttributes != null) ? srcAttributes.size() : -1, (srcAttributes != null) ? srcAttributes.lastModifiedTime().toMillis() : -1
+                , conversionType.name(), params.toString(), dstFile.getAbsolutePath()
+                , (dstAttributes != null) ? dstAttributes.size() : -1, (dstAttributes != null) ? dstAttributes.lastModifiedTime().toMillis() : -1
+                , conversionMillisecs, System.currentTimeMillis());
+        entries.remove(entry.srcPath);
+        entries.put(entry.srcPath, entry);
+
+        // a whole line for each write, so a terminated program can only leave an incomplete last line
+        if (writer == null)
+        {
+            writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+        }
+        writer.write(entry.toLine() + "\n");
+        writer.flush();
+    }
+
+    /**
+     * Compacts the manifest and closes it. The manifest cannot be used anymore.
+     */
+    @Override
+    public synchronized void close () throws IOException
+    {
+        if (!closed)
+        {
+            closed = true;
+            if (writer != null)
+            {
+                writer.close();
+                writer = null;
+                compact();
+            }
+        }
+    }
+
+    // Writes one line for each source file in a temporary file, which then replaces the manifest
+    private void compact () throws IOException
+    {
+        File tmpFile = new File(file.getAbsoluteFile().getParentFile(), FileManager.PARTIAL_FILE_PREFIX + FILE_NAME);
+        try (Writer tmpWriter = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8))
+        {
+            tmpWriter.write(HEADER + "\n");
+            tmpWriter.write(COLUMNS + "\n");
+            for (Entry entry : entries.values())
+            {
+                tmpWriter.write(entry.toLine() + "\n");
+            }
+        }
+        FileManager.moveReplacing(tmpFile.toPath(), file.toPath());
+    }
+
+    // null if the file does not exist
+    private static BasicFileAttributes readAttributes (Path path)
+    {
+        try
+        {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    // The paths and the parameters cannot contain the separators of the fields and of the lines
+    private static String escape (String value)
+    {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape (String value)
+    {
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); ++i)
+        {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length())
+            {
+                char next = value.charAt(++i);
+                unescaped.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            }
+            else
+            {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -3,72 +3,253 @@ package com.volpintesta.IBBIC;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfByte;
+import org.opencv.core.Size;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.BiPredicate;
 
+// Not thread-safe: a cache is owned by a ConversionSession and accessed only while holding the session lock.
 class ConversionCache {
 
+    /**
+     * How expensive it is to compute again a cached image. When the memory budget is exceeded, the cached images
+     * are released in least recently used order, but an image that is expensive to recompute is kept as if it had
+     * been used some conversions later than it really was.
+     */
+    enum RecomputeCost {
+        LOW(0), MEDIUM(2), HIGH(8);
+
+        private final int extraConversions;
+
+        RecomputeCost(int extraConversions) {
+            this.extraConversions = extraConversions;
+        }
+    }
+
+    // Accounting information of a cached image (or encoded image)
+    private static final class EntryInfo {
+        final long bytes;
+        final RecomputeCost recomputeCost;
+        long lastUsedConversion;
+
+        EntryInfo(long bytes, RecomputeCost recomputeCost, long lastUsedConversion) {
+            this.bytes = bytes;
+            this.recomputeCost = recomputeCost;
+            this.lastUsedConversion = lastUsedConversion;
+        }
+
+        long getEvictionPriority() {
+            return lastUsedConversion + recomputeCost.extraConversions;
+        }
+    }
+
+    /**
+     * A cached image. An image that depends on some conversion parameters is cached with the parameters it has been
+     * computed with, and with the predicate that tells if it is the same image computed with other parameters
+     * (e.g. ConversionParameters::isSameBlurredFilter): several variants of the same image can be cached at the same
+     * time, so going back to recently used parameters does not compute the image again.
+     */
+    private static final class ImageEntry {
+        final Mat image;
+        final ConversionParameters params; // null if the image does not depend on the parameters
+        final BiPredicate<ConversionParameters, ConversionParameters> isSameImage;
+        final EntryInfo info;
+
+        ImageEntry(Mat image, ConversionParameters params, BiPredicate<ConversionParameters, ConversionParameters> isSameImage, EntryInfo info) {
+            this.image = image;
+            this.params = params;
+            this.isSameImage = isSameImage;
+            this.info = info;
+        }
+
+        boolean matches(ConversionParameters requestedParams) {
+            return params == null || isSameImage.test(params, requestedParams);
+        }
+    }
+
+    // Maximum number of variants of an image (computed with different parameters) cached at the same time
+    public static final int MAX_IMAGE_VARIANTS = 4;
+
+    private final ConversionCacheBudget budget;
+    private final MatPool matPool; // the released images go back to the pool
+    private final ConversionMetrics metrics; // counts the lookups of the images
+    private long currentConversion;
+    private long lastComputingConversion = -1; // the last conversion that cached an image (-1 if none)
+
     private String srcFilename;
-    private final Map<ImageConverter.ConversionParameter, String> params;
-    private final Map<String, Mat> imagesCache;
+    private Size srcImageSize;
+    private int srcImageDecodeScale; // the source image has been decoded at 1/scale of its size (0 if not decoded)
+    private Size resizedImageSize;
+    // The variants of each cached image
+    private final Map<String, List<ImageEntry>> imagesCache;
     private final Map<String, Core.MinMaxLocResult> mimMaxLocResultCache;
 
     private final Map<String, MatOfByte> encodedImagesCache;
-
-    public ConversionCache() {
+    private final Map<String, EntryInfo> encodedImagesInfo;
+    // The parameters of the conversion that computed the cached encoded images (null if none)
+    private ConversionParameters encodedImagesParams;
+
+    public ConversionCache(ConversionCacheBudget budget, MatPool matPool, ConversionMetrics metrics) {
+        this.budget = budget;
+        this.matPool = matPool;
+        this.metrics = metrics;
+        currentConversion = 0;
         srcFilename = "";
-        params = new HashMap<>();
+        srcImageSize = null;
+        srcImageDecodeScale = 0;
+        resizedImageSize = null;
         imagesCache = new HashMap<>();
         encodedImagesCache = new HashMap<>();
+        encodedImagesInfo = new HashMap<>();
         mimMaxLocResultCache = new HashMap<>();
     }
 
+    // The cached images used from now on are marked as used by the given conversion
+    public final void setCurrentConversion(long conversion) {
+        currentConversion = conversion;
+    }
+
+    // Only the computed images are cached, so a conversion that cached no image has found all its images in the caches
+    public final boolean hasCachedImages(long conversion) {
+        return lastComputingConversion == conversion;
+    }
+
     public final boolean isSameFile(String srcFilename) {
         return (this.srcFilename == null && srcFilename == null)
                 || (this.srcFilename != null && this.srcFilename.equals(srcFilename));
     }
 
-    public final boolean containsParameter(ImageConverter.ConversionParameter paramKey) {
-        return params.containsKey(paramKey);
+    // The sizes of the source and resized images are kept even if the images are released,
+    // so the resized image can be validated and computed again without changing its size
+    public final Size getSrcImageSize() {
+        return srcImageSize;
     }
 
-    ;
+    public final void setSrcImageSize(Size srcImageSize) {
+        this.srcImageSize = srcImageSize;
+    }
+
+    public final int getSrcImageDecodeScale() {
+        return srcImageDecodeScale;
+    }
 
-    public final String getParameter(ImageConverter.ConversionParameter paramKey) {
-        return params.get(paramKey);
+    public final void setSrcImageDecodeScale(int srcImageDecodeScale) {
+        this.srcImageDecodeScale = srcImageDecodeScale;
     }
 
-    public final boolean areSameParameters(Map<ImageConverter.ConversionParameter, String> params) {
-        return this.params == params || this.params.equals(params);
+    public final Size getResizedImageSize() {
+        return resizedImageSize;
     }
 
-    public final void setParameter(ImageConverter.ConversionParameter paramKey, String paramValue) {
-        params.put(paramKey, paramValue);
+    public final void setResizedImageSize(Size resizedImageSize) {
+        this.resizedImageSize = resizedImageSize;
     }
 
+    // Returns the variant of the image that matches the parameters, or null
+    private ImageEntry findImage(String key, ConversionParameters params) {
+        List<ImageEntry> variants = imagesCache.get(key);
+        if (variants != null) {
+            for (int i = 0; i < variants.size(); ++i) {
+                if (variants.get(i).matches(params)) {
+                    return variants.get(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    // For the images that do not depend on the conversion parameters
     public final boolean containsImage(String key) {
-        return imagesCache.containsKey(key);
+        return containsImage(key, null);
+    }
+
+    // Each call is counted as a cache lookup (a hit or a miss) by the metrics
+    public final boolean containsImage(String key, ConversionParameters params) {
+        boolean found = findImage(key, params) != null;
+        metrics.addCacheLookup(found);
+        return found;
     }
 
     ;
 
+    // For the images that do not depend on the conversion parameters
     public final Mat getImage(String key) {
-        return imagesCache.get(key);
+        return getImage(key, null);
+    }
+
+    public final Mat getImage(String key, ConversionParameters params) {
+        ImageEntry entry = findImage(key, params);
+        if (entry == null) {
+            return null;
+        }
+        entry.info.lastUsedConversion = currentConversion;
+        return entry.image;
     }
 
     ;
 
+    // For the images that do not depend on the conversion parameters
     public final void cacheImage(String key, Mat image) {
+        cacheImage(key, image, RecomputeCost.MEDIUM);
+    }
+
+    // For the images that do not depend on the conversion parameters
+    public final void cacheImage(String key, Mat image, RecomputeCost recomputeCost) {
         clearCachedImage(key);
-        imagesCache.put(key, image);
+        addImage(key, new ImageEntry(image, null, null, new EntryInfo(getImageBytes(image), recomputeCost, currentConversion)));
     }
 
-    public final void clearCachedImage(String key) {
-        if (imagesCache.containsKey(key)) {
-            imagesCache.get(key).release();
+    /**
+     * Caches a variant of an image, computed with the given parameters. It replaces the variant computed with
+     * the same parameters, if any. When there are too many variants, the least recently used one is released.
+     * @param isSameImage Tells if the image computed with the first parameters is the same computed with the second ones.
+     */
+    public final void cacheImage(String key, Mat image, RecomputeCost recomputeCost, ConversionParameters params, BiPredicate<ConversionParameters, ConversionParameters> isSameImage) {
+        ImageEntry sameEntry = findImage(key, params);
+        if (sameEntry != null) {
+            removeImage(key, sameEntry);
+        }
+        List<ImageEntry> variants = imagesCache.get(key);
+        if (variants != null && variants.size() >= MAX_IMAGE_VARIANTS) {
+            ImageEntry leastRecentlyUsedEntry = variants.get(0);
+            for (ImageEntry entry : variants) {
+                if (entry.info.lastUsedConversion < leastRecentlyUsedEntry.info.lastUsedConversion) {
+                    leastRecentlyUsedEntry = entry;
+                }
+            }
+            removeImage(key, leastRecentlyUsedEntry);
+        }
+        addImage(key, new ImageEntry(image, params, isSameImage, new EntryInfo(getImageBytes(image), recomputeCost, currentConversion)));
+    }
+
+    private void addImage(String key, ImageEntry entry) {
+        lastComputingConversion = currentConversion;
+        imagesCache.computeIfAbsent(key, k -> new ArrayList<>()).add(entry);
+        budget.allocate(entry.info.bytes);
+    }
+
+    private void removeImage(String key, ImageEntry entry) {
+        List<ImageEntry> variants = imagesCache.get(key);
+        variants.remove(entry);
+        if (variants.isEmpty()) {
             imagesCache.remove(key);
         }
+        matPool.release(entry.image);
+        budget.release(entry.info.bytes);
+    }
+
+    // Releases all the variants of the image
+    public final void clearCachedImage(String key) {
+        List<ImageEntry> variants = imagesCache.remove(key);
+        if (variants != null) {
+            for (ImageEntry entry : variants) {
+                matPool.release(entry.image);
+                budget.release(entry.info.bytes);
+            }
+        }
     }
 
     public final boolean containsMinMaxLocResult(String key) {
@@ -93,33 +274,130 @@ class ConversionCache {
 
     ;
 
-    public final boolean containsEncodedImage(String encodingType) {
-        return encodedImagesCache.containsKey(encodingType);
+    public final boolean containsEncodedImage(String encodingType, ConversionParameters params) {
+        boolean found = params.equals(encodedImagesParams) && encodedImagesCache.containsKey(encodingType);
+        metrics.addCacheLookup(found);
+        return found;
     }
 
     ;
 
     public final MatOfByte getEncodedImage(String encodingType) {
+        EntryInfo info = encodedImagesInfo.get(encodingType);
+        if (info != null) {
+            info.lastUsedConversion = currentConversion;
+        }
         return encodedImagesCache.get(encodingType);
     }
 
     ;
 
-    public final void cacheEncodedImage(String encodingType, MatOfByte encodedImage) {
+    // An encoded image is cheap to recompute, as its source image is cached.
+    // The encoded images of other parameters are released, as they are not valid anymore.
+    public final void cacheEncodedImage(String encodingType, MatOfByte encodedImage, ConversionParameters params) {
+        if (!params.equals(encodedImagesParams)) {
+            for (String key : new ArrayList<>(encodedImagesCache.keySet())) {
+                clearCachedEncodedImage(key);
+            }
+            encodedImagesParams = params;
+        }
         clearCachedEncodedImage(encodingType);
         encodedImagesCache.put(encodingType, encodedImage);
+        EntryInfo info = new EntryInfo(getImageBytes(encodedImage), RecomputeCost.LOW, currentConversion);
+        encodedImagesInfo.put(encodingType, info);
+        budget.allocate(info.bytes);
     }
 
     public final void clearCachedEncodedImage(String encodingType) {
         if (encodedImagesCache.containsKey(encodingType)) {
             encodedImagesCache.get(encodingType).release();
             encodedImagesCache.remove(encodingType);
+            budget.release(encodedImagesInfo.remove(encodingType).bytes);
         }
     }
 
+    /**
+     * @return The memory used by the cached images, in bytes.
+     */
+    public final long getMemoryUsage() {
+        long bytes = 0;
+        for (List<ImageEntry> variants : imagesCache.values()) {
+            for (ImageEntry entry : variants) {
+                bytes += entry.info.bytes;
+            }
+        }
+        for (EntryInfo info : encodedImagesInfo.values()) {
+            bytes += info.bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The eviction priority of the least valuable cached image (the lower, the sooner it is released),
+     * or Long.MAX_VALUE if there are no cached images.
+     */
+    public final long getLowestEvictionPriority() {
+        long lowestPriority = Long.MAX_VALUE;
+        for (List<ImageEntry> variants : imagesCache.values()) {
+            for (ImageEntry entry : variants) {
+                lowestPriority = Math.min(lowestPriority, entry.info.getEvictionPriority());
+            }
+        }
+        for (EntryInfo info : encodedImagesInfo.values()) {
+            lowestPriority = Math.min(lowestPriority, info.getEvictionPriority());
+        }
+        return lowestPriority;
+    }
+
+    /**
+     * Releases the least valuable cached image. Among the images with the same priority, the biggest one is released.
+     * Each variant of an image is released independently.
+     * The images must not be in use when this method is called.
+     */
+    public final void evictLeastValuableImage() {
+        String evictedImageKey = null;
+        ImageEntry evictedImage = null;
+        for (Map.Entry<String, List<ImageEntry>> variants : imagesCache.entrySet()) {
+            for (ImageEntry entry : variants.getValue()) {
+                if (evictedImage == null || isLessValuable(entry.info, evictedImage.info)) {
+                    evictedImageKey = variants.getKey();
+                    evictedImage = entry;
+                }
+            }
+        }
+        String evictedEncodingType = findLeastValuableEntry(encodedImagesInfo);
+        if (evictedImage != null && (evictedEncodingType == null || isLessValuable(evictedImage.info, encodedImagesInfo.get(evictedEncodingType)))) {
+            removeImage(evictedImageKey, evictedImage);
+        } else if (evictedEncodingType != null) {
+            clearCachedEncodedImage(evictedEncodingType);
+        }
+    }
+
+    private static String findLeastValuableEntry(Map<String, EntryInfo> entriesInfo) {
+        String leastValuableKey = null;
+        for (Map.Entry<String, EntryInfo> entry : entriesInfo.entrySet()) {
+            if (leastValuableKey == null || isLessValuable(entry.getValue(), entriesInfo.get(leastValuableKey))) {
+                leastValuableKey = entry.getKey();
+            }
+        }
+        return leastValuableKey;
+    }
+
+    private static boolean isLessValuable(EntryInfo a, EntryInfo b) {
+        return a.getEvictionPriority() < b.getEvictionPriority()
+                || (a.getEvictionPriority() == b.getEvictionPriority() && a.bytes > b.bytes);
+    }
+
+    private static long getImageBytes(Mat image) {
+        return image.total() * image.elemSize();
+    }
+
     public final void clearAllCache() {
-        for (String key : imagesCache.keySet()) {
-            imagesCache.get(key).release();
+        for (List<ImageEntry> variants : imagesCache.values()) {
+            for (ImageEntry entry : variants) {
+                matPool.release(entry.image);
+                budget.release(entry.info.bytes);
+            }
         }
         imagesCache.clear();
 
@@ -127,18 +405,25 @@ class ConversionCache {
             encodedImagesCache.get(key).release();
         }
         encodedImagesCache.clear();
+        for (EntryInfo info : encodedImagesInfo.values()) {
+            budget.release(info.bytes);
+        }
+        encodedImagesInfo.clear();
 
         mimMaxLocResultCache.clear();
     }
 
     public final void clearParams() {
-        params.clear();
+        encodedImagesParams = null;
     }
 
     public final void init(String srcFilename) {
         clearParams();
         clearAllCache();
         this.srcFilename = srcFilename;
+        this.srcImageSize = null;
+        this.srcImageDecodeScale = 0;
+        this.resizedImageSize = null;
     }
 
     public final void clear() {
@@ -0,0 +1,68 @@
+package com.volpintesta.IBBIC;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory budget shared by all the conversion caches of an {@link ImageConverter} (the caches of all its sessions).
+ * The caches account the native memory of the images they hold; when the used memory exceeds the budget,
+ * each session releases its least valuable cached images at the end of its conversions (see ConversionSession).
+ */
+class ConversionCacheBudget
+{
+    public static final String MAX_MEGABYTES_PROPERTY = "ibbic.cache.maxMegabytes";
+    private static final long DEFAULT_MAX_MEGABYTES = 1024;
+
+    /**
+     * @return The budget set with the "ibbic.cache.maxMegabytes" system property (in megabytes),
+     * or 1024 megabytes if the property is missing or not valid.
+     */
+    static long getDefaultMaxBytes()
+    {
+        long maxMegabytes = DEFAULT_MAX_MEGABYTES;
+        String property = System.getProperty(MAX_MEGABYTES_PROPERTY);
+        if (property != null)
+        {
+            try
+            {
+                maxMegabytes = Long.parseLong(property.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                // keep the default value
+            }
+        }
+        return Math.max(0, maxMegabytes) * 1024 * 1024;
+    }
+
+    private final AtomicLong usedBytes = new AtomicLong(0);
+    private volatile long maxBytes;
+
+    ConversionCacheBudget (long maxBytes)
+    {
+        setMaxBytes(maxBytes);
+    }
+
+    final long getMaxBytes() { return maxBytes; }
+    final void setMaxBytes (long maxBytes)
+    {
+        if (maxBytes < 0) throw new IllegalArgumentException("maxBytes must be greater or equal than 0");
+        this.maxBytes = maxBytes;
+    }
+
+    final long getUsedBytes() { return usedBytes.get(); }
+
+    final boolean isExceeded()
+    {
+        return usedBytes.get() > maxBytes;
+    }
+
+    final void allocate (long bytes)
+    {
+        usedBytes.addAndGet(bytes);
+    }
+
+    final void release (long bytes)
+    {
+        usedBytes.addAndGet(-bytes);
+    }
+}
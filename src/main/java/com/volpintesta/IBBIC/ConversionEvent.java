@@ -0,0 +1,46 @@
+package com.volpintesta.IBBIC;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of a whole conversion, emitted by ConversionMetrics.endConversion.
+ * Its stages are recorded by the ConversionStageEvents of the same thread that it contains.
+ */
+@Name("com.volpintesta.IBBIC.Conversion")
+@Label("Conversion")
+@Category({ "IBBIC", "Conversion" })
+@Description("An image conversion")
+final class ConversionEvent extends jdk.jfr.Event
+{
+    @Label("Source File")
+    String srcFile;
+
+    @Label("Conversion Type")
+    String conversionType;
+
+    @Label("Output Type")
+    @Description("Encoding of the result, or null if it is not encoded (previews)")
+    String outputType;
+
+    @Label("Converted")
+    @Description("false if the source file cannot be read")
+    boolean converted;
+
+    @Label("Cached")
+    @Description("true if the result was already cached, so the image has not been converted again")
+    boolean cached;
+
+    // The transient fields are not recorded
+    final transient long startNanos;
+
+    ConversionEvent (String srcFile, ImageConverter.ConversionType conversionType, String outputType)
+    {
+        this.srcFile = srcFile;
+        this.conversionType = conversionType.name();
+        this.outputType = outputType;
+        this.startNanos = System.nanoTime();
+    }
+}
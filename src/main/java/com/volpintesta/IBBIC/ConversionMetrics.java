@@ -0,0 +1,316 @@
+package com.volpintesta.IBBIC;
+
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the conversions of an {@link ImageConverter} (of all its sessions, and of the FileManagers that use it):
+ * a latency histogram of each conversion stage, the cache lookups, the decoded, encoded and written bytes, the native
+ * memory allocated for the images and the converted images (computed, or found in the caches).
+ * The metrics are updated by the conversion threads without locks, so they can be always active; they can be read
+ * at any time, and dumped as JSON (see toJson).
+ * Each stage also emits a JDK Flight Recorder event (see ConversionStageEvent and ConversionEvent), which is recorded
+ * only when the event is enabled in a recording (e.g. with -XX:StartFlightRecording).
+ */
+public final class ConversionMetrics
+{
+    public enum Stage
+    {
+        DECODE
+        , RESIZE
+        , V_CHANNEL
+        , BLUR
+        , NORMALIZATION
+        , NOISE_REDUCTION
+        , RECOMBINATION
+        , TILED_CORRECTION
+        , THRESHOLD_TEST
+        , ENCODE
+        , WRITE
+        , CONVERSION  // a whole conversion, including the cached stages
+        , SAVE_FILE   // a whole file conversion of the FileManager, including the session creation
+    }
+
+    /**
+     * Histogram of durations with power of 2 buckets: the bucket 0 counts the durations shorter than 1 microsecond,
+     * the bucket i counts the durations in [2^(i-1), 2^i[ microseconds, and the last one all the longer durations.
+     */
+    private static final class LatencyHistogram
+    {
+        static final int BUCKETS_COUNT = 32;
+
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_COUNT);
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        void record (long nanos)
+        {
+            long micros = Math.max(0, nanos) / 1000;
+            int bucket = Math.min(BUCKETS_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        void reset ()
+        {
+            for (int i = 0; i < BUCKETS_COUNT; ++i)
+            {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+        }
+
+        static double getBucketUpperBoundMillis (int bucket)
+        {
+            return (1L << bucket) / 1000.0;
+        }
+
+        // Upper bound of the bucket that contains the given quantile, or the max duration if it is lower
+        double getQuantileMillis (long[] bucketCounts, long totalCount, double quantile)
+        {
+            long rank = (long)Math.ceil(quantile * totalCount);
+            long cumulativeCount = 0;
+            for (int i = 0; i < bucketCounts.length; ++i)
+            {
+                cumulativeCount += bucketCounts[i];
+                if (cumulativeCount >= rank && cumulativeCount > 0)
+                {
+                    return Math.min(getBucketUpperBoundMillis(i), maxNanos.get() / 1e6);
+                }
+            }
+            return maxNanos.get() / 1e6;
+        }
+    }
+
+    private final LatencyHistogram[] stageLatencies = new LatencyHistogram[Stage.values().length];
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder bytesDecoded = new LongAdder();
+    private final LongAdder bytesEncoded = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder nativeBytesAllocated = new LongAdder();
+    private final LongAdder nativeBytesReused = new LongAdder();
+    private final LongAdder imagesConverted = new LongAdder(); // computed, not found in the caches
+    private final LongAdder cachedConversions = new LongAdder(); // whose result was already cached (e.g. previews)
+    private final LongAdder failedConversions = new LongAdder();
+    private final LongAdder filesSaved = new LongAdder();
+    private final LongAdder failedFileSaves = new LongAdder();
+    private final LongAdder duplicateFilesSaved = new LongAdder(); // saved as the output of an identical source file
+    private volatile long startMillis = System.currentTimeMillis();
+
+    public ConversionMetrics ()
+    {
+        for (int i = 0; i < stageLatencies.length; ++i)
+        {
+            stageLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public final long getStageCount (Stage stage) { return stageLatencies[stage.ordinal()].count.sum(); }
+    public final long getStageTotalNanos (Stage stage) { return stageLatencies[stage.ordinal()].totalNanos.sum(); }
+    public final long getCacheHits() { return cacheHits.sum(); }
+    public final long getCacheMisses() { return cacheMisses.sum(); }
+    public final long getBytesDecoded() { return bytesDecoded.sum(); }
+    public final long getBytesEncoded() { return bytesEncoded.sum(); }
+    public final long getBytesWritten() { return bytesWritten.sum(); }
+    public final long getNativeBytesAllocated() { return nativeBytesAllocated.sum(); }
+    public final long getNativeBytesReused() { return nativeBytesReused.sum(); }
+    public final long getImagesConverted() { return imagesConverted.sum(); }
+    public final long getCachedConversions() { return cachedConversions.sum(); }
+    public final long getFailedConversions() { return failedConversions.sum(); }
+    public final long getFilesSaved() { return filesSaved.sum(); }
+    public final long getFailedFileSaves() { return failedFileSaves.sum(); }
+    public final long getDuplicateFilesSaved() { return duplicateFilesSaved.sum(); }
+
+    /**
+     * @return The begun event of the stage, to be passed to endStage when the stage is completed.
+     */
+    final ConversionStageEvent beginStage (Stage stage)
+    {
+        ConversionStageEvent event = new ConversionStageEvent(stage);
+        event.begin();
+        return event;
+    }
+
+    // The size of the stage is the size of the image it has computed (or decoded)
+    final void endStage (ConversionStageEvent event, Mat image)
+    {
+        endStage(event, image.cols(), image.rows(), image.total() * image.elemSize());
+    }
+
+    final void endStage (ConversionStageEvent event, int width, int height, long bytes)
+    {
+        long nanos = System.nanoTime() - event.startNanos;
+        stageLatencies[event.stageId.ordinal()].record(nanos);
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.width = width;
+            event.height = height;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param outputType The encoding of the result, or null if the result is not encoded (e.g. for the previews).
+     * @return The begun event of the conversion, to be passed to endConversion when the conversion is completed.
+     */
+    final ConversionEvent beginConversion (String srcImageFileName, ImageConverter.ConversionType conversionType, String outputType)
+    {
+        ConversionEvent event = new ConversionEvent(srcImageFileName, conversionType, outputType);
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param computed false if the result has been found in the caches, so the image has not been converted again.
+     */
+    final void endConversion (ConversionEvent event, boolean converted, boolean computed)
+    {
+        long nanos = System.nanoTime() - event.startNanos;
+        stageLatencies[Stage.CONVERSION.ordinal()].record(nanos);
+        (!converted ? failedConversions : computed ? imagesConverted : cachedConversions).increment();
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.converted = converted;
+            event.cached = converted && !computed;
+            event.commit();
+        }
+    }
+
+    final void endFileSave (ConversionStageEvent event, boolean saved, long bytes)
+    {
+        endStage(event, 0, 0, bytes);
+        (saved ? filesSaved : failedFileSaves).increment();
+    }
+
+    final void addCacheLookup (boolean hit) { (hit ? cacheHits : cacheMisses).increment(); }
+    final void addBytesDecoded (long bytes) { bytesDecoded.add(bytes); }
+    final void addBytesEncoded (long bytes) { bytesEncoded.add(bytes); }
+    final void addBytesWritten (long bytes) { bytesWritten.add(bytes); }
+    final void addNativeBytesAllocated (long bytes) { nativeBytesAllocated.add(bytes); }
+    final void addNativeBytesReused (long bytes) { nativeBytesReused.add(bytes); }
+    final void addDuplicateFileSaved () { duplicateFilesSaved.increment(); }
+
+    /**
+     * Resets all the metrics. The conversions running meanwhile could be partially counted.
+     */
+    public final void reset ()
+    {
+        for (LatencyHistogram histogram : stageLatencies)
+        {
+            histogram.reset();
+        }
+        for (LongAdder counter : new LongAdder[] { cacheHits, cacheMisses, bytesDecoded, bytesEncoded, bytesWritten,
+                nativeBytesAllocated, nativeBytesReused, imagesConverted, cachedConversions, failedConversions, filesSaved, failedFileSaves, duplicateFilesSaved })
+        {
+            counter.reset();
+        }
+        startMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return The metrics as a JSON object. The durations are in milliseconds; the quantiles are the upper bounds of
+     * the histogram buckets that contain them, so they are overestimated by a factor of 2 at most.
+     * The histogram of each stage lists its non-empty buckets, each with the upper bound of its durations.
+     */
+    public final String toJson ()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        appendField(json, 1, "periodMillis", System.currentTimeMillis() - startMillis);
+        appendField(json, 1, "imagesConverted", imagesConverted.sum());
+        appendField(json, 1, "cachedConversions", cachedConversions.sum());
+        appendField(json, 1, "failedConversions", failedConversions.sum());
+        appendField(json, 1, "filesSaved", filesSaved.sum());
+        appendField(json, 1, "failedFileSaves", failedFileSaves.sum());
+        appendField(json, 1, "duplicateFilesSaved", duplicateFilesSaved.sum());
+        appendField(json, 1, "cacheHits", cacheHits.sum());
+        appendField(json, 1, "cacheMisses", cacheMisses.sum());
+        appendField(json, 1, "bytesDecoded", bytesDecoded.sum());
+        appendField(json, 1, "bytesEncoded", bytesEncoded.sum());
+        appendField(json, 1, "bytesWritten", bytesWritten.sum());
+        appendField(json, 1, "nativeBytesAllocated", nativeBytesAllocated.sum());
+        appendField(json, 1, "nativeBytesReused", nativeBytesReused.sum());
+        json.append("  \"stages\": {\n");
+        Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; ++i)
+        {
+            appendStage(json, stages[i], i < stages.length - 1);
+        }
+        json.append("  }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    public final void writeJson (Path path) throws IOException
+    {
+        Files.write(path, toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void appendStage (StringBuilder json, Stage stage, boolean hasNext)
+    {
+        LatencyHistogram histogram = stageLatencies[stage.ordinal()];
+        long[] bucketCounts = new long[LatencyHistogram.BUCKETS_COUNT];
+        long count = 0;
+        for (int i = 0; i < bucketCounts.length; ++i)
+        {
+            bucketCounts[i] = histogram.buckets.get(i);
+            count += bucketCounts[i];
+        }
+        double totalMillis = histogram.totalNanos.sum() / 1e6;
+
+        json.append("    \"").append(stage.name().toLowerCase(Locale.ROOT)).append("\": {\n");
+        appendField(json, 3, "count", count);
+        appendField(json, 3, "totalMillis", totalMillis);
+        appendField(json, 3, "meanMillis", (count > 0) ? totalMillis / count : 0.0);
+        appendField(json, 3, "maxMillis", histogram.maxNanos.get() / 1e6);
+        appendField(json, 3, "p50Millis", histogram.getQuantileMillis(bucketCounts, count, 0.50));
+        appendField(json, 3, "p90Millis", histogram.getQuantileMillis(bucketCounts, count, 0.90));
+        appendField(json, 3, "p99Millis", histogram.getQuantileMillis(bucketCounts, count, 0.99));
+        json.append("      \"histogram\": [");
+        boolean first = true;
+        for (int i = 0; i < bucketCounts.length; ++i)
+        {
+            if (bucketCounts[i] > 0)
+            {
+                json.append(first ? "" : ", ").append("{ \"upToMillis\": ");
+                json.append((i < bucketCounts.length - 1) ? formatMillis(LatencyHistogram.getBucketUpperBoundMillis(i)) : "null");
+                json.append(", \"count\": ").append(bucketCounts[i]).append(" }");
+                first = false;
+            }
+        }
+        json.append("]\n");
+        json.append("    }").append(hasNext ? ",\n" : "\n");
+    }
+
+    private static void appendField (StringBuilder json, int indentation, String name, long value)
+    {
+        json.append("  ".repeat(indentation)).append('"').append(name).append("\": ").append(value).append(",\n");
+    }
+
+    private static void appendField (StringBuilder json, int indentation, String name, double value)
+    {
+        json.append("  ".repeat(indentation)).append('"').append(name).append("\": ").append(formatMillis(value)).append(",\n");
+    }
+
+    private static String formatMillis (double millis)
+    {
+        return String.format(Locale.ROOT, "%.3f", millis);
+    }
+}
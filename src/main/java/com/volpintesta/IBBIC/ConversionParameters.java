@@ -0,0 +1,176 @@
+package com.volpintesta.IBBIC;
+
+import java.util.Objects;
+
+/**
+ * The parameters of a conversion. The values are typed, validated and canonical (e.g. -0.0 is stored as 0.0), so two
+ * parameter sets with the same values are always equal, and their hash code is computed once at construction.
+ * The parameters are immutable, so they can be shared by threads and kept by the caches: use a {@link Builder} to
+ * create them, or to derive a modified copy.
+ * A parameter that is not used by a conversion type is ignored by it (e.g. the threshold value by the blurred filter).
+ */
+public final class ConversionParameters
+{
+    public static final ConversionParameters DEFAULT = new Builder().build();
+
+    private final double sigma;                     // blur filter sigma, in fraction of the image size
+    private final boolean noiseReductionActivated;
+    private final boolean maxContrastActivated;
+    private final double thresholdTestValue;
+    private final ImageConverter.BlurMode blurMode; // null to use the converter default blur mode
+    private final ImageConverter.PrecisionMode precisionMode;
+    private final int hashCode;
+
+    private ConversionParameters (Builder builder)
+    {
+        // adding 0.0 turns -0.0 into 0.0, so the equal values have the same representation
+        sigma = builder.sigma + 0.0;
+        noiseReductionActivated = builder.noiseReductionActivated;
+        maxContrastActivated = builder.maxContrastActivated;
+        thresholdTestValue = builder.thresholdTestValue + 0.0;
+        blurMode = builder.blurMode;
+        precisionMode = builder.precisionMode;
+        hashCode = Objects.hash(sigma, noiseReductionActivated, maxContrastActivated, thresholdTestValue, blurMode, precisionMode);
+    }
+
+    public final double getSigma() { return sigma; }
+    public final boolean isNoiseReductionActivated() { return noiseReductionActivated; }
+    public final boolean isMaxContrastActivated() { return maxContrastActivated; }
+    public final double getThresholdTestValue() { return thresholdTestValue; }
+    public final ImageConverter.BlurMode getBlurMode() { return blurMode; }
+    public final ImageConverter.PrecisionMode getPrecisionMode() { return precisionMode; }
+
+    /**
+     * @return true if the blurred filter computed with these parameters is the same computed with the other ones.
+     */
+    public final boolean isSameBlurredFilter (ConversionParameters other)
+    {
+        return other != null && sigma == other.sigma && blurMode == other.blurMode;
+    }
+
+    /**
+     * @return true if the noise reduction computed with these parameters is the same computed with the other ones.
+     */
+    public final boolean isSameNoiseReduction (ConversionParameters other)
+    {
+        return isSameBlurredFilter(other) && noiseReductionActivated == other.noiseReductionActivated;
+    }
+
+    /**
+     * @return true if the cathodoluminescence correction computed with these parameters is the same computed with the other ones.
+     */
+    public final boolean isSameCathodoLuminescenceCorrection (ConversionParameters other)
+    {
+        return isSameBlurredFilter(other) && noiseReductionActivated == other.noiseReductionActivated && maxContrastActivated == other.maxContrastActivated
+                && precisionMode == other.precisionMode;
+    }
+
+    /**
+     * @return true if the threshold test computed with these parameters is the same computed with the other ones
+     * (on the same image).
+     */
+    public final boolean isSameThresholdTest (ConversionParameters other)
+    {
+        return other != null && thresholdTestValue == other.thresholdTestValue;
+    }
+
+    /**
+     * @return true if the threshold test of the cathodoluminescence correction computed with these parameters is the
+     * same computed with the other ones.
+     */
+    public final boolean isSameCathodoLuminescenceCorrectionThresholdTest (ConversionParameters other)
+    {
+        return isSameCathodoLuminescenceCorrection(other) && isSameThresholdTest(other);
+    }
+
+    @Override
+    public boolean equals (Object o)
+    {
+        if (this == o) return true;
+        if (!(o instanceof ConversionParameters)) return false;
+        ConversionParameters other = (ConversionParameters) o;
+        return hashCode == other.hashCode && isSameCathodoLuminescenceCorrectionThresholdTest(other);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        return hashCode;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "ConversionParameters{sigma=" + sigma + ", noiseReductionActivated=" + noiseReductionActivated
+                + ", maxContrastActivated=" + maxContrastActivated + ", thresholdTestValue=" + thresholdTestValue
+                + ", blurMode=" + blurMode + ", precisionMode=" + precisionMode + "}";
+    }
+
+    public static final class Builder
+    {
+        private double sigma = 0.0;
+        private boolean noiseReductionActivated = false;
+        private boolean maxContrastActivated = false;
+        private double thresholdTestValue = 0.0;
+        private ImageConverter.BlurMode blurMode = null;
+        private ImageConverter.PrecisionMode precisionMode = ImageConverter.PrecisionMode.FLOAT;
+
+        public Builder () { }
+
+        // Starts from the values of the given parameters
+        public Builder (ConversionParameters params)
+        {
+            sigma = params.sigma;
+            noiseReductionActivated = params.noiseReductionActivated;
+            maxContrastActivated = params.maxContrastActivated;
+            thresholdTestValue = params.thresholdTestValue;
+            blurMode = params.blurMode;
+            precisionMode = params.precisionMode;
+        }
+
+        public final Builder setSigma (double newVal)
+        {
+            if (!(newVal >= 0) || Double.isInfinite(newVal)) throw new IllegalArgumentException("sigma must be a finite value greater or equal than 0");
+            sigma = newVal;
+            return this;
+        }
+
+        public final Builder setNoiseReductionActivated (boolean newVal)
+        {
+            noiseReductionActivated = newVal;
+            return this;
+        }
+
+        public final Builder setMaxContrastActivated (boolean newVal)
+        {
+            maxContrastActivated = newVal;
+            return this;
+        }
+
+        public final Builder setThresholdTestValue (double newVal)
+        {
+            if (!Double.isFinite(newVal)) throw new IllegalArgumentException("thresholdTestValue must be a finite value");
+            thresholdTestValue = newVal;
+            return this;
+        }
+
+        // null to use the converter default blur mode
+        public final Builder setBlurMode (ImageConverter.BlurMode newVal)
+        {
+            blurMode = newVal;
+            return this;
+        }
+
+        public final Builder setPrecisionMode (ImageConverter.PrecisionMode newVal)
+        {
+            if (newVal == null) throw new IllegalArgumentException("precisionMode cannot be null");
+            precisionMode = newVal;
+            return this;
+        }
+
+        public final ConversionParameters build ()
+        {
+            return new ConversionParameters(this);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.volpintesta.IBBIC;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Holds the conversion caches used by a sequence of conversions.
+ * An {@link ImageConverter} can run conversions of different sessions at the same time on different threads,
+ * while the conversions of the same session are serialized (the session is locked during each conversion).
+ * The caches of a session are never accessed by other sessions, so cached images are never released while in use.
+ * Besides the cache of each conversion type, a session has a shared cache, which holds the images computed from the
+ * current file that are used by several conversion types (the decoded and resized source, its V channel and the
+ * blurred filter), so they are computed once for all the conversion types.
+ * The caches of the most recently converted files are kept (see setMaxCachedFiles), so going back to a recent file
+ * does not compute its images again. A file is identified by its path, its last modification time and its size,
+ * so the caches of a file are discarded when the file changes.
+ * The cached images are accounted in the memory budget of the converter: when it is exceeded, the session releases
+ * its least valuable images at the end of each conversion, when none of them is in use.
+ * The released images go back to the buffer pool of the converter (see MatPool), to be reused by the next conversions.
+ */
+public class ConversionSession implements AutoCloseable
+{
+    public static final int DEFAULT_MAX_CACHED_FILES = 8;
+
+    // Identifies a version of a file
+    private static final class FileKey
+    {
+        private final String path;
+        private final long lastModified;
+        private final long length;
+
+        FileKey (String filename)
+        {
+            File file = new File(filename);
+            path = file.getAbsolutePath();
+            lastModified = file.lastModified();
+            length = file.length();
+        }
+
+        @Override
+        public boolean equals (Object o)
+        {
+            if (this == o) return true;
+            if (!(o instanceof FileKey)) return false;
+            FileKey other = (FileKey) o;
+            return lastModified == other.lastModified && length == other.length && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return Objects.hash(path, lastModified, length);
+        }
+    }
+
+    // The caches of a single file
+    private static final class FileCaches
+    {
+        private final Map<ImageConverter.ConversionType, ConversionCache> caches;
+        private final ConversionCache sharedCache;
+
+        FileCaches (ConversionCacheBudget budget, MatPool matPool, ConversionMetrics metrics)
+        {
+            Map<ImageConverter.ConversionType, ConversionCache> tmpCaches = new HashMap<>();
+            for (ImageConverter.ConversionType key : ImageConverter.ConversionType.values())
+            {
+                tmpCaches.put(key, new ConversionCache(budget, matPool, metrics));
+            }
+            caches = Collections.unmodifiableMap(tmpCaches);
+            sharedCache = new ConversionCache(budget, matPool, metrics);
+        }
+
+        List<ConversionCache> getAllCaches ()
+        {
+            List<ConversionCache> allCaches = new ArrayList<>(caches.values());
+            allCaches.add(sharedCache);
+            return allCaches;
+        }
+
+        void clear ()
+        {
+            for (ConversionCache cache : getAllCaches())
+            {
+                cache.clear();
+            }
+        }
+    }
+
+    private final ConversionCacheBudget budget;
+    private final MatPool matPool;
+    private final ConversionMetrics metrics;
+    private long conversionsCount = 0;
+    private int maxCachedFiles = DEFAULT_MAX_CACHED_FILES;
+
+    // Iterated from the least recently used file to the most recently used one
+    private final LinkedHashMap<FileKey, FileCaches> filesCaches = new LinkedHashMap<>(16, 0.75f, true);
+    private FileCaches currentFileCaches;
+
+    ConversionSession(ConversionCacheBudget budget, MatPool matPool, ConversionMetrics metrics)
+    {
+        this.budget = budget;
+        this.matPool = matPool;
+        this.metrics = metrics;
+        currentFileCaches = new FileCaches(budget, matPool, metrics);
+    }
+
+    /**
+     * Sets how many files can have cached images at the same time (the default value is 8).
+     * The caches of the least recently converted files are released first.
+     */
+    public final synchronized void setMaxCachedFiles (int maxCachedFiles)
+    {
+        if (maxCachedFiles < 1) throw new IllegalArgumentException("maxCachedFiles must be greater than 0");
+        this.maxCachedFiles = maxCachedFiles;
+        releaseExceedingFilesCaches();
+    }
+
+    // Must be called while holding the session lock, before the caches of a file are accessed
+    final void selectFile (String srcFilename)
+    {
+        FileKey fileKey = new FileKey(srcFilename);
+        FileCaches fileCaches = filesCaches.get(fileKey);
+        if (fileCaches == null)
+        {
+            // the caches of a previous version of the file are no longer valid
+            Iterator<Map.Entry<FileKey, FileCaches>> iterator = filesCaches.entrySet().iterator();
+            while (iterator.hasNext())
+            {
+                Map.Entry<FileKey, FileCaches> entry = iterator.next();
+                if (entry.getKey().path.equals(fileKey.path))
+                {
+                    entry.getValue().clear();
+                    iterator.remove();
+                }
+            }
+
+            fileCaches = new FileCaches(budget, matPool, metrics);
+            filesCaches.put(fileKey, fileCaches);
+        }
+        currentFileCaches = fileCaches;
+        releaseExceedingFilesCaches();
+
+        for (ConversionCache cache : currentFileCaches.getAllCaches())
+        {
+            cache.setCurrentConversion(conversionsCount);
+        }
+    }
+
+    private void releaseExceedingFilesCaches ()
+    {
+        Iterator<FileCaches> iterator = filesCaches.values().iterator();
+        while (filesCaches.size() > maxCachedFiles && iterator.hasNext())
+        {
+            FileCaches fileCaches = iterator.next();
+            if (fileCaches != currentFileCaches)
+            {
+                fileCaches.clear();
+                iterator.remove();
+            }
+        }
+    }
+
+    // Must be called while holding the session lock
+    final ConversionCache getCache (ImageConverter.ConversionType conversionType)
+    {
+        return currentFileCaches.caches.get(conversionType);
+    }
+
+    // Must be called while holding the session lock
+    final ConversionCache getSharedCache ()
+    {
+        return currentFileCaches.sharedCache;
+    }
+
+    // Must be called while holding the session lock, before each conversion
+    final void beginConversion ()
+    {
+        ++conversionsCount;
+        for (ConversionCache cache : currentFileCaches.getAllCaches())
+        {
+            cache.setCurrentConversion(conversionsCount);
+        }
+    }
+
+    // Must be called while holding the session lock, after each conversion.
+    // @return false if the conversion has found its result in the caches, so no image has been computed
+    final boolean hasComputedImages ()
+    {
+        for (ConversionCache cache : currentFileCaches.getAllCaches())
+        {
+            if (cache.hasCachedImages(conversionsCount))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Must be called while holding the session lock, after each conversion, when the cached images are not in use.
+    // Only the images of this session are released, as the images of other sessions could be in use.
+    // As the priority of an image depends on the last conversion which used it, the images of the other files are usually released first.
+    final void trimCaches ()
+    {
+        List<ConversionCache> allCaches = new ArrayList<>();
+        for (FileCaches fileCaches : filesCaches.values())
+        {
+            allCaches.addAll(fileCaches.getAllCaches());
+        }
+
+        while (budget.isExceeded())
+        {
+            ConversionCache leastValuableCache = null;
+            for (ConversionCache cache : allCaches)
+            {
+                if (leastValuableCache == null || cache.getLowestEvictionPriority() < leastValuableCache.getLowestEvictionPriority())
+                {
+                    leastValuableCache = cache;
+                }
+            }
+            if (leastValuableCache == null || leastValuableCache.getLowestEvictionPriority() == Long.MAX_VALUE)
+            {
+                break; // nothing left to release
+            }
+            leastValuableCache.evictLeastValuableImage();
+        }
+    }
+
+    /**
+     * @return The memory used by the images cached by this session, in bytes.
+     */
+    public final synchronized long getCachesMemoryUsage ()
+    {
+        long bytes = 0;
+        for (FileCaches fileCaches : filesCaches.values())
+        {
+            for (ConversionCache cache : fileCaches.getAllCaches())
+            {
+                bytes += cache.getMemoryUsage();
+            }
+        }
+        return bytes;
+    }
+
+    // Must be called while holding the session lock
+    final void clearCurrentFileCaches ()
+    {
+        currentFileCaches.clear();
+    }
+
+    public final synchronized void clearConversionCache (ImageConverter.ConversionType conversionType)
+    {
+        for (FileCaches fileCaches : filesCaches.values())
+        {
+            fileCaches.caches.get(conversionType).clear();
+        }
+    }
+
+    public final synchronized void clearAllConversionCaches ()
+    {
+        for (FileCaches fileCaches : filesCaches.values())
+        {
+            fileCaches.clear();
+        }
+        filesCaches.clear();
+        currentFileCaches.clear();
+        currentFileCaches = new FileCaches(budget, matPool, metrics);
+    }
+
+    /**
+     * Releases all the cached images. The session can still be used after this call.
+     */
+    @Override
+    public void close()
+    {
+        clearAllConversionCaches();
+    }
+}
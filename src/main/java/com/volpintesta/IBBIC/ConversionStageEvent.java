@@ -0,0 +1,42 @@
+package com.volpintesta.IBBIC;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of a conversion stage (see ConversionMetrics.Stage), emitted by ConversionMetrics.endStage.
+ */
+@Name("com.volpintesta.IBBIC.ConversionStage")
+@Label("Conversion Stage")
+@Category({ "IBBIC", "Conversion" })
+@Description("A stage of an image conversion")
+final class ConversionStageEvent extends jdk.jfr.Event
+{
+    @Label("Stage")
+    String stage;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Bytes")
+    @Description("Bytes of the computed image, or of the decoded, encoded or written file")
+    @DataAmount
+    long bytes;
+
+    // The transient fields are not recorded
+    final transient ConversionMetrics.Stage stageId;
+    final transient long startNanos;
+
+    ConversionStageEvent (ConversionMetrics.Stage stageId)
+    {
+        this.stageId = stageId;
+        this.stage = stageId.name();
+        this.startNanos = System.nanoTime();
+    }
+}
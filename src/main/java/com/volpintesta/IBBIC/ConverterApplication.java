@@ -18,8 +18,10 @@ public class ConverterApplication extends Application {
         Scene scene = new Scene(fxmlLoader.load());
         stage.setTitle("Image Converter");
         stage.setScene(scene);
+        ConverterWindowController controller = fxmlLoader.getController();
+        stage.setOnCloseRequest(event -> controller.close());
         stage.show();
-        fxmlLoader.<ConverterWindowController>getController().init();
+        controller.init();
     }
 
     public static void main(String[] args) {
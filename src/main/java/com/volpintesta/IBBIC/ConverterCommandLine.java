@@ -0,0 +1,520 @@
+package com.volpintesta.IBBIC;
+
+import org.opencv.core.Core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Headless entry point: converts an image file or all the images of a directory without any UI.
+ * This class (and the classes it uses) never references JavaFX, so it can be launched with only
+ * the application jar and OpenCV on the classpath.
+ */
+public class ConverterCommandLine
+{
+    static{ System.loadLibrary(Core.NATIVE_LIBRARY_NAME); }
+
+    enum ConflictPolicy
+    {
+        OVERWRITE
+        , KEEP_BOTH
+        , SKIP
+    }
+
+    static final int EXIT_SUCCESS = 0;
+    static final int EXIT_CONVERSION_ERRORS = 1;
+    static final int EXIT_USAGE_ERROR = 2;
+
+    private File input = null;
+    private File outputDirectory = null;
+    private double blurFilterPercentage = 0.2;
+    private boolean noiseReductionActivated = true;
+    private boolean maxContrastActivated = false;
+    private ImageConverter.BlurMode blurMode = ImageConverter.BlurMode.EXACT;
+    private ImageConverter.PrecisionMode precisionMode = ImageConverter.PrecisionMode.FLOAT;
+    private ConflictPolicy conflictPolicy = ConflictPolicy.KEEP_BOTH;
+    private int workersCount = BatchConverter.getDefaultWorkersCount();
+    private boolean verbose = false;
+    private File metricsFile = null;
+    private boolean watch = false;
+    private boolean resume = true;
+    private BatchConverter.DuplicatesHandling duplicatesHandling = BatchConverter.DuplicatesHandling.COPY;
+
+    // Created only by main, which holds the parsed options in an instance
+    private ConverterCommandLine () { }
+
+    public static void main(String[] args)
+    {
+        ConverterCommandLine commandLine = new ConverterCommandLine();
+        int exitCode;
+        try
+        {
+            if (!commandLine.parseArguments(args))
+            {
+                printUsage(System.out);
+                exitCode = EXIT_SUCCESS;
+            }
+            else
+            {
+                exitCode = commandLine.run();
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            printUsage(System.err);
+            exitCode = EXIT_USAGE_ERROR;
+        }
+        System.exit(exitCode);
+    }
+
+    static void printUsage (PrintStream out)
+    {
+        out.println("Usage: java -cp <IBBIC.jar><path separator><opencv jar> " + ConverterCommandLine.class.getName() + " --input <file or directory> --output <directory> [options]");
+        out.println();
+        out.println("Options:");
+        out.println("  -i, --input <path>           Image file or directory containing the images to convert.");
+        out.println("  -o, --output <directory>     Output directory. It must be different from the source directory.");
+        out.println("  -s, --sigma <percentage>     Blur filter radius, as a percentage [0-100] of the image size (default: 20).");
+        out.println("  --noise-reduction <on|off>   Force to black the nearly-black values caused by dark noise (default: on).");
+        out.println("  --max-contrast <on|off>      Remap the result to the full brightness range (default: off).");
+        out.println("  --blur-mode <mode>           Blur filter algorithm: exact, pyramid (faster, approximated)");
+        out.println("                               or recursive (approximated, same cost for any sigma) (default: exact).");
+        out.println("  --precision <mode>           Precision of the intermediate images: float or reduced");
+        out.println("                               (16-bit and 8-bit values, faster and approximated) (default: float).");
+        out.println("  --on-conflict <policy>       What to do when an output file already exists:");
+        out.println("                               overwrite, keep-both or skip (default: keep-both).");
+        out.println("  --resume <on|off>            Skip the images already converted with the same parameters by a previous");
+        out.println("                               (e.g. interrupted) run, as recorded in the manifest of the output");
+        out.println("                               directory (default: on).");
+        out.println("  --duplicates <mode>          How to save the images identical to another source image, which are");
+        out.println("                               converted only once: copy, link (hard link to the same output)");
+        out.println("                               or convert (each one is converted) (default: copy).");
+        out.println("  -w, --workers <count>        Number of images converted in parallel (default: " + BatchConverter.getDefaultWorkersCount() + ").");
+        out.println("  --watch                      After converting the images of the input directory, keep watching it");
+        out.println("                               and convert each new or modified image as soon as it is written.");
+        out.println("                               Stop with Ctrl+C.");
+        out.println("  -v, --verbose                Print a line for each converted file.");
+        out.println("  --metrics <file>             Write the conversion metrics (time of each stage, cache hits,");
+        out.println("                               bytes and memory) to a JSON file at the end of the conversion.");
+        out.println("  -h, --help                   Print this message.");
+    }
+
+    /**
+     * @return false if the help message has been requested, true otherwise.
+     * @throws IllegalArgumentException if the arguments are not valid.
+     */
+    boolean parseArguments (String[] args) throws IllegalArgumentException
+    {
+        for (int i = 0; i < args.length; ++i)
+        {
+            String arg = args[i];
+            switch (arg)
+            {
+                case "-h":
+                case "--help":
+                    return false;
+                case "-i":
+                case "--input":
+                    input = new File(getOptionValue(args, ++i, arg));
+                    break;
+                case "-o":
+                case "--output":
+                    outputDirectory = new File(getOptionValue(args, ++i, arg));
+                    break;
+                case "-s":
+                case "--sigma":
+                    blurFilterPercentage = parsePercentage(getOptionValue(args, ++i, arg), arg);
+                    break;
+                case "--noise-reduction":
+                    noiseReductionActivated = parseSwitch(getOptionValue(args, ++i, arg), arg);
+                    break;
+                case "--max-contrast":
+                    maxContrastActivated = parseSwitch(getOptionValue(args, ++i, arg), arg);
+                    break;
+                case "--blur-mode":
+                    blurMode = parseBlurMode(getOptionValue(args, ++i, arg), arg);
+                    break;
+                case "--precision":
+                    precisionMode = parsePrecisionMode(getOptionValue(args, ++i, arg), arg);
+                    break;
+                case "--on-conflict":
+                    conflictPolicy = parseConflictPolicy(getOptionValue(args, ++i, arg), arg);
+                    break;
+                case "--resume":
+                    resume = parseSwitch(getOptionValue(args, ++i, arg), arg);
+                    break;
+                case "--duplicates":
+                    duplicatesHandling = parseDuplicatesHandling(getOptionValue(args, ++i, arg), arg);
+                    break;
+                case "-w":
+                case "--workers":
+                    workersCount = parsePositiveInteger(getOptionValue(args, ++i, arg), arg);
+                    break;
+                case "-v":
+                case "--verbose":
+                    verbose = true;
+                    break;
+                case "--metrics":
+                    metricsFile = new File(getOptionValue(args, ++i, arg));
+                    break;
+                case "--watch":
+                    watch = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option \"" + arg + "\"");
+            }
+        }
+
+        if (input == null) throw new IllegalArgumentException("The input path is missing");
+        if (outputDirectory == null) throw new IllegalArgumentException("The output directory is missing");
+        return true;
+    }
+
+    private static String getOptionValue (String[] args, int index, String option)
+    {
+        if (index >= args.length) throw new IllegalArgumentException("Missing value for option \"" + option + "\"");
+        return args[index];
+    }
+
+    private static double parsePercentage (String value, String option)
+    {
+        try
+        {
+            double percentage = Double.parseDouble(value);
+            if (percentage < 0 || percentage > 100) throw new IllegalArgumentException("The value of \"" + option + "\" must be in range [0, 100]");
+            return percentage / 100.0;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("The value of \"" + option + "\" is not a number: " + value);
+        }
+    }
+
+    private static boolean parseSwitch (String value, String option)
+    {
+        switch (value.toLowerCase(Locale.ROOT))
+        {
+            case "on": case "true": case "yes": return true;
+            case "off": case "false": case "no": return false;
+            default: throw new IllegalArgumentException("The value of \"" + option + "\" must be either \"on\" or \"off\"");
+        }
+    }
+
+    private static ConflictPolicy parseConflictPolicy (String value, String option)
+    {
+        try
+        {
+            return ConflictPolicy.valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("The value of \"" + option + "\" must be one of: overwrite, keep-both, skip");
+        }
+    }
+
+    private static ImageConverter.BlurMode parseBlurMode (String value, String option)
+    {
+        try
+        {
+            return ImageConverter.BlurMode.valueOf(value.toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("The value of \"" + option + "\" must be one of: " + Arrays.toString(ImageConverter.BlurMode.values()).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private static ImageConverter.PrecisionMode parsePrecisionMode (String value, String option)
+    {
+        try
+        {
+            return ImageConverter.PrecisionMode.valueOf(value.toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("The value of \"" + option + "\" must be one of: " + Arrays.toString(ImageConverter.PrecisionMode.values()).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private static BatchConverter.DuplicatesHandling parseDuplicatesHandling (String value, String option)
+    {
+        try
+        {
+            return BatchConverter.DuplicatesHandling.valueOf(value.toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("The value of \"" + option + "\" must be one of: " + Arrays.toString(BatchConverter.DuplicatesHandling.values()).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private static int parsePositiveInteger (String value, String option)
+    {
+        try
+        {
+            int number = Integer.parseInt(value);
+            if (number < 1) throw new IllegalArgumentException("The value of \"" + option + "\" must be greater than 0");
+            return number;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("The value of \"" + option + "\" is not an integer: " + value);
+        }
+    }
+
+    int run()
+    {
+        ImageConverter imageConverter = new ImageConverter();
+        FileManager fileManager = new FileManager(imageConverter);
+
+        if (!input.exists()) throw new IllegalArgumentException("The input path does not exist: " + input.getPath());
+        if (watch && !input.isDirectory()) throw new IllegalArgumentException("The input path must be a directory to be watched: " + input.getPath());
+        if (!input.isDirectory() && !fileManager.isFileInputSupported(input))
+        {
+            throw new IllegalArgumentException("The input file type is not supported. Supported input types: " + Arrays.toString(imageConverter.getSupportedInputTypes()));
+        }
+        // a file name without a directory has no parent file, so the working directory is resolved from the absolute path
+        fileManager.setupFiles(input.getAbsoluteFile());
+        if (fileManager.getFilesCount() == 0 && !watch)
+        {
+            throw new IllegalArgumentException("No supported image found. Supported input types: " + Arrays.toString(imageConverter.getSupportedInputTypes()));
+        }
+
+        if (outputDirectory.exists() && !outputDirectory.isDirectory())
+        {
+            throw new IllegalArgumentException("The output path is not a directory: " + outputDirectory.getPath());
+        }
+        if (outputDirectory.toPath().toAbsolutePath().normalize().equals(fileManager.getWorkingDirectory().toPath().normalize()))
+        {
+            throw new IllegalArgumentException("The output directory cannot be the directory where the source files are");
+        }
+        if (!outputDirectory.exists() && !outputDirectory.mkdirs())
+        {
+            throw new IllegalArgumentException("Cannot create the output directory: " + outputDirectory.getPath());
+        }
+
+        ConversionParameters params = new ConversionParameters.Builder()
+                .setSigma(blurFilterPercentage)
+                .setNoiseReductionActivated(noiseReductionActivated)
+                .setMaxContrastActivated(maxContrastActivated)
+                .setBlurMode(blurMode)
+                .setPrecisionMode(precisionMode)
+                .build();
+
+        // The conversions are recorded in the manifest of the output directory, so an interrupted run can be resumed
+        BatchManifest manifest;
+        try
+        {
+            manifest = BatchManifest.open(outputDirectory);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Cannot write the manifest in the output directory: " + e.getMessage());
+        }
+
+        // Key = source file; Value = destination file.
+        LinkedHashMap<File, File> filePairs = new LinkedHashMap<>();
+        ArrayList<File> assignedDstFiles = new ArrayList<>();
+        ArrayList<File> skippedFiles = new ArrayList<>();
+        ArrayList<File> alreadyConvertedFiles = new ArrayList<>();
+        for (int i = 0; i < fileManager.getFilesCount(); ++i)
+        {
+            File srcFile = fileManager.getFileAtIndex(i);
+
+            // The images converted by a previous run are skipped before handling the conflicts, since their outputs exist
+            File convertedFile = resume ? manifest.getValidOutput(srcFile, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, params) : null;
+            if (convertedFile != null)
+            {
+                alreadyConvertedFiles.add(srcFile);
+                assignedDstFiles.add(new File(outputDirectory, convertedFile.getName()));
+                if (verbose)
+                    System.out.println(srcFile.getName() + ": already converted in " + convertedFile.getPath());
+                continue;
+            }
+
+            // The output of a previous run whose source has changed is replaced
+            File staleFile = resume ? manifest.getReplaceableOutput(srcFile, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, params) : null;
+            if (staleFile != null)
+            {
+                File dstFile = new File(outputDirectory, staleFile.getName());
+                assignedDstFiles.add(dstFile);
+                filePairs.put(srcFile, dstFile);
+                continue;
+            }
+
+            File dstFile = new File(outputDirectory, srcFile.getName());
+
+            // Images whose type is not supported as conversion output are converted to the default output type
+            if (!fileManager.isFileOutputSupported(dstFile))
+            {
+                dstFile = FileManager.replaceFileType(dstFile, imageConverter.getDefaultOutputType());
+                System.out.println(srcFile.getName() + ": the image type is not supported as conversion output, it will be converted to " + imageConverter.getDefaultOutputType());
+            }
+
+            if (assignedDstFiles.contains(dstFile))
+            {
+                // two source files would be saved with the same name (e.g. after an image type change)
+                dstFile = FileManager.resolveFileNameCollision(dstFile, assignedDstFiles);
+            }
+            else if (dstFile.exists())
+            {
+                switch (conflictPolicy)
+                {
+                    case KEEP_BOTH:
+                        dstFile = FileManager.resolveFileNameCollision(dstFile, assignedDstFiles);
+                        break;
+                    case SKIP:
+                        skippedFiles.add(srcFile);
+                        System.out.println(srcFile.getName() + ": skipped, the output file already exists");
+                        break;
+                    case OVERWRITE:
+                    default:
+                        break;
+                }
+            }
+            assignedDstFiles.add(dstFile);
+            filePairs.put(srcFile, dstFile);
+        }
+
+        // The directory is watched before the conversion of its images, so the images written meanwhile are not missed
+        FolderWatcher folderWatcher = null;
+        if (watch)
+        {
+            ArrayList<File> handledFiles = new ArrayList<>(filePairs.keySet());
+            handledFiles.addAll(alreadyConvertedFiles);
+            folderWatcher = startWatchingInputDirectory(imageConverter, params, handledFiles, manifest);
+        }
+
+        long startAllConversionsMillisecs = System.currentTimeMillis();
+        BatchConverter batchConverter = new BatchConverter(imageConverter, workersCount);
+        batchConverter.setDuplicatesHandling(duplicatesHandling);
+        List<File> errorFilesList = batchConverter.convertAndSaveFiles(filePairs, skippedFiles, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, params, (srcFile, dstFile, conversionMillisecs) ->
+        {
+            if (verbose)
+                System.out.println(srcFile.getName() + " -> " + dstFile.getPath() + " (" + conversionMillisecs + " ms)");
+        }, manifest);
+        long endAllConversionsMillisecs = System.currentTimeMillis();
+
+        for (File errorFile : errorFilesList)
+        {
+            System.err.println("FAILED CONVERSION OF " + errorFile.getPath());
+        }
+        int convertedFiles = filePairs.size() - skippedFiles.size() - errorFilesList.size();
+        System.out.println("Converted " + convertedFiles + " of " + fileManager.getFilesCount() + " files (" + alreadyConvertedFiles.size() + " already converted, " + skippedFiles.size() + " skipped, " + errorFilesList.size() + " failed) in " + (endAllConversionsMillisecs - startAllConversionsMillisecs) + " ms");
+
+        if (folderWatcher != null)
+        {
+            folderWatcher.convertFailedFiles(errorFilesList); // retried by the watcher, without waiting for their next modification
+            waitForTermination();
+        }
+
+        if (!closeManifest(manifest))
+        {
+            return EXIT_CONVERSION_ERRORS;
+        }
+
+        if (!writeMetrics(imageConverter))
+        {
+            return EXIT_CONVERSION_ERRORS;
+        }
+        return errorFilesList.isEmpty() ? EXIT_SUCCESS : EXIT_CONVERSION_ERRORS;
+    }
+
+    /**
+     * Converts the images written in the input directory, except the given ones, until the program is terminated
+     * (e.g. with Ctrl+C). On termination, the running conversions are completed and the metrics are written.
+     */
+    private FolderWatcher startWatchingInputDirectory (ImageConverter imageConverter, ConversionParameters params, Collection<File> convertedFiles, BatchManifest manifest)
+    {
+        FolderWatcher folderWatcher;
+        try
+        {
+            folderWatcher = new FolderWatcher(imageConverter, input, outputDirectory, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, params, workersCount, new FolderWatcher.WatchListener()
+            {
+                @Override
+                public void onFileConverted (File srcFile, File dstFile, long conversionMillisecs)
+                {
+                    System.out.println(srcFile.getName() + " -> " + dstFile.getPath() + " (" + conversionMillisecs + " ms)");
+                }
+
+                @Override
+                public void onFileFailed (File srcFile)
+                {
+                    System.err.println("FAILED CONVERSION OF " + srcFile.getPath());
+                }
+
+                @Override
+                public void onFileNotRecorded (File srcFile, IOException e)
+                {
+                    System.err.println("The conversion of " + srcFile.getPath() + " couldn't be recorded in the manifest: " + e.getMessage());
+                }
+            });
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Cannot watch the input directory: " + e.getMessage());
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        {
+            folderWatcher.close();
+            closeManifest(manifest);
+            writeMetrics(imageConverter);
+        }));
+        folderWatcher.setManifest(manifest);
+        folderWatcher.start(convertedFiles);
+        System.out.println("Watching " + input.getPath() + " (press Ctrl+C to stop)");
+        return folderWatcher;
+    }
+
+    private static void waitForTermination ()
+    {
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(Long.MAX_VALUE);
+            }
+            catch (InterruptedException e)
+            {
+                // keep watching until the program is terminated
+            }
+        }
+    }
+
+    // @return false if the manifest cannot be written
+    private static boolean closeManifest (BatchManifest manifest)
+    {
+        try
+        {
+            manifest.close();
+            return true;
+        }
+        catch (IOException e)
+        {
+            System.err.println("Cannot write the manifest " + manifest.getFile().getPath() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // @return false if the metrics have been requested, but they cannot be written
+    private boolean writeMetrics (ImageConverter imageConverter)
+    {
+        if (metricsFile != null)
+        {
+            try
+            {
+                imageConverter.getMetrics().writeJson(metricsFile.toPath());
+            }
+            catch (IOException e)
+            {
+                System.err.println("Cannot write the metrics file " + metricsFile.getPath() + ": " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,5 +1,6 @@
 package com.volpintesta.IBBIC;
 
+import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.geometry.Rectangle2D;
@@ -7,6 +8,8 @@ import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Pane;
 import javafx.stage.DirectoryChooser;
@@ -25,6 +28,8 @@ public class ConverterWindowController
 {
     static boolean doBenchmark = false; // set to true to print benchmarks
     static DateFormat dateFormat = new SimpleDateFormat("hh:mm:ss.SSS");
+    static int conversionWorkersCount = BatchConverter.getDefaultWorkersCount(); // number of images converted in parallel when saving a directory
+    static int prefetchedFilesDistance = 1; // previews of the files before and after the current one are prepared in background, up to this distance
     enum PreviewType {
         NONE
         , CONVERSION_RESULT
@@ -51,8 +56,6 @@ public class ConverterWindowController
     private static final String openDirectoryIconResourceName = "/icons/open_directory_icon.png";
     private static final String openImageIconResourceName = "/icons/open_image_icon.png";
 
-    private static final String previewImageType = "png";
-
     private static final ImageConverter.ConversionType conversionType = ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION;
     private static double blurSliderDefaultValue = 20;
 
@@ -107,6 +110,14 @@ public class ConverterWindowController
 
     private final ImageConverter imageConverter;
     private final FileManager fileManager;
+    private final PreviewPrefetcher previewPrefetcher;
+    private final ConversionSession sourcePreviewSession;
+    private final ConversionSession convertedPreviewSession;
+    private final PreviewRenderer sourcePreviewRenderer;
+    private final PreviewRenderer convertedPreviewRenderer;
+    private FolderWatcher folderWatcher = null; // converts the images written in the working directory, if active
+    private CheckMenuItem watchDirectoryMenuItem;
+    private Alert watchFailuresPopup = null; // lists the watched files that couldn't be converted, while it is shown
     private int currentFileIndex = -1;
     private boolean isBrokenOrEmptySrc = false;
     private boolean isBrokenOrEmptyDst = false;
@@ -134,10 +145,19 @@ public class ConverterWindowController
     {
         imageConverter = new ImageConverter();
         fileManager = new FileManager(imageConverter);
+        previewPrefetcher = new PreviewPrefetcher(imageConverter);
+        sourcePreviewSession = imageConverter.createSession();
+        convertedPreviewSession = imageConverter.createSession();
+        sourcePreviewRenderer = new PreviewRenderer("IBBIC-source-preview-renderer");
+        convertedPreviewRenderer = new PreviewRenderer("IBBIC-converted-preview-renderer");
     }
 
     public void init() throws IOException
     {
+        // shown until the first previews are rendered
+        sourceImageView.setImage(new Image(getClass().getResourceAsStream(defaultSrcImageResourceName)));
+        convertedImageView.setImage(new Image(getClass().getResourceAsStream(defaultDstImageResourceName)));
+
         imagesPane.widthProperty().addListener((property, oldValue, newValue) ->
         {
             resizeImages(newValue.doubleValue(), imagesPane.getHeight());
@@ -201,6 +221,24 @@ public class ConverterWindowController
             refreshThresholdTestValue((double)newValue);
         });
 
+        // The conversion metrics are exported, and the watch of the working directory is toggled, from the context menu of the images
+        MenuItem exportMetricsMenuItem = new MenuItem("Export conversion metrics...");
+        exportMetricsMenuItem.setOnAction(event -> exportMetrics(mainPane.getScene().getWindow()));
+        watchDirectoryMenuItem = new CheckMenuItem("Watch the directory for new images");
+        watchDirectoryMenuItem.setOnAction(event ->
+        {
+            if (watchDirectoryMenuItem.isSelected())
+            {
+                watchDirectoryMenuItem.setSelected(startWatchingDirectory(mainPane.getScene().getWindow()));
+            }
+            else
+            {
+                stopWatchingDirectory();
+            }
+        });
+        ContextMenu imagesContextMenu = new ContextMenu(exportMetricsMenuItem, watchDirectoryMenuItem);
+        imagesPane.setOnContextMenuRequested(event -> imagesContextMenu.show(imagesPane, event.getScreenX(), event.getScreenY()));
+
         double minWidth = mainPane.getMinWidth();
         double minHeight = mainPane.getMinHeight();
         double sceneWidth = mainPane.getScene().getWidth();
@@ -346,6 +384,7 @@ saveIconResourceName
 
     private void setupFilesCollection (File root) throws IOException
     {
+        stopWatchingDirectory(); // the watched directory is the previous working directory
         fileManager.setupFiles(root);
         setCurrentFileIndex((fileManager.getFilesCount() > 0) ? 0 : -1);
         saveButton.setDisable(fileManager.getFilesCount() == 0);
@@ -353,6 +392,7 @@ saveIconResourceName
 
     private void setCurrentFileIndex (int index) throws IOException
     {
+        previewPrefetcher.cancel(); // the requested previews are converted first
         currentFileIndex = -1;
 
         if (index >= 0 && index < fileManager.getFilesCount())
@@ -370,109 +410,137 @@ saveIconResourceName
         previousButton.setDisable(fileManager.getFileAtIndex(currentFileIndex - 1) == null);
         nextButton.setDisable(fileManager.getFileAtIndex(currentFileIndex + 1) == null);
         lastButton.setDisable(fileManager.getFileAtIndex(currentFileIndex + 1) == null);
+
+        prefetchNeighbourPreviews();
     }
 
-    private void refreshCurrentFileSourcePreview() throws IOException
+    // Prepares the previews of the files next to the current one, with the current preview type and parameters,
+    // so they are shown immediately when the user moves to the next or previous file.
+    private void prefetchNeighbourPreviews()
     {
-        InputStream srcImageInputStream = null;
-        if (currentFileIndex >= 0 && currentFileIndex < fileManager.getFilesCount())
+        List<PreviewPrefetcher.Preview> previews = new ArrayList<>();
+        if (currentFileIndex >= 0)
         {
-            ImageConverter.ConversionType previewConversionType = ImageConverter.ConversionType.NONE;
-            Map<ImageConverter.ConversionParameter, String> params = new HashMap<ImageConverter.ConversionParameter, String>();
-            if (previewType == PreviewType.THRESHOLD_TEST)
-            {
-                previewConversionType = ImageConverter.ConversionType.THRESHOLD_TEST;
-                params.put(ImageConverter.ConversionParameter.THRESHOLD_TEST_VALUE, Double.toString(thresholdTestValue));
-            }
-
-            try
-            {
-                // use a preview type here because the image is only shown in UI. This type is not the one of
-                // the saved image (the image will be converted again at save time), neither the one of the source
-                // image. Its purpose is just to allow the java UI to work correctly.
-                srcImageInputStream = fileManager.getConvertedImageInputStream(currentFileIndex, previewConversionType, previewImageType, params, (int)Math.round(srcImageDesiredSize[0]), (int)Math.round(srcImageDesiredSize[1]));
-            }
-            catch (IllegalArgumentException e)
+            int srcWidth = (int)Math.round(srcImageDesiredSize[0]);
+            int srcHeight = (int)Math.round(srcImageDesiredSize[1]);
+            int dstWidth = (int)Math.round(dstImageDesiredSize[0]);
+            int dstHeight = (int)Math.round(dstImageDesiredSize[1]);
+            for (int distance = 1; distance <= prefetchedFilesDistance; ++distance)
             {
-                // This should never happen.
-                // The image type is not supported as conversion output.
-                // Change previewImageType value to a supported one.
-                srcImageInputStream.close(); // release resources
-                srcImageInputStream = null;
-                throw e; // rethrow the caught exception
+                // the next files first, as the user usually moves forward
+                for (int fileIndex : new int[] { currentFileIndex + distance, currentFileIndex - distance })
+                {
+                    File file = fileManager.getFileAtIndex(fileIndex);
+                    if (file != null)
+                    {
+                        previews.add(new PreviewPrefetcher.Preview(sourcePreviewSession, file, getSourcePreviewConversionType(), getSourcePreviewParams(), srcWidth, srcHeight));
+                        if (previewType != PreviewType.NONE)
+                        {
+                            previews.add(new PreviewPrefetcher.Preview(convertedPreviewSession, file, getConvertedPreviewConversionType(), getConvertedPreviewParams(), dstWidth, dstHeight));
+                        }
+                    }
+                }
             }
         }
+        previewPrefetcher.prefetch(previews);
+    }
 
-        isBrokenOrEmptySrc = false;
+    private ImageConverter.ConversionType getSourcePreviewConversionType()
+    {
+        return (previewType == PreviewType.THRESHOLD_TEST) ? ImageConverter.ConversionType.THRESHOLD_TEST : ImageConverter.ConversionType.NONE;
+    }
 
-        if (srcImageInputStream == null)
-        {
-            isBrokenOrEmptySrc = true;
-            srcImageInputStream = getClass().getResourceAsStream(fileManager.getFilesCount() > 0 ? brokenFileImageResourceName : defaultSrcImageResourceName);
+    private ConversionParameters getSourcePreviewParams()
+    {
+        // Only the threshold test uses a parameter
+        return new ConversionParameters.Builder().setThresholdTestValue(thresholdTestValue).build();
+    }
+
+    private ImageConverter.ConversionType getConvertedPreviewConversionType()
+    {
+        switch (previewType) {
+            case THRESHOLD_TEST:
+                return ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION_THRESHOLD_TEST;
+            case CONVERSION_RESULT:
+                return ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION;
+            case BLURRED_FILTER:
+                return ImageConverter.ConversionType.BLURRED_FILTER;
+            case NONE:
+            default:
+                return ImageConverter.ConversionType.NONE;
         }
+    }
 
-        Image sourceImage = new Image(srcImageInputStream);
-        sourceImageView.setImage(sourceImage);
+    // The parameters that are not used by the preview conversion type are ignored by the converter
+    private ConversionParameters getConvertedPreviewParams()
+    {
+        return new ConversionParameters.Builder(getConversionParams()).setThresholdTestValue(thresholdTestValue).build();
     }
 
-    private void refreshCurrentFileConvertedPreview() throws IOException
+    // The parameters of the saved images
+    private ConversionParameters getConversionParams()
     {
-        InputStream dstImageInputStream = null;
-        if (currentFileIndex >= 0 && currentFileIndex < fileManager.getFilesCount()) {
-            ImageConverter.ConversionType previewConversionType = ImageConverter.ConversionType.NONE;
-            Map<ImageConverter.ConversionParameter, String> params = new HashMap<ImageConverter.ConversionParameter, String>();
-            switch (previewType) {
-                case THRESHOLD_TEST:
-                    previewConversionType = ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION_THRESHOLD_TEST;
-                    params.put(ImageConverter.ConversionParameter.PARAM_SIGMA, Double.toString(blurFilterPercentage));
-                    params.put(ImageConverter.ConversionParameter.NOISE_REDUCTION_ACTIVATED, Boolean.toString(noiseReductionActivated));
-                    params.put(ImageConverter.ConversionParameter.MAX_CONTRAST_ACTIVATED, Boolean.toString(maxContrastActivated));
-                    params.put(ImageConverter.ConversionParameter.THRESHOLD_TEST_VALUE, Double.toString(thresholdTestValue));
-                    break;
-                case CONVERSION_RESULT:
-                    previewConversionType = ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION;
-                    params.put(ImageConverter.ConversionParameter.PARAM_SIGMA, Double.toString(blurFilterPercentage));
-                    params.put(ImageConverter.ConversionParameter.NOISE_REDUCTION_ACTIVATED, Boolean.toString(noiseReductionActivated));
-                    params.put(ImageConverter.ConversionParameter.MAX_CONTRAST_ACTIVATED, Boolean.toString(maxContrastActivated));
-                    break;
-                case BLURRED_FILTER:
-                    previewConversionType = ImageConverter.ConversionType.BLURRED_FILTER;
-                    params.put(ImageConverter.ConversionParameter.PARAM_SIGMA, Double.toString(blurFilterPercentage));
-                    params.put(ImageConverter.ConversionParameter.NOISE_REDUCTION_ACTIVATED, Boolean.toString(maxContrastActivated));
-                    break;
-                case NONE:
-                default:
-                    break;
-            }
+        return new ConversionParameters.Builder()
+                .setSigma(blurFilterPercentage)
+                .setNoiseReductionActivated(noiseReductionActivated)
+                .setMaxContrastActivated(maxContrastActivated)
+                .build();
+    }
 
-            try {
-                // use a preview type here because the image is only shown in UI. This type is not the one of
-                // the saved image (the image will be converted again at save time), neither the one of the source
-                // image. Its purpose is just to allow the java UI to work correctly.
-                if (previewType != PreviewType.NONE) {
-                    dstImageInputStream = fileManager.getConvertedImageInputStream(currentFileIndex, previewConversionType, previewImageType, params, (int)Math.round(dstImageDesiredSize[0]), (int)Math.round(dstImageDesiredSize[1]));
-                }
-            } catch (IllegalArgumentException e) {
-                // This should never happen.
-                // The image type is not supported as conversion output.
-                // Change previewImageType value to a supported one.
-                dstImageInputStream.close();
-                dstImageInputStream = null;
-                throw e; // rethrow the caught exception
-            }
-        }
+    // The previews are converted in background. The source and converted previews use different sessions and renderers,
+    // so they are converted in parallel.
+    private void refreshCurrentFileSourcePreview()
+    {
+        File file = fileManager.getFileAtIndex(currentFileIndex);
+        ImageConverter.ConversionType previewConversionType = getSourcePreviewConversionType();
+        ConversionParameters params = getSourcePreviewParams();
+        int desiredWidth = (int)Math.round(srcImageDesiredSize[0]);
+        int desiredHeight = (int)Math.round(srcImageDesiredSize[1]);
+        String placeholderResourceName = fileManager.getFilesCount() > 0 ? brokenFileImageResourceName : defaultSrcImageResourceName;
+
+        sourcePreviewRenderer.render(() -> renderPreview(sourcePreviewSession, file, previewConversionType, params, desiredWidth, desiredHeight), sourceImage ->
+        {
+            isBrokenOrEmptySrc = (sourceImage == null);
+            sourceImageView.setImage(sourceImage != null ? sourceImage : new Image(getClass().getResourceAsStream(placeholderResourceName)));
+            resizeImages(imagesPane.getWidth(), imagesPane.getHeight());
+        });
+    }
 
-        isBrokenOrEmptyDst = false;
+    private void refreshCurrentFileConvertedPreview()
+    {
+        File file = (previewType != PreviewType.NONE) ? fileManager.getFileAtIndex(currentFileIndex) : null;
+        ImageConverter.ConversionType previewConversionType = getConvertedPreviewConversionType();
+        ConversionParameters params = getConvertedPreviewParams();
+        int desiredWidth = (int)Math.round(dstImageDesiredSize[0]);
+        int desiredHeight = (int)Math.round(dstImageDesiredSize[1]);
+        String placeholderResourceName = (previewType != PreviewType.NONE && fileManager.getFilesCount() > 0) ? brokenFileImageResourceName : defaultDstImageResourceName;
+
+        convertedPreviewRenderer.render(() -> renderPreview(convertedPreviewSession, file, previewConversionType, params, desiredWidth, desiredHeight), convertedImage ->
+        {
+            isBrokenOrEmptyDst = (convertedImage == null);
+            convertedImageView.setImage(convertedImage != null ? convertedImage : new Image(getClass().getResourceAsStream(placeholderResourceName)));
+            resizeImages(imagesPane.getWidth(), imagesPane.getHeight());
+        });
+    }
 
-        if (dstImageInputStream == null)
+    // Called on the renderer threads. Returns null if there is no file, or if it cannot be converted.
+    private Image renderPreview (ConversionSession session, File file, ImageConverter.ConversionType previewConversionType, ConversionParameters params, int desiredWidth, int desiredHeight)
+    {
+        if (file == null)
         {
-            isBrokenOrEmptyDst = true;
-            dstImageInputStream = getClass().getResourceAsStream((previewType != PreviewType.NONE && fileManager.getFilesCount() > 0) ? brokenFileImageResourceName : defaultDstImageResourceName);
+            return null;
         }
 
-        Image convertedImage = new Image (dstImageInputStream);
-
-        convertedImageView.setImage(convertedImage);
+        // The pixels are copied in the image as they are, without encoding and decoding the image
+        // (the image will be converted again at save time, in the type of the saved file).
+        ImageConverter.ConvertedPixels pixels = fileManager.getConvertedImagePixels(session, file, previewConversionType, params, desiredWidth, desiredHeight);
+        if (pixels == null)
+        {
+            return null;
+        }
+        WritableImage image = new WritableImage(pixels.width, pixels.height);
+        image.getPixelWriter().setPixels(0, 0, pixels.width, pixels.height, PixelFormat.getByteBgraPreInstance(), pixels.bgraPixels, 0, pixels.width * 4);
+        return image;
     }
 
     private void resizeImages (double paneWidth, double paneHeight)
@@ -666,11 +734,7 @@ saveIconResourceName
                     // UnsupportedEncodingException should never be thrown because the images collection includes
                     // only supported types (see FileManager.setupFiles).
                     // IllegalArgumentException should never be called because the extension is checked previously in this method.
-                    Map<ImageConverter.ConversionParameter, String> params = new HashMap<ImageConverter.ConversionParameter, String>();
-                    params.put(ImageConverter.ConversionParameter.PARAM_SIGMA, Double.toString(blurFilterPercentage));
-                    params.put(ImageConverter.ConversionParameter.NOISE_REDUCTION_ACTIVATED, Boolean.toString(noiseReductionActivated));
-                    params.put(ImageConverter.ConversionParameter.MAX_CONTRAST_ACTIVATED, Boolean.toString(maxContrastActivated));
-                    fileManager.convertAndSaveFile(srcFile, dstFile, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, params);
+                    fileManager.convertAndSaveFile(srcFile, dstFile, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, getConversionParams());
                     String msg = "Conversion ended with success!";
                     Alert popup = new Alert(Alert.AlertType.INFORMATION, msg, ButtonType.CLOSE);
                     popup.show();
@@ -699,6 +763,136 @@ saveIconResourceName
         }
     }
 
+    // Writes the metrics of the conversions made since the application start as a JSON file
+    private void exportMetrics (Window ownerWindow)
+    {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Export the conversion metrics");
+        fileChooser.setInitialDirectory(fileManager.getWorkingDirectory());
+        fileChooser.setInitialFileName("IBBIC-metrics.json");
+        fileChooser.getExtensionFilters().addAll(new FileChooser.ExtensionFilter("JSON file", "*.json"));
+
+        File dstFile = fileChooser.showSaveDialog(ownerWindow);
+        if (dstFile != null)
+        {
+            try
+            {
+                imageConverter.getMetrics().writeJson(dstFile.toPath());
+            }
+            catch (IOException e)
+            {
+                String msg = "The following metrics file couldn't be written:\n" + dstFile.getPath();
+                Alert popup = new Alert(Alert.AlertType.ERROR, msg, ButtonType.CLOSE);
+                popup.show();
+            }
+        }
+    }
+
+    /**
+     * Converts the images written in the working directory from now on (e.g. by a microscope), with the current
+     * parameters, and saves them in an output directory chosen by the user.
+     * @return true if the directory is being watched.
+     */
+    private boolean startWatchingDirectory (Window ownerWindow)
+    {
+        File workingDirectory = fileManager.getWorkingDirectory();
+        if (workingDirectory == null)
+        {
+            Alert popup = new Alert(Alert.AlertType.ERROR, "Open a directory before watching it.", ButtonType.CLOSE);
+            popup.showAndWait();
+            return false;
+        }
+
+        File outputDirectory = null;
+        while (true)
+        {
+            DirectoryChooser dirChooser = new DirectoryChooser ();
+            dirChooser.setTitle("Select the output directory of the new images");
+            dirChooser.setInitialDirectory(outputDirectory != null ? outputDirectory : workingDirectory);
+            outputDirectory = dirChooser.showDialog(ownerWindow);
+            if (outputDirectory == null)
+            {
+                return false;
+            }
+            else if (outputDirectory.getPath().equals(workingDirectory.getPath()))
+            {
+                String directoryAlertMsg = "You cannot save in the same directory where the source files are. Choose another directory.";
+                Alert popup = new Alert(Alert.AlertType.ERROR, directoryAlertMsg, ButtonType.CLOSE);
+                popup.showAndWait();
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        try
+        {
+            // The listener is called on the watcher threads
+            folderWatcher = new FolderWatcher(imageConverter, workingDirectory, outputDirectory, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, getConversionParams(), conversionWorkersCount, new FolderWatcher.WatchListener()
+            {
+                @Override
+                public void onFileConverted (File srcFile, File dstFile, long conversionMillisecs)
+                {
+                    if (doBenchmark) System.out.println("Watched file " + srcFile.getName() + " converted in " + conversionMillisecs + " ms");
+                }
+
+                @Override
+                public void onFileFailed (File srcFile)
+                {
+                    Platform.runLater(() -> showWatchedFileFailure(srcFile));
+                }
+            });
+            folderWatcher.start();
+            return true;
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            folderWatcher = null;
+            String msg = "The following directory couldn't be watched:\n" + workingDirectory.getPath();
+            Alert popup = new Alert(Alert.AlertType.ERROR, msg, ButtonType.CLOSE);
+            popup.show();
+            return false;
+        }
+    }
+
+    // The failures are added to the popup already shown, so a directory of broken images does not open a popup for each one
+    private void showWatchedFileFailure (File srcFile)
+    {
+        String msgLine = "FAILED CONVERSION OF " + srcFile.getName();
+        if (watchFailuresPopup != null)
+        {
+            watchFailuresPopup.setContentText(watchFailuresPopup.getContentText() + "\n" + msgLine);
+            return;
+        }
+        watchFailuresPopup = new Alert(Alert.AlertType.WARNING, msgLine, ButtonType.CLOSE);
+        watchFailuresPopup.setHeaderText("Some images of the watched directory couldn't be converted.");
+        watchFailuresPopup.resizableProperty().set(true);
+        watchFailuresPopup.setOnHidden(event -> watchFailuresPopup = null);
+        watchFailuresPopup.show();
+    }
+
+    private void stopWatchingDirectory ()
+    {
+        if (folderWatcher != null)
+        {
+            folderWatcher.close();
+            folderWatcher = null;
+        }
+        if (watchDirectoryMenuItem != null)
+        {
+            watchDirectoryMenuItem.setSelected(false);
+        }
+    }
+
+    /**
+     * Stops the background work of the window, which is being closed.
+     */
+    public void close ()
+    {
+        stopWatchingDirectory();
+    }
+
     // TODO: risolvere il problema sulle sovrascrizioni. Non si può cancellare il file sorgente. Non si deve poter sovrascrivere la cartella sorgente.
     @SuppressWarnings("ResultOfMethodCallIgnored")
     private void saveDirectory (Window ownerWindow)
@@ -738,6 +932,20 @@ saveIconResourceName
             ArrayList<File> overwrittenFiles = new ArrayList<>();
             ArrayList<File> skippedFiles = new ArrayList<>();
             ArrayList<File> changedTypeFiles = new ArrayList<>();
+            ArrayList<File> alreadyConvertedFiles = new ArrayList<>();
+            ArrayList<File> staleFiles = new ArrayList<>(); // source files whose previous output is replaced
+            ConversionParameters conversionParams = getConversionParams();
+
+            // The conversions are recorded in the manifest of the output directory, so an interrupted save can be resumed
+            BatchManifest manifest;
+            try
+            {
+                manifest = BatchManifest.open(outputDirectory);
+            }
+            catch (IOException e)
+            {
+                manifest = null; // the files are saved anyway, but the save cannot be resumed
+            }
 
             int conflictsCount = 0;
             int handledConflict = 0;
@@ -749,6 +957,22 @@ saveIconResourceName
             // that will be handled before the conversion operations.
             for (int i = 0; i < fileManager.getFilesCount(); ++i) {
                 File srcFile = fileManager.getFileAtIndex(i);
+
+                // The images saved by a previous (e.g. interrupted) save with the same parameters are not converted again
+                File convertedFile = (manifest != null) ? manifest.getValidOutput(srcFile, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, conversionParams) : null;
+                if (convertedFile != null) {
+                    alreadyConvertedFiles.add(srcFile);
+                    continue;
+                }
+                // The previous output of a changed source file is replaced, it is not a conflict
+                File staleFile = (manifest != null) ? manifest.getReplaceableOutput(srcFile, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, conversionParams) : null;
+                if (staleFile != null) {
+                    staleFiles.add(srcFile);
+                    overwrittenFiles.add(staleFile);
+                    filePairs.put(srcFile, staleFile);
+                    continue;
+                }
+
                 File dstFile = new File(outputDirectory, srcFile.getName());
 
                 // Handle the extension problem: FileManager.convertAndSaveFile throws IllegalArgumentException if the type
@@ -801,7 +1025,7 @@ saveIconResourceName
             for (File srcFile : srcFiles) {
                 File dstFile = filePairs.get(srcFile);
 
-                if (dstFile.exists()) {
+                if (dstFile.exists() && !staleFiles.contains(srcFile)) {
                     ButtonType ChosenOperation;
                     if (ChosenOperationForAllFiles != null) {
                         ChosenOperation = ChosenOperationForAllFiles;
@@ -841,43 +1065,30 @@ saveIconResourceName
 
             long startAllConversionsMillisecs = System.currentTimeMillis();
 
-            // Do the conversions and save the files.
+            // Do the conversions and save the files, using several workers in parallel.
             // If any error is thrown during these operations, the file is added to a list
-            // of not handled errors that will be shown at the end
-            ArrayList<File> errorFilesList = new ArrayList<>();
-            int convertedFiles = 0;
-            for (File srcFile : filePairs.keySet()) {
-                if (!skippedFiles.contains(srcFile)) {
-                    File dstFile = filePairs.get(srcFile);
-                    try {
-                        if (dstFile.exists()) {
-                            dstFile.delete();
-                        }
-                        // This should never call the IllegalArgumentException, because on the top of this method it has
-                        // been ensured that the files have a supported extension and conversion type. If the exception
-                        // is triggered, there is a problem either in that routine or in the conversion types management.
-                        // Remember that the conversion type should be aligned with the file extension, and the file
-                        // conflicts should be checked with the final extension.
-                        // UnsupportedEncodingException should never be thrown because the images collection includes
-                        // only supported types (see FileManager.setupFiles).
-                        Map<ImageConverter.ConversionParameter, String> params = new HashMap<ImageConverter.ConversionParameter, String>();
-                        params.put(ImageConverter.ConversionParameter.PARAM_SIGMA, Double.toString(blurFilterPercentage));
-                        params.put(ImageConverter.ConversionParameter.NOISE_REDUCTION_ACTIVATED, Boolean.toString(noiseReductionActivated));
-                        params.put(ImageConverter.ConversionParameter.MAX_CONTRAST_ACTIVATED, Boolean.toString(maxContrastActivated));
-                        long startConversionMillisecs = System.currentTimeMillis();
-                        fileManager.convertAndSaveFile(srcFile, dstFile, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, params);
-                        convertedFiles++;
-                        long endConversionMillisecs = System.currentTimeMillis();
-                        if (doBenchmark)
-                            System.out.println("Conversion " + convertedFiles + " time: " + dateFormat.format(Date.from(Instant.ofEpochMilli(endConversionMillisecs - startConversionMillisecs))));
-                    } catch (IOException e) {
-                        if (dstFile.exists()) {
-                            dstFile.delete();
-                        }
-                        errorFilesList.add(srcFile);
-                    }
+            // of not handled errors that will be shown at the end.
+            // IllegalArgumentException should never be thrown, because on the top of this method it has
+            // been ensured that the files have a supported extension and conversion type. If the exception
+            // is triggered, there is a problem either in that routine or in the conversion types management.
+            // Remember that the conversion type should be aligned with the file extension, and the file
+            // conflicts should be checked with the final extension.
+            // UnsupportedEncodingException should never be thrown because the images collection includes
+            // only supported types (see FileManager.setupFiles).
+            BatchConverter batchConverter = new BatchConverter(imageConverter, conversionWorkersCount);
+            List<File> errorFilesList = batchConverter.convertAndSaveFiles(filePairs, skippedFiles, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, conversionParams, (srcFile, dstFile, conversionMillisecs) ->
+            {
+                if (doBenchmark)
+                    System.out.println("Conversion of " + srcFile.getName() + " time: " + dateFormat.format(Date.from(Instant.ofEpochMilli(conversionMillisecs))));
+            }, manifest);
+            if (manifest != null) {
+                try {
+                    manifest.close();
+                } catch (IOException e) {
+                    // the recorded conversions are still in the manifest, only its compaction has failed
                 }
             }
+            int convertedFiles = filePairs.size() - skippedFiles.size() - errorFilesList.size();
 
             long endAllConversionsMillisecs = System.currentTimeMillis();
             if (doBenchmark)
@@ -918,6 +1129,9 @@ saveIconResourceName
                     }
                     detailsPopupMsg.append(msgLine);
                 }
+                for (File srcFile : alreadyConvertedFiles) {
+                    detailsPopupMsg.append("\nALREADY CONVERTED ").append(srcFile.getName());
+                }
                 Alert detailsPopup = new Alert(Alert.AlertType.INFORMATION, detailsPopupMsg.toString(), ButtonType.CLOSE);
                 detailsPopup.resizableProperty().set(true);
                 detailsPopup.show();
@@ -979,6 +1193,7 @@ saveIconResourceName
         if (!refreshingPreview)
         {
             refreshingPreview = true;
+            previewPrefetcher.cancel(); // the requested previews are converted first
 
             previewConversionToggleButton.setSelected(newPreviewType == PreviewType.CONVERSION_RESULT);
             previewBlurToggleButton.setSelected(newPreviewType == PreviewType.BLURRED_FILTER);
@@ -992,18 +1207,18 @@ saveIconResourceName
 
             previewType = newPreviewType;
 
-            try
+            if (folderWatcher != null)
             {
-                refreshCurrentFileSourcePreview(); // refresh source preview
-            } catch (IOException e) { throw new RuntimeException(e); }
+                folderWatcher.setConversionParameters(getConversionParams()); // the next watched images are converted as the preview
+            }
 
-            try
-            {
-                refreshCurrentFileConvertedPreview(); // refresh converted preview
-            } catch (IOException e) { throw new RuntimeException(e); }
+            refreshCurrentFileSourcePreview(); // refresh source preview
+            refreshCurrentFileConvertedPreview(); // refresh converted preview
 
             resizeImages(imagesPane.getWidth(), imagesPane.getHeight());
 
+            prefetchNeighbourPreviews(); // with the new preview type and parameters
+
             refreshingPreview = false;
         }
     }
@@ -1,13 +1,16 @@
 package com.volpintesta.IBBIC;
 
 import java.io.*;
+import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 public class FileManager
 {
+    // Prefix of the temporary files written by convertAndReplaceFile
+    public static final String PARTIAL_FILE_PREFIX = ".partial-";
+
     private File workingDirectory;
     private File[] candidateFiles;
 
@@ -26,6 +29,20 @@ public class FileManager
         return "";
     }
 
+    /**
+     * @return A file in the same directory and with the same name of the given file, but with the given type as extension.
+     */
+    public static File replaceFileType(File f, String type)
+    {
+        String filename = f.getName();
+        int extensionPointIndex = filename.lastIndexOf(".");
+        if (extensionPointIndex >= 0 && extensionPointIndex < filename.length())
+        {
+            filename = filename.substring(0, extensionPointIndex); // excluding point and extension
+        }
+        return new File(f.getParentFile(), filename + "." + type);
+    }
+
     public boolean isFileInputSupported (File f) { return f != null && imageConverter.isTypeSupportedAsInput(getFileType(f)); }
     public boolean isFileOutputSupported (File f) { return f != null && imageConverter.isTypeSupportedAsOutput(getFileType(f)); }
 
@@ -75,7 +92,7 @@ public class FileManager
         }
     }
 
-    public InputStream getConvertedImageInputStream (int fileIndex, ImageConverter.ConversionType conversionType, String outputType, Map<ImageConverter.ConversionParameter, String> params, int desiredWidth, int desiredHeight) throws IllegalArgumentException
+    public InputStream getConvertedImageInputStream (int fileIndex, ImageConverter.ConversionType conversionType, String outputType, ConversionParameters params, int desiredWidth, int desiredHeight) throws IllegalArgumentException
     {
         File file = getFileAtIndex(fileIndex);
         if (file != null && file.exists())
@@ -85,7 +102,16 @@ public class FileManager
         return null;
     }
 
-    public void convertAndSaveFile (File srcFile, File dstFile, ImageConverter.ConversionType conversionType, Map<ImageConverter.ConversionParameter, String> params) throws IOException, IllegalArgumentException, UnsupportedEncodingException
+    public ImageConverter.ConvertedPixels getConvertedImagePixels (ConversionSession session, File file, ImageConverter.ConversionType conversionType, ConversionParameters params, int desiredWidth, int desiredHeight)
+    {
+        if (file != null && file.exists())
+        {
+            return imageConverter.convertImageToPixels(session, file.getAbsolutePath(), conversionType, params, desiredWidth, desiredHeight);
+        }
+        return null;
+    }
+
+    public void convertAndSaveFile (File srcFile, File dstFile, ImageConverter.ConversionType conversionType, ConversionParameters params) throws IOException, IllegalArgumentException, UnsupportedEncodingException
     {
         if (srcFile != null && dstFile != null
                 && !srcFile.isDirectory() && !dstFile.isDirectory())
@@ -95,44 +121,73 @@ public class FileManager
                 throw new UnsupportedEncodingException("The source file has not a supported encoding. Only the following encodings are supported: " + Arrays.toString(imageConverter.getInputFileFilters()));
             }
 
-            // clear conversion cache: the conversion result (saved) should not be affected by cached settings such as the images size, which are used to compute the preview images.
-            imageConverter.clearConvertionCache(conversionType);
-
-            InputStream convertedImage = imageConverter.convertImageInMemory(srcFile.getAbsolutePath(), conversionType, getFileType(dstFile), params, -1, -1);
-            if (convertedImage == null || convertedImage.available() == 0)
+            // use a new session: the conversion result (saved) should not be affected by cached settings such as the images size, which are used to compute the preview images.
+            // A dedicated session also allows to save several files at the same time on different threads.
+            // The encoded image is written directly in the destination file, which is created only if the conversion succeeds.
+            ConversionMetrics metrics = imageConverter.getMetrics();
+            ConversionStageEvent saveEvent = metrics.beginStage(ConversionMetrics.Stage.SAVE_FILE);
+            boolean converted = false;
+            try (ConversionSession session = imageConverter.createSession())
             {
-                if (convertedImage != null)
-                {
-                    convertedImage.close();
-                }
-                throw new IOException("The file conversion has failed");
+                converted = imageConverter.convertImageToFile(session, srcFile.getAbsolutePath(), conversionType, getFileType(dstFile), params, -1, -1, dstFile.toPath());
             }
-
-            if (!dstFile.createNewFile())
+            catch (FileAlreadyExistsException e)
+            {
+                throw new IOException("Cannot create the destination file", e);
+            }
+            finally
             {
-                throw new IOException("Cannot create the destination file");
+                metrics.endFileSave(saveEvent, converted, converted ? dstFile.length() : 0);
             }
+            if (!converted)
+            {
+                throw new IOException("The file conversion has failed");
+            }
+        }
+    }
 
-            OutputStream fileOutputStream = null;
+    /**
+     * Converts the source file as convertAndSaveFile, but writes the image in a temporary file of the destination
+     * directory (named as the destination file, with the ".partial-" prefix), which is then moved over the destination
+     * file, replacing it if it exists. So the destination file is never partially written, even if the program is
+     * terminated during the conversion: it is either the previous file or the new one.
+     */
+    public void convertAndReplaceFile (File srcFile, File dstFile, ImageConverter.ConversionType conversionType, ConversionParameters params) throws IOException, IllegalArgumentException, UnsupportedEncodingException
+    {
+        // the temporary file keeps the extension, which is the output type
+        File partialFile = new File(dstFile.getAbsoluteFile().getParentFile(), PARTIAL_FILE_PREFIX + dstFile.getName());
+        try
+        {
+            Files.deleteIfExists(partialFile.toPath()); // left by a terminated conversion
+            convertAndSaveFile(srcFile, partialFile, conversionType, params);
+            moveReplacing(partialFile.toPath(), dstFile.toPath());
+        }
+        catch (IOException | RuntimeException e)
+        {
             try
             {
-                fileOutputStream = new FileOutputStream(dstFile);
-                byte[] bytes = new byte[1024];
-                while (convertedImage.available() > 0)
-                {
-                    int readBytesNum = convertedImage.read(bytes, 0, bytes.length);
-                    fileOutputStream.write(bytes, 0, readBytesNum);
-                }
+                Files.deleteIfExists(partialFile.toPath());
             }
-            finally
+            catch (IOException ignored)
             {
-                convertedImage.close();
-                if (fileOutputStream != null)
-                {
-                    fileOutputStream.flush();
-                    fileOutputStream.close();
-                }
+                // it is replaced by the next conversion of the file
             }
+            throw e;
+        }
+    }
+
+    /**
+     * Moves the source file over the target one, atomically if the file system supports it.
+     */
+    public static void moveReplacing (Path source, Path target) throws IOException
+    {
+        try
+        {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
@@ -0,0 +1,455 @@
+package com.volpintesta.IBBIC;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Watches a directory and converts each supported image that is created or modified in it, as soon as it has been
+ * completely written, saving it in the output directory with the same name (see FileManager.convertAndReplaceFile).
+ * A file is considered completely written when its size and its last modification time have not changed for the
+ * quiet period (see setQuietMillis) after its last change, so the files written by other programs (e.g. the frames
+ * of a microscope) are converted once, with a latency of the quiet period plus the conversion time.
+ * The images are converted in parallel by several workers, but the versions of the same file are converted in order,
+ * and a new version of a file is converted again. The files that already exist when the watcher starts are converted
+ * only if they are not handled by the caller (see start).
+ * The converted image is written in a temporary file of the output directory and then moved over the previous one
+ * (see FileManager.convertAndReplaceFile), so the output directory never contains a partially written image.
+ */
+public class FolderWatcher implements AutoCloseable
+{
+    public static final long DEFAULT_QUIET_MILLIS = 150;
+    // A file that cannot be decoded could be still being written, even if it has not changed for the quiet period
+    public static final int MAX_CONVERSION_ATTEMPTS = 3;
+
+    /**
+     * Receives the results of the conversions. Its methods are called on the watcher threads.
+     */
+    public interface WatchListener
+    {
+        void onFileConverted (File srcFile, File dstFile, long conversionMillisecs);
+        void onFileFailed (File srcFile);
+        // The file has been converted, but its conversion couldn't be recorded in the manifest (see setManifest)
+        default void onFileNotRecorded (File srcFile, IOException e) { }
+    }
+
+    // Identifies a version of a file
+    private static final class FileVersion
+    {
+        private final long lastModified;
+        private final long size;
+
+        FileVersion (long lastModified, long size)
+        {
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals (Object o)
+        {
+            if (this == o) return true;
+            if (!(o instanceof FileVersion)) return false;
+            FileVersion other = (FileVersion) o;
+            return lastModified == other.lastModified && size == other.size;
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return Objects.hash(lastModified, size);
+        }
+    }
+
+    // A file that has changed and has not been converted yet
+    private static final class PendingFile
+    {
+        FileVersion version = null;        // version seen at the last change
+        ScheduledFuture<?> check = null;    // check at the end of the quiet period
+        boolean converting = false;
+        boolean changedWhileConverting = false;
+        int failedAttempts = 0;
+    }
+
+    private final ImageConverter imageConverter;
+    private final FileManager fileManager;
+    private final File inputDirectory;
+    private final File outputDirectory;
+    private final ImageConverter.ConversionType conversionType;
+    private final WatchListener listener;
+    private volatile ConversionParameters params;
+    private volatile long quietMillis = DEFAULT_QUIET_MILLIS;
+    private volatile boolean closed = false;
+    private volatile BatchManifest manifest = null;
+
+    private final WatchService watchService;
+    private final Thread watchThread;
+    private final ScheduledExecutorService scheduler; // owns the pending files and the converted versions
+    private final ExecutorService workers;
+
+    // Accessed only by the scheduler thread
+    private final Map<Path, PendingFile> pendingFiles = new HashMap<>();
+    private final Map<Path, FileVersion> convertedVersions = new HashMap<>();
+
+    /**
+     * @throws IllegalArgumentException If the directories are the same, or the input path is not a directory.
+     * @throws IOException If the input directory cannot be watched.
+     */
+    public FolderWatcher (ImageConverter imageConverter, File inputDirectory, File outputDirectory, ImageConverter.ConversionType conversionType, ConversionParameters params, int workersCount, WatchListener listener) throws IOException, IllegalArgumentException
+    {
+        if (!inputDirectory.isDirectory()) throw new IllegalArgumentException("The watched path is not a directory: " + inputDirectory.getPath());
+        if (inputDirectory.toPath().toAbsolutePath().normalize().equals(outputDirectory.toPath().toAbsolutePath().normalize())) throw new IllegalArgumentException("The output directory cannot be the watched directory");
+        if (workersCount < 1) throw new IllegalArgumentException("workersCount must be greater than 0");
+
+        this.imageConverter = imageConverter;
+        this.fileManager = new FileManager(imageConverter);
+        this.inputDirectory = inputDirectory;
+        this.outputDirectory = outputDirectory;
+        this.conversionType = conversionType;
+        this.params = params;
+        this.listener = listener;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        inputDirectory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchThread = new Thread(this::watch, "IBBIC-watcher");
+        watchThread.setDaemon(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "IBBIC-watcher-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        workers = Executors.newFixedThreadPool(workersCount, runnable ->
+        {
+            Thread thread = new Thread(runnable, "IBBIC-watcher-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public final File getInputDirectory() { return inputDirectory; }
+    public final File getOutputDirectory() { return outputDirectory; }
+
+    // The parameters of the next conversions
+    public final void setConversionParameters (ConversionParameters newVal)
+    {
+        if (newVal == null) throw new IllegalArgumentException("params cannot be null");
+        params = newVal;
+    }
+
+    // If not null, the converted files are recorded in the manifest, so a batch conversion does not convert them again
+    public final void setManifest (BatchManifest newVal) { manifest = newVal; }
+
+    public final long getQuietMillis() { return quietMillis; }
+    public final void setQuietMillis (long newVal)
+    {
+        if (newVal < 0) throw new IllegalArgumentException("quietMillis must be greater or equal than 0");
+        quietMillis = newVal;
+    }
+
+    /**
+     * Starts watching the directory. The files that already exist are not converted, unless they are modified.
+     */
+    public final void start ()
+    {
+        File[] files = inputDirectory.listFiles();
+        start((files != null) ? Arrays.asList(files) : Collections.emptyList());
+    }
+
+    /**
+     * Starts watching the directory. The given files are handled by the caller (e.g. converted by a BatchConverter),
+     * so they are not converted unless they are modified; the other files that already exist are converted.
+     * The directory is watched before being listed, so no file written meanwhile is missed.
+     */
+    public final void start (Collection<File> handledFiles)
+    {
+        HashSet<Path> handledPaths = new HashSet<>();
+        for (File file : handledFiles)
+        {
+            handledPaths.add(file.getAbsoluteFile().toPath());
+        }
+        scheduler.execute(() ->
+        {
+            File[] files = inputDirectory.getAbsoluteFile().listFiles();
+            if (files != null)
+            {
+                for (File file : files)
+                {
+                    FileVersion version = readVersion(file.toPath());
+                    if (version != null && handledPaths.contains(file.toPath()))
+                    {
+                        convertedVersions.put(file.toPath(), version);
+                    }
+                    else if (version != null)
+                    {
+                        onFileChanged(file.toPath());
+                    }
+                }
+            }
+        });
+        watchThread.start();
+    }
+
+    /**
+     * Converts the given files, which were handled by the caller (see start) but whose conversion has failed,
+     * as the files that are modified.
+     */
+    public final void convertFailedFiles (Collection<File> failedFiles)
+    {
+        for (File file : failedFiles)
+        {
+            Path path = file.getAbsoluteFile().toPath();
+            runOnScheduler(() ->
+            {
+                convertedVersions.remove(path);
+                onFileChanged(path);
+            });
+        }
+    }
+
+    /**
+     * Stops watching the directory, and waits for the running conversions to end (the pending files are not converted).
+     */
+    @Override
+    public void close ()
+    {
+        closed = true;
+        try
+        {
+            watchService.close();
+        }
+        catch (IOException e)
+        {
+            // the watch thread ends anyway
+        }
+        scheduler.shutdownNow();
+        workers.shutdown();
+        try
+        {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watch ()
+    {
+        try
+        {
+            while (!closed)
+            {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents())
+                {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                    {
+                        // some events have been lost: the changed files are found comparing their versions
+                        runOnScheduler(this::rescanDirectory);
+                    }
+                    else
+                    {
+                        Path file = inputDirectory.getAbsoluteFile().toPath().resolve((Path) event.context());
+                        runOnScheduler(() -> onFileChanged(file));
+                    }
+                }
+                if (!key.reset())
+                {
+                    break; // the directory is no longer accessible
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e)
+        {
+            // closed
+        }
+    }
+
+    private void runOnScheduler (Runnable task)
+    {
+        try
+        {
+            scheduler.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // closed
+        }
+    }
+
+    private void rescanDirectory ()
+    {
+        File[] files = inputDirectory.getAbsoluteFile().listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                FileVersion version = readVersion(file.toPath());
+                if (version != null && !version.equals(convertedVersions.get(file.toPath())))
+                {
+                    onFileChanged(file.toPath());
+                }
+            }
+        }
+    }
+
+    private void onFileChanged (Path file)
+    {
+        if (!fileManager.isFileInputSupported(file.toFile()))
+        {
+            return;
+        }
+        PendingFile pending = pendingFiles.computeIfAbsent(file, k -> new PendingFile());
+        if (pending.converting)
+        {
+            // converted again when the running conversion ends
+            pending.changedWhileConverting = true;
+        }
+        else
+        {
+            scheduleCheck(file, pending);
+        }
+    }
+
+    private void scheduleCheck (Path file, PendingFile pending)
+    {
+        if (pending.check != null)
+        {
+            pending.check.cancel(false);
+        }
+        pending.version = readVersion(file);
+        if (pending.version == null)
+        {
+            pendingFiles.remove(file); // deleted
+            return;
+        }
+        pending.check = scheduler.schedule(() -> checkFile(file, pending), quietMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // At the end of the quiet period: the file is converted if it has not changed since its last change
+    private void checkFile (Path file, PendingFile pending)
+    {
+        pending.check = null;
+        FileVersion version = readVersion(file);
+        if (version == null)
+        {
+            pendingFiles.remove(file);
+        }
+        else if (!version.equals(pending.version) || version.size == 0)
+        {
+            // still being written (an empty file has just been created)
+            scheduleCheck(file, pending);
+        }
+        else if (version.equals(convertedVersions.get(file)))
+        {
+            pendingFiles.remove(file); // not really changed (e.g. only its attributes)
+        }
+        else
+        {
+            pending.converting = true;
+            ConversionParameters conversionParams = params;
+            workers.execute(() ->
+            {
+                boolean converted = convertFile(file.toFile(), conversionParams);
+                runOnScheduler(() -> onConversionEnded(file, pending, version, converted));
+            });
+        }
+    }
+
+    private void onConversionEnded (Path file, PendingFile pending, FileVersion version, boolean converted)
+    {
+        pending.converting = false;
+        if (converted)
+        {
+            convertedVersions.put(file, version);
+        }
+        else
+        {
+            ++pending.failedAttempts;
+        }
+
+        if (pending.changedWhileConverting)
+        {
+            pending.changedWhileConverting = false;
+            pending.failedAttempts = 0;
+            scheduleCheck(file, pending);
+        }
+        else if (!converted && pending.failedAttempts < MAX_CONVERSION_ATTEMPTS)
+        {
+            scheduleCheck(file, pending);
+        }
+        else
+        {
+            pendingFiles.remove(file);
+            if (!converted && listener != null)
+            {
+                listener.onFileFailed(file.toFile());
+            }
+        }
+    }
+
+    private boolean convertFile (File srcFile, ConversionParameters conversionParams)
+    {
+        // Images whose type is not supported as conversion output are converted to the default output type
+        File dstFile = new File(outputDirectory, srcFile.getName());
+        if (!fileManager.isFileOutputSupported(dstFile))
+        {
+            dstFile = FileManager.replaceFileType(dstFile, imageConverter.getDefaultOutputType());
+        }
+        try
+        {
+            long startConversionMillisecs = System.currentTimeMillis();
+            fileManager.convertAndReplaceFile(srcFile, dstFile, conversionType, conversionParams);
+            long endConversionMillisecs = System.currentTimeMillis();
+            recordConverted(srcFile, dstFile, conversionParams, endConversionMillisecs - startConversionMillisecs);
+            if (listener != null)
+            {
+                listener.onFileConverted(srcFile, dstFile, endConversionMillisecs - startConversionMillisecs);
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    // A manifest error is not a conversion error: the saved file is not converted again
+    private void recordConverted (File srcFile, File dstFile, ConversionParameters conversionParams, long conversionMillisecs)
+    {
+        BatchManifest currentManifest = manifest;
+        if (currentManifest != null)
+        {
+            try
+            {
+                currentManifest.recordConverted(srcFile, dstFile, conversionType, conversionParams, conversionMillisecs);
+            }
+            catch (IOException e)
+            {
+                // the file is not recorded, so it is converted again when the batch is resumed
+                if (listener != null)
+                {
+                    listener.onFileNotRecorded(srcFile, e);
+                }
+            }
+        }
+    }
+
+    // null if the file does not exist or it is not a regular file
+    private static FileVersion readVersion (Path file)
+    {
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? new FileVersion(attributes.lastModifiedTime().toMillis(), attributes.size()) : null;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+}
@@ -5,14 +5,36 @@ import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ImageConverter
 {
+    private static final System.Logger LOGGER = System.getLogger(ImageConverter.class.getName());
 
     private static final String SRC_IMAGE_CACHE_KEY = "srcImage";
-    private static final String RESIZED_IMAGE_CACHE_KEY = "resizedImage";
+    static final String RESIZED_IMAGE_CACHE_KEY = "resizedImage"; // package-private for the benchmarks
+    // Images computed from the resized image and shared by the conversion types (see ConversionSession)
+    private static final String V_CHANNEL_8U_CACHE_KEY = "vChannel8U";
+    private static final String V_CHANNEL_32F_CACHE_KEY = "vChannel32F";
+    private static final String BLURRED_V_CHANNEL_CACHE_KEY = "blurredVChannel";
+
+    // Scales of the reduced decodes of the JPEG files (IMREAD_REDUCED_COLOR_* modes), from the greatest
+    private static final int[] REDUCED_DECODE_SCALES = { 8, 4, 2 };
+
+    // Size of the writes of convertImageToFile
+    public static final int WRITE_CHUNK_BYTES = 1024 * 1024;
 
     public enum ConversionType
     {
@@ -24,27 +46,89 @@ public class ImageConverter
         , CATHODO_LUMINESCENCE_CORRECTION_THRESHOLD_TEST
     }
 
-    public enum ConversionParameter
+    /**
+     * The pixels of a converted image, not encoded: 8-bit BGRA values (the alpha is always 255), row by row,
+     * with no padding between the rows. This is the pixel layout of the byte BGRA (premultiplied) image formats,
+     * so the pixels can be shown without any decoding.
+     */
+    public static final class ConvertedPixels
     {
-        NONE
-        , PARAM_SIGMA                       // double
-        , NOISE_REDUCTION_ACTIVATED         // boolean
-        , MAX_CONTRAST_ACTIVATED            // boolean
-        , THRESHOLD_TEST_VALUE              // double
+        public final int width;
+        public final int height;
+        public final byte[] bgraPixels;
+
+        ConvertedPixels (int width, int height, byte[] bgraPixels)
+        {
+            this.width = width;
+            this.height = height;
+            this.bgraPixels = bgraPixels;
+        }
     }
 
-    private double cachedImageSizeRatioLowerTolerance = 0.8;
+    public enum BlurMode
+    {
+        EXACT       // Gaussian blur computed on the full resolution image
+        , PYRAMID   // Gaussian blur computed on a downsampled image, then upsampled (much faster with large sigmas)
+        , RECURSIVE // Recursive approximation of the gaussian blur, whose cost does not depend on the sigma
+    }
+
+    public enum PrecisionMode
+    {
+        FLOAT       // Intermediate images of the correction as 32-bit float values
+        , REDUCED   // Intermediate images of the correction as 16-bit fixed-point and 8-bit values (faster and smaller, slightly approximated)
+    }
+
+    // Scale of the 16-bit fixed-point brightness values of the reduced precision correction: 1.0 is stored as 256,
+    // so the [0-255] range is stored in [0-65280]
+    private static final double FIXED_POINT_ONE = 256.0;
+
+    private volatile double cachedImageSizeRatioLowerTolerance = 0.8;
     public final void setCachedImageSizeRatioLowerTolerance(double newVal)
     {
         if (newVal < 0.001 || newVal > 1.001) throw new IllegalArgumentException("newVal must be in range ]0, 1]");
         cachedImageSizeRatioLowerTolerance = newVal;
     }
-    private double cachedImageSizeRatioHigherTolerance = 1.1;
+    private volatile double cachedImageSizeRatioHigherTolerance = 1.1;
     public final void setCachedImageSizeRatioHigherTolerance(double newVal)
     {
         if (newVal < 0.999) throw new IllegalArgumentException("newVal must be greater or equal than 1");
         cachedImageSizeRatioHigherTolerance = newVal;
     }
+    // Minimum sigma (in pixels) of the blur applied to the downsampled image by the PYRAMID blur mode.
+    // It bounds the error against the exact blur: with 12 pixels the measured max error is below 0.1%
+    // of the blurred image max value, with 4 pixels it is below 0.5%. The max error is at the borders of
+    // grainy images, whose replicated border pixels weigh the most: there 8 pixels give up to 0.15%.
+    private volatile double pyramidBlurMinSigma = 12;
+    public final void setPyramidBlurMinSigma(double newVal)
+    {
+        if (newVal < 2) throw new IllegalArgumentException("newVal must be greater or equal than 2");
+        pyramidBlurMinSigma = newVal;
+    }
+    // Images with at least this number of pixels are converted band by band by the cathodoluminescence correction,
+    // to bound the memory used by its intermediate images (see ComputeTiledCathodoLuminescenceCorrection).
+    private volatile long tiledConversionMinPixels = 100_000_000L;
+    public final void setTiledConversionMinPixels(long newVal)
+    {
+        if (newVal < 1) throw new IllegalArgumentException("newVal must be greater than 0");
+        tiledConversionMinPixels = newVal;
+    }
+    // Blur and precision modes not supported by the band by band conversion, already reported (see WarnUnsupportedTiledConversionModes)
+    private final Set<Enum<?>> reportedTiledConversionModes = ConcurrentHashMap.newKeySet();
+    // Number of image rows converted at a time by the band by band conversion
+    private volatile int tiledConversionBandRows = 512;
+    public final void setTiledConversionBandRows(int newVal)
+    {
+        if (newVal < 16) throw new IllegalArgumentException("newVal must be greater or equal than 16");
+        tiledConversionBandRows = newVal;
+    }
+    // Blur mode used by the conversions whose parameters do not specify a blur mode
+    private volatile BlurMode defaultBlurMode = BlurMode.EXACT;
+    public final BlurMode getDefaultBlurMode() { return defaultBlurMode; }
+    public final void setDefaultBlurMode(BlurMode newVal)
+    {
+        if (newVal == null) throw new IllegalArgumentException("newVal cannot be null");
+        defaultBlurMode = newVal;
+    }
 
     // png, bmp, jpg, jpeg, webp, tif, ppm, pnm: conversion supported
     // gif, jfif, pbm, pgm: conversion tested and not supported
@@ -64,7 +148,41 @@ public class ImageConverter
 
     public final String getDefaultOutputType() { return defaultOutputType; }
 
-    private final Map<ConversionType, ConversionCache> caches;
+    // Memory budget shared by the caches of all the sessions
+    private final ConversionCacheBudget cacheBudget = new ConversionCacheBudget(ConversionCacheBudget.getDefaultMaxBytes());
+    public final long getCacheMemoryBudget() { return cacheBudget.getMaxBytes(); }
+    /**
+     * Sets the maximum memory used by the cached images of all the sessions (the default value is taken from the
+     * "ibbic.cache.maxMegabytes" system property, or it is 1024 megabytes).
+     * The budget can be exceeded during a conversion, as the images in use are never released:
+     * the least valuable cached images are released at the end of each conversion.
+     */
+    public final void setCacheMemoryBudget(long maxBytes)
+    {
+        cacheBudget.setMaxBytes(maxBytes);
+    }
+    public final long getCacheMemoryUsage() { return cacheBudget.getUsedBytes(); }
+
+    // Metrics of the conversions of all the sessions
+    private final ConversionMetrics metrics = new ConversionMetrics();
+    public final ConversionMetrics getMetrics() { return metrics; }
+
+    // Buffers reused by the conversions of all the sessions
+    private final MatPool matPool = new MatPool(MatPool.DEFAULT_MAX_IDLE_BYTES, metrics);
+    public final long getMatPoolMaxIdleBytes() { return matPool.getMaxIdleBytes(); }
+    /**
+     * Sets the maximum memory kept by the buffer pool for the next conversions, besides the cached images
+     * (the default value is 256 megabytes). With 0, the buffers are never reused.
+     */
+    public final void setMatPoolMaxIdleBytes(long maxIdleBytes)
+    {
+        matPool.setMaxIdleBytes(maxIdleBytes);
+    }
+    public final long getMatPoolIdleBytes() { return matPool.getIdleBytes(); }
+    final MatPool getMatPool() { return matPool; } // for the benchmarks
+
+    // Session used by the methods that do not take a session as parameter
+    private final ConversionSession defaultSession;
 
     public ImageConverter()
     {
@@ -80,12 +198,16 @@ public class ImageConverter
             outputFileFilters[i] = "*." + outputSupportedTypes[i];
         }
 
-        Map<ConversionType, ConversionCache> tmpCaches = new HashMap<>();
-        for (ConversionType key : ConversionType.values())
-        {
-            tmpCaches.put(key, new ConversionCache());
-        }
-        caches = Collections.unmodifiableMap(tmpCaches);
+        defaultSession = new ConversionSession(cacheBudget, matPool, metrics);
+    }
+
+    /**
+     * Creates a new session, with its own conversion caches.
+     * Conversions of different sessions can run at the same time on different threads.
+     */
+    public final ConversionSession createSession()
+    {
+        return new ConversionSession(cacheBudget, matPool, metrics);
     }
 
     public final boolean isTypeSupportedAsInput (String type)
@@ -114,21 +236,40 @@ public class ImageConverter
 
     public final void clearConvertionCache (ConversionType conversionType)
     {
-        caches.get(conversionType).clear();
+        defaultSession.clearConversionCache(conversionType);
     }
     public final void clearAllConvertionCaches ()
     {
-        for (ConversionType key : caches.keySet())
-        {
-            caches.get(key).clear();
-        }
+        defaultSession.clearAllConversionCaches();
+    }
+
+    public final ByteArrayInputStream convertImageInMemory (String srcImageFileName, ConversionType conversionType, String outputType, ConversionParameters params, int desiredWidth, int desiredHeight) throws IllegalArgumentException
+    {
+        return convertImageInMemory(defaultSession, srcImageFileName, conversionType, outputType, params, desiredWidth, desiredHeight);
     }
 
-    public final ByteArrayInputStream convertImageInMemory (String srcImageFileName, ConversionType conversionType, String outputType, Map<ConversionParameter, String> params, int desiredWidth, int desiredHeight) throws IllegalArgumentException
+    public final ByteArrayInputStream convertImageInMemory (ConversionSession session, String srcImageFileName, ConversionType conversionType, String outputType, ConversionParameters params, int desiredWidth, int desiredHeight) throws IllegalArgumentException
     {
         if (isTypeSupportedAsOutput(outputType))
         {
-            return internalConvertImageInMemory(srcImageFileName, conversionType, outputType, params, desiredWidth, desiredHeight);
+            // The session caches are not thread-safe: conversions of the same session must not overlap
+            synchronized (session)
+            {
+                session.beginConversion();
+                ConversionEvent conversionEvent = metrics.beginConversion(srcImageFileName, conversionType, outputType);
+                ByteArrayInputStream inputStream = null;
+                try
+                {
+                    inputStream = internalConvertImageInMemory(session, srcImageFileName, conversionType, outputType, params, desiredWidth, desiredHeight);
+                    return inputStream;
+                }
+                finally
+                {
+                    metrics.endConversion(conversionEvent, inputStream != null, session.hasComputedImages());
+                    // the result has been copied in the returned stream, so no cached image is in use here
+                    session.trimCaches();
+                }
+            }
         }
         else
         {
@@ -136,23 +277,152 @@ public class ImageConverter
         }
     }
 
-    private final ByteArrayInputStream internalConvertImageInMemory (String srcImageFileName, ConversionType conversionType, String outputType, Map<ConversionParameter, String> params, int desiredWidth, int desiredHeight)
+    /**
+     * Converts an image and saves it in a new file, encoded in the given output type.
+     * The encoded image is written to the file directly from the encoder buffer, in chunks of WRITE_CHUNK_BYTES bytes,
+     * so it is never copied as a whole; it is not cached either, as a saved image is not used again.
+     * @return false if the source file cannot be read: in this case the destination file is not created.
+     * @throws IOException If the destination file already exists or it cannot be written.
+     * The destination file could have been partially written.
+     */
+    public final boolean convertImageToFile (ConversionSession session, String srcImageFileName, ConversionType conversionType, String outputType, ConversionParameters params, int desiredWidth, int desiredHeight, Path dstPath) throws IOException, IllegalArgumentException
     {
-        ByteArrayInputStream inputStream = null;
+        if (!isTypeSupportedAsOutput(outputType))
+        {
+            throw new IllegalArgumentException("\"" + outputType + "\" is not a valid output type. Please, use one any of the following types: " + Arrays.toString(getSupportedOutputTypes()));
+        }
+
+        ConversionEvent conversionEvent = metrics.beginConversion(srcImageFileName, conversionType, outputType);
+        boolean converted = false;
+        boolean computed = false;
+        MatOfByte encodedImageBytes = new MatOfByte();
+        try
+        {
+            // The session caches are not thread-safe: conversions of the same session must not overlap
+            synchronized (session)
+            {
+                session.beginConversion();
+                try
+                {
+                    Mat source = PrepareSource(session, srcImageFileName, conversionType, desiredWidth, desiredHeight);
+                    if (source.empty())
+                    {
+                        return false;
+                    }
+                    Mat conversionOutput = ConvertMat(session, source, conversionType, params);
+                    EncodeImage(conversionOutput, outputType, encodedImageBytes);
+                }
+                catch (CvException e)
+                {
+                    // caused by error: (-215:Assertion failed) !image.empty() in function 'cv::imencode'
+                    // the file cannot be read
+                    return false;
+                }
+                finally
+                {
+                    computed = session.hasComputedImages();
+                    // the encoded image is not cached, so no cached image is in use here
+                    session.trimCaches();
+                }
+            }
 
-        ConversionCache cache = caches.get(conversionType);
+            if (encodedImageBytes.empty())
+            {
+                return false;
+            }
+            ConversionStageEvent writeEvent = metrics.beginStage(ConversionMetrics.Stage.WRITE);
+            try (FileChannel channel = FileChannel.open(dstPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+            {
+                WriteEncodedImage(encodedImageBytes, channel);
+            }
+            metrics.endStage(writeEvent, 0, 0, encodedImageBytes.total());
+            metrics.addBytesWritten(encodedImageBytes.total());
+            converted = true;
+            return true;
+        }
+        finally
+        {
+            encodedImageBytes.release();
+            metrics.endConversion(conversionEvent, converted, computed);
+        }
+    }
 
-        if (!cache.isSameFile(srcImageFileName))
+    // The encoded image is a N x 1 byte matrix, allocated by the encoder
+    private final void EncodeImage (Mat image, String outputType, MatOfByte encodedImageBytes)
+    {
+        ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.ENCODE);
+        Imgcodecs.imencode("." + outputType, image, encodedImageBytes);
+        metrics.endStage(event, image.cols(), image.rows(), encodedImageBytes.total());
+        metrics.addBytesEncoded(encodedImageBytes.total());
+        metrics.addNativeBytesAllocated(encodedImageBytes.total());
+    }
+
+    // Copies the encoded bytes to the channel through a single chunk buffer (encodedImageBytes is a N x 1 byte matrix)
+    private static void WriteEncodedImage (MatOfByte encodedImageBytes, WritableByteChannel channel) throws IOException
+    {
+        int bytesCount = (int)encodedImageBytes.total();
+        byte[] chunk = new byte[Math.min(bytesCount, WRITE_CHUNK_BYTES)];
+        ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
+        for (int offset = 0; offset < bytesCount; offset += chunk.length)
         {
-            cache.init(srcImageFileName);
+            int chunkBytesCount = Math.min(chunk.length, bytesCount - offset);
+            encodedImageBytes.get(offset, 0, chunk);
+            chunkBuffer.clear();
+            chunkBuffer.limit(chunkBytesCount);
+            while (chunkBuffer.hasRemaining())
+            {
+                channel.write(chunkBuffer);
+            }
         }
+    }
 
-        // This could clear the whole cache, if the desired size is not compatible with the cached images
-        Mat source = ComputeResizedSource (srcImageFileName, cache, desiredWidth, desiredHeight);
+    /**
+     * Converts an image like convertImageInMemory, but returns its pixels instead of an encoded image, so the image
+     * is neither compressed nor decompressed. This is the fastest way to show a preview of the conversion.
+     * @return The converted pixels, or null if the file cannot be read.
+     */
+    public final ConvertedPixels convertImageToPixels (ConversionSession session, String srcImageFileName, ConversionType conversionType, ConversionParameters params, int desiredWidth, int desiredHeight)
+    {
+        // The session caches are not thread-safe: conversions of the same session must not overlap
+        synchronized (session)
+        {
+            session.beginConversion();
+            ConversionEvent conversionEvent = metrics.beginConversion(srcImageFileName, conversionType, null);
+            ConvertedPixels pixels = null;
+            try
+            {
+                Mat source = PrepareSource(session, srcImageFileName, conversionType, desiredWidth, desiredHeight);
+                if (source.empty())
+                {
+                    return null;
+                }
+
+                // the result image is cached inside the ConvertMat method, so only the pixels copy is computed again
+                // when the same image is requested again
+                Mat conversionOutput = ConvertMat(session, source, conversionType, params);
+                pixels = ConvertToPixels(conversionOutput);
+                return pixels;
+            }
+            finally
+            {
+                metrics.endConversion(conversionEvent, pixels != null, session.hasComputedImages());
+                // the pixels have been copied in the returned array, so no cached image is in use here
+                session.trimCaches();
+            }
+        }
+    }
+
+    private final ByteArrayInputStream internalConvertImageInMemory (ConversionSession session, String srcImageFileName, ConversionType conversionType, String outputType, ConversionParameters params, int desiredWidth, int desiredHeight)
+    {
+        ByteArrayInputStream inputStream = null;
+
+        Mat source = PrepareSource(session, srcImageFileName, conversionType, desiredWidth, desiredHeight);
+        ConversionCache cache = session.getCache(conversionType);
+        params = ResolveParameters(params);
 
         if (!source.empty())
         {
-            if (cache.isSameFile(srcImageFileName) && cache.areSameParameters(params) && cache.containsEncodedImage(outputType))
+            if (cache.isSameFile(srcImageFileName) && cache.containsEncodedImage(outputType, params))
             {
                 MatOfByte encodedImageBytes = cache.getEncodedImage(outputType);
                 inputStream = new ByteArrayInputStream(encodedImageBytes.toArray());
@@ -160,14 +430,14 @@ public class ImageConverter
             else
             {
                 // the result image is cached inside che ConvertMat method, so it is not necessary to handle another cached image here
-                Mat conversionOutput = ConvertMat(source, conversionType, params);
+                Mat conversionOutput = ConvertMat(session, source, conversionType, params);
 
                 MatOfByte encodedImageBytes = new MatOfByte();
                 try
                 {
-                    Imgcodecs.imencode("." + outputType, conversionOutput, encodedImageBytes);
+                    EncodeImage(conversionOutput, outputType, encodedImageBytes);
                     inputStream = new ByteArrayInputStream(encodedImageBytes.toArray());
-                    cache.cacheEncodedImage(outputType, encodedImageBytes);
+                    cache.cacheEncodedImage(outputType, encodedImageBytes, params);
                 }
                 catch (CvException e)
                 {
@@ -181,68 +451,106 @@ public class ImageConverter
         return inputStream;
     }
 
-    private final Mat ComputeResizedSource (String srcImageFileName, ConversionCache cache, int desiredWidth, int desiredHeight)
+    // Selects the caches of the file and returns the resized source image (empty if the file cannot be read)
+    private final Mat PrepareSource (ConversionSession session, String srcImageFileName, ConversionType conversionType, int desiredWidth, int desiredHeight)
     {
-        Mat srcImage;
+        // The caches of the file are kept until the file changes, so going back to a recent file reuses its cached images
+        session.selectFile(srcImageFileName);
+        ConversionCache sharedCache = session.getSharedCache();
+        if (!sharedCache.isSameFile(srcImageFileName))
+        {
+            sharedCache.init(srcImageFileName);
+        }
+
+        // This could clear all the caches of the file, if the desired size is not compatible with the cached images
+        Mat source = ComputeResizedSource (srcImageFileName, session, desiredWidth, desiredHeight);
+
+        ConversionCache cache = session.getCache(conversionType);
+        if (!cache.isSameFile(srcImageFileName))
+        {
+            cache.init(srcImageFileName);
+        }
+        return source;
+    }
+
+    private final ConvertedPixels ConvertToPixels (Mat image)
+    {
+        Mat bgraImage = new Mat();
+        Mat image8U = image;
+        if (image.depth() != CvType.CV_8U)
+        {
+            image8U = new Mat();
+            image.convertTo(image8U, CvType.CV_8U);
+        }
+        switch (image8U.channels())
+        {
+            case 1:
+                Imgproc.cvtColor(image8U, bgraImage, Imgproc.COLOR_GRAY2BGRA);
+                break;
+            case 3:
+                Imgproc.cvtColor(image8U, bgraImage, Imgproc.COLOR_BGR2BGRA);
+                break;
+            default:
+                image8U.copyTo(bgraImage);
+                break;
+        }
+        if (image8U != image)
+        {
+            image8U.release();
+        }
+
+        byte[] bgraPixels = new byte[(int)(bgraImage.total() * bgraImage.elemSize())];
+        bgraImage.get(0, 0, bgraPixels);
+        ConvertedPixels pixels = new ConvertedPixels(bgraImage.cols(), bgraImage.rows(), bgraPixels);
+        bgraImage.release();
+        return pixels;
+    }
+
+    final Mat ComputeResizedSource (String srcImageFileName, ConversionSession session, int desiredWidth, int desiredHeight)
+    {
+        // The source is decoded and resized once for all the conversion types
+        ConversionCache cache = session.getSharedCache();
+
+        // The source image could have been released to respect the memory budget, while the resized image is still cached:
+        // the file is decoded again only if the resized image must be computed again
+        Mat srcImage = null;
         if (cache.containsImage(SRC_IMAGE_CACHE_KEY))
         {
             srcImage = cache.getImage(SRC_IMAGE_CACHE_KEY);
         }
-        else
+        else if (cache.getSrcImageSize() == null)
         {
-            srcImage = Imgcodecs.imread(srcImageFileName);
-            cache.cacheImage(SRC_IMAGE_CACHE_KEY, srcImage);
+            srcImage = DecodeSource(srcImageFileName, cache, desiredWidth, desiredHeight);
         }
+        Size srcImageSize = cache.getSrcImageSize();
 
-        if (srcImage.empty())
+        if (srcImageSize.width <= 0 || srcImageSize.height <= 0)
         {
-            return srcImage;
+            return (srcImage != null) ? srcImage : new Mat();
         }
+        int srcImageWidth = (int)srcImageSize.width;
+        int srcImageHeight = (int)srcImageSize.height;
 
         // Resize the image to its desired size before the conversion.
         // This allows faster conversions where the desired result size is lower than the original image
 
         // Sanitize the desired image size
         // If parameters are missing or not valid, the image should not be resized
-        boolean shouldResizeImage = ((desiredWidth > 0 && desiredHeight > 0) && (desiredWidth < srcImage.width() || desiredHeight < srcImage.height()));
-        if (shouldResizeImage)
-        {
-            // Correct the desired size. As an image size increment is not allowed,
-            // the desired size should always be lower or equal than the original image size
-            desiredWidth = Math.min(desiredWidth, srcImage.width());
-            desiredHeight = Math.min(desiredHeight, srcImage.height());
-
-            //Correct the desired size to keep the original image aspect ratio
-            double originalImageRatio = srcImage.width()/((double)srcImage.height());
-            // r = w / h   ->   w = h * r  ->   h = w / r
-            if (originalImageRatio >= 1.0)
-            {
-                // The image extends in horizontal direction. Keep the width and recompute the height.
-                desiredHeight = (int)(desiredWidth / originalImageRatio);
-            }
-            else
-            {
-                // The image extends in vertical direction. Keep the height and recompute the width.
-                desiredWidth = (int)(desiredHeight * originalImageRatio);
-            }
-        }
-        else
-        {
-            // Correct the desired size.
-            // If the image should not be resized, its desired size is equal to its original size.
-            desiredWidth = srcImage.width();
-            desiredHeight = srcImage.height();
-        }
+        Size correctedDesiredSize = ComputeDesiredSize(srcImageWidth, srcImageHeight, desiredWidth, desiredHeight);
+        desiredWidth = (int)correctedDesiredSize.width;
+        desiredHeight = (int)correctedDesiredSize.height;
 
         // See if there is already a cached resized image, and if there is, check if its size is compatible with the desired one
 
+        // The size of the resized image is kept even if the image has been released to respect the memory budget,
+        // because the other cached images have been computed from an image of that size
         Mat resizedImage = null;
-        if (cache.containsImage(RESIZED_IMAGE_CACHE_KEY))
+        Size cachedImageSize = cache.getResizedImageSize();
+        if (cachedImageSize != null)
         {
-            resizedImage = cache.getImage(RESIZED_IMAGE_CACHE_KEY);
             // Validate if the cached image is still valid for the currently requested size
-            int cachedImageWidth = resizedImage.width();
-            int cachedImageHeight = resizedImage.height();
+            int cachedImageWidth = (int)cachedImageSize.width;
+            int cachedImageHeight = (int)cachedImageSize.height;
             if (desiredWidth/((double)cachedImageWidth) > cachedImageSizeRatioHigherTolerance || desiredHeight/((double)cachedImageHeight) > cachedImageSizeRatioHigherTolerance // Cond_1
                     || desiredWidth/((double)cachedImageWidth) < cachedImageSizeRatioLowerTolerance || desiredHeight/((double)cachedImageHeight) < cachedImageSizeRatioLowerTolerance) // Cond_2
             {
@@ -254,27 +562,37 @@ public class ImageConverter
                 // the cached images can be cleared to allow the conversion methods to cache smaller images,
                 // which should result in faster conversions.
 
-                // Clear all the cache, but maintain the source image
+                // Clear all the caches of the file (every cached image depends on the resized image), but maintain the source image
 
                 resizedImage = null; // just nullify the handle. The image memory is released when the cache is cleared.
 
-                if (cache.containsImage(SRC_IMAGE_CACHE_KEY))
+                if (srcImage != null)
                 {
-                    // Create a deep copy of the old image because the cached image memory is released upon cache clearing.
-                    // srcImage will reference the new image because the old one, which is stored in cache,
-                    // will be released when the cache is cleared.
-                    Mat oldSrcImage = srcImage;
-                    srcImage = Mat.zeros(srcImage.rows(), srcImage.cols(), srcImage.type());
-                    oldSrcImage.copyTo(srcImage);
+                    // The cached image is released upon cache clearing: a reference is kept, so its memory is not
+                    // recycled and it can be cached again without copying it.
+                    matPool.retain(srcImage);
                 }
 
-                cache.clear(); // clear the cache, releasing images memory
+                int srcImageDecodeScale = cache.getSrcImageDecodeScale();
+                session.clearCurrentFileCaches(); // clear the caches of the file, releasing images memory
+                cache.init(srcImageFileName);
+                cache.setSrcImageSize(srcImageSize);
 
-                // if this is false, there is a problem in code,
-                // because the image memory has been released and it shouldn't have been.
-                assert(!srcImage.empty());
+                if (srcImage != null)
+                {
+                    // if this is false, there is a problem in code,
+                    // because the image memory has been released and it shouldn't have been.
+                    assert(!srcImage.empty());
 
-                cache.cacheImage(SRC_IMAGE_CACHE_KEY, srcImage); // cache again the source image
+                    cache.cacheImage(SRC_IMAGE_CACHE_KEY, srcImage, ConversionCache.RecomputeCost.HIGH); // cache again the source image, with the kept reference
+                    cache.setSrcImageDecodeScale(srcImageDecodeScale);
+                }
+            }
+            else
+            {
+                // If the cached image has been released, it is computed again with the same size
+                desiredWidth = cachedImageWidth;
+                desiredHeight = cachedImageHeight;
             }
         }
 
@@ -285,24 +603,195 @@ public class ImageConverter
         }
         else
         {
+            // The JPEG decoders of different scales give slightly different pixels, so the source is always decoded at
+            // the scale chosen for the resized size: a cached source decoded at another scale (e.g. for another size,
+            // or for a conversion without a desired size) is decoded again, so the resized image does not depend on
+            // the previous conversions
+            if (srcImage == null || cache.getSrcImageDecodeScale() != ComputeDecodeScale(srcImageFileName, desiredWidth, desiredHeight))
+            {
+                srcImage = DecodeSource(srcImageFileName, cache, desiredWidth, desiredHeight);
+            }
             // rows = desiredHeight; cols = desiredWidth
-            resizedImage = Mat.zeros(desiredHeight, desiredWidth, srcImage.type());
+            ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.RESIZE);
+            resizedImage = matPool.acquire(desiredHeight, desiredWidth, srcImage.type());
             // fx and fy are 0 because the size is taken from the size parameter.
             // The interpolation is INTER_AREA because, according to the documentation, it the best to shrink an image.
             // (as the resized image is always smaller than the original image, the operation is always a shrinking)
             Imgproc.resize(srcImage, resizedImage, resizedImage.size(), 0, 0, Imgproc.INTER_AREA);
+            metrics.endStage(event, resizedImage);
             cache.cacheImage(RESIZED_IMAGE_CACHE_KEY, resizedImage);
+            cache.setResizedImageSize(resizedImage.size());
         }
 
         return resizedImage;
     }
 
-    private final Mat ConvertMat (Mat source, ConversionType conversionType, Map<ConversionParameter, String> params)
+    /**
+     * @return The size of the image resized to the desired size. The image is never enlarged, and its aspect ratio
+     * is kept. If the desired size is not valid, the image should not be resized, so its original size is returned.
+     */
+    private static Size ComputeDesiredSize (int srcImageWidth, int srcImageHeight, int desiredWidth, int desiredHeight)
+    {
+        boolean shouldResizeImage = ((desiredWidth > 0 && desiredHeight > 0) && (desiredWidth < srcImageWidth || desiredHeight < srcImageHeight));
+        if (shouldResizeImage)
+        {
+            // Correct the desired size. As an image size increment is not allowed,
+            // the desired size should always be lower or equal than the original image size
+            desiredWidth = Math.min(desiredWidth, srcImageWidth);
+            desiredHeight = Math.min(desiredHeight, srcImageHeight);
+
+            //Correct the desired size to keep the original image aspect ratio
+            double originalImageRatio = srcImageWidth/((double)srcImageHeight);
+            // r = w / h   ->   w = h * r  ->   h = w / r
+            if (originalImageRatio >= 1.0)
+            {
+                // The image extends in horizontal direction. Keep the width and recompute the height.
+                desiredHeight = (int)(desiredWidth / originalImageRatio);
+            }
+            else
+            {
+                // The image extends in vertical direction. Keep the height and recompute the width.
+                desiredWidth = (int)(desiredHeight * originalImageRatio);
+            }
+        }
+        else
+        {
+            // Correct the desired size.
+            // If the image should not be resized, its desired size is equal to its original size.
+            desiredWidth = srcImageWidth;
+            desiredHeight = srcImageHeight;
+        }
+        return new Size(desiredWidth, desiredHeight);
+    }
+
+    /**
+     * Decodes the source image and caches it. The JPEG files are decoded at a reduced size (1/2, 1/4 or 1/8) when
+     * it is still greater or equal than the desired size: the JPEG decoder can skip most of the work in this case,
+     * so the previews of big photos are decoded much faster. The other formats are always decoded at their full size,
+     * as OpenCV would decode them at their full size anyway (and then shrink them with a worse interpolation).
+     * The full size is always decoded for the conversions without a desired size (saved images and 1:1 previews).
+     * The cached source size is the full size of the image, even if it has been decoded at a reduced size.
+     */
+    final Mat DecodeSource (String srcImageFileName, ConversionCache cache, int desiredWidth, int desiredHeight)
+    {
+        Size jpegSize = (desiredWidth > 0 && desiredHeight > 0) ? ReadJpegSize(srcImageFileName) : null;
+        int scale = (jpegSize != null) ? ChooseReducedDecodeScale((int)jpegSize.width, (int)jpegSize.height, desiredWidth, desiredHeight) : 1;
+
+        ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.DECODE);
+        Mat srcImage;
+        Size srcImageSize;
+        if (scale > 1)
+        {
+            int flags = (scale == 8) ? Imgcodecs.IMREAD_REDUCED_COLOR_8 : (scale == 4) ? Imgcodecs.IMREAD_REDUCED_COLOR_4 : Imgcodecs.IMREAD_REDUCED_COLOR_2;
+            srcImage = Imgcodecs.imread(srcImageFileName, flags);
+            // The decoder rotates the image according to its EXIF orientation, while the JPEG header size is not rotated
+            boolean rotated = (srcImage.cols() != ReducedDecodeLength((int)jpegSize.width, scale));
+            srcImageSize = srcImage.empty() ? srcImage.size() : rotated ? new Size(jpegSize.height, jpegSize.width) : jpegSize;
+        }
+        else
+        {
+            srcImage = Imgcodecs.imread(srcImageFileName);
+            srcImageSize = srcImage.size();
+        }
+        metrics.endStage(event, srcImage);
+        metrics.addBytesDecoded(new File(srcImageFileName).length());
+        metrics.addNativeBytesAllocated(srcImage.total() * srcImage.elemSize());
+        cache.cacheImage(SRC_IMAGE_CACHE_KEY, srcImage, ConversionCache.RecomputeCost.HIGH);
+        cache.setSrcImageSize(srcImageSize);
+        cache.setSrcImageDecodeScale(scale);
+        return srcImage;
+    }
+
+    // The scale at which DecodeSource decodes the file for the desired size
+    private static int ComputeDecodeScale (String srcImageFileName, int desiredWidth, int desiredHeight)
+    {
+        Size jpegSize = (desiredWidth > 0 && desiredHeight > 0) ? ReadJpegSize(srcImageFileName) : null;
+        return (jpegSize != null) ? ChooseReducedDecodeScale((int)jpegSize.width, (int)jpegSize.height, desiredWidth, desiredHeight) : 1;
+    }
+
+    // The greatest reduced decode scale whose decoded image is not smaller than the desired size, or 1.
+    // As the image orientation is not known before the decoding, the scale must be valid for both the orientations.
+    private static int ChooseReducedDecodeScale (int jpegWidth, int jpegHeight, int desiredWidth, int desiredHeight)
+    {
+        Size desiredSize = ComputeDesiredSize(jpegWidth, jpegHeight, desiredWidth, desiredHeight);
+        Size rotatedDesiredSize = ComputeDesiredSize(jpegHeight, jpegWidth, desiredWidth, desiredHeight);
+        for (int scale : REDUCED_DECODE_SCALES)
+        {
+            int reducedWidth = ReducedDecodeLength(jpegWidth, scale);
+            int reducedHeight = ReducedDecodeLength(jpegHeight, scale);
+            if (reducedWidth >= desiredSize.width && reducedHeight >= desiredSize.height
+                    && reducedHeight >= rotatedDesiredSize.width && reducedWidth >= rotatedDesiredSize.height)
+            {
+                return scale;
+            }
+        }
+        return 1;
+    }
+
+    // The JPEG decoder rounds the reduced sizes up
+    private static int ReducedDecodeLength (int length, int scale)
+    {
+        return (length + scale - 1) / scale;
+    }
+
+    /**
+     * Reads the image size from the frame header of a JPEG file, without decoding the image.
+     * @return The image size, or null if the file is not a JPEG file or its header cannot be read.
+     */
+    private static Size ReadJpegSize (String srcImageFileName)
+    {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(srcImageFileName))))
+        {
+            if (input.readUnsignedShort() != 0xFFD8) // SOI marker
+            {
+                return null;
+            }
+            while (true)
+            {
+                if (input.readUnsignedByte() != 0xFF)
+                {
+                    return null;
+                }
+                int marker = input.readUnsignedByte();
+                while (marker == 0xFF) // fill bytes
+                {
+                    marker = input.readUnsignedByte();
+                }
+                if (marker == 0xD9 || marker == 0xDA) // EOI or SOS marker before the frame header
+                {
+                    return null;
+                }
+                if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) // markers without a segment
+                {
+                    continue;
+                }
+                int segmentLength = input.readUnsignedShort();
+                // SOF0-SOF15 markers, except DHT (0xC4), JPG (0xC8) and DAC (0xCC)
+                if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC)
+                {
+                    input.readUnsignedByte(); // sample precision
+                    int height = input.readUnsignedShort();
+                    int width = input.readUnsignedShort();
+                    return (width > 0 && height > 0) ? new Size(width, height) : null;
+                }
+                input.skipNBytes(segmentLength - 2);
+            }
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    // The parameters with the converter default blur mode, if they do not specify one
+    private final ConversionParameters ResolveParameters (ConversionParameters params)
     {
-        double sigma = params.containsKey(ConversionParameter.PARAM_SIGMA) ? Double.parseDouble(params.get(ConversionParameter.PARAM_SIGMA)) : 0.0;
-        boolean performNoiseReduction = params.containsKey(ConversionParameter.NOISE_REDUCTION_ACTIVATED) && Boolean.parseBoolean(params.get(ConversionParameter.NOISE_REDUCTION_ACTIVATED));
-        boolean maximizeContrast = params.containsKey(ConversionParameter.MAX_CONTRAST_ACTIVATED) && Boolean.parseBoolean(params.get(ConversionParameter.MAX_CONTRAST_ACTIVATED));
-        double thresholdTestValue = params.containsKey(ConversionParameter.THRESHOLD_TEST_VALUE) ? Double.parseDouble(params.get(ConversionParameter.THRESHOLD_TEST_VALUE)) : 0.0;
+        return (params.getBlurMode() != null) ? params : new ConversionParameters.Builder(params).setBlurMode(defaultBlurMode).build();
+    }
+
+    final Mat ConvertMat (ConversionSession session, Mat source, ConversionType conversionType, ConversionParameters params)
+    {
+        params = ResolveParameters(params);
 
         if (source.empty())
         {
@@ -312,97 +801,85 @@ public class ImageConverter
         switch (conversionType)
         {
             case GREYSCALE:
-                return ConvertToGreyScale(source);
+                return ConvertToGreyScale(session, source);
             case CATHODO_LUMINESCENCE_CORRECTION:
-                return PerformCathodoLuminescenceCorrection(source, sigma, performNoiseReduction, maximizeContrast);
+                return PerformCathodoLuminescenceCorrection(session, source, params);
             case BLURRED_FILTER:
-                return PerformCathodoLuminescenceCorrectionBlur(source, sigma);
+                return PerformCathodoLuminescenceCorrectionBlur(session, source, params);
             case THRESHOLD_TEST:
-                return PerformThresholdTest(source, thresholdTestValue);
+                return PerformThresholdTest(session, source, params);
             case CATHODO_LUMINESCENCE_CORRECTION_THRESHOLD_TEST:
-                return PerformCathodoLuminescenceCorrectionAndThresholdTest(source, sigma, performNoiseReduction, maximizeContrast, thresholdTestValue);
+                return PerformCathodoLuminescenceCorrectionAndThresholdTest(session, source, params);
             case NONE:
             default:
-                return CreateImageDuplicate(source);
+                return CreateImageDuplicate(session, source);
         }
     }
 
-    private final Mat CreateImageDuplicate(Mat source)
+    private final Mat CreateImageDuplicate(ConversionSession session, Mat source)
     {
-        ConversionCache cache = caches.get(ConversionType.NONE);
+        ConversionCache cache = session.getCache(ConversionType.NONE);
         if (cache.containsImage("ImageDuplicate_result"))
         {
             return cache.getImage("ImageDuplicate_result");
         }
 
-        Mat result = Mat.zeros(source.rows(), source.cols(), source.type());
+        Mat result = matPool.acquire(source.rows(), source.cols(), source.type());
         source.copyTo(result);
-        cache.cacheImage("ImageDuplicate_result", result);
+        cache.cacheImage("ImageDuplicate_result", result, ConversionCache.RecomputeCost.LOW);
         return result;
     }
 
-    private final Mat ConvertToGreyScale (Mat source)
+    private final Mat ConvertToGreyScale (ConversionSession session, Mat source)
     {
-        ConversionCache cache = caches.get(ConversionType.GREYSCALE);
+        ConversionCache cache = session.getCache(ConversionType.GREYSCALE);
         if (cache.containsImage("ConvertToGreyScale_result"))
         {
             return cache.getImage("ConvertToGreyScale_result");
         }
 
         // Convert in greyscale
-        Mat result = Mat.zeros(source.rows(), source.cols(), CvType.CV_8UC1);
+        Mat result = matPool.acquire(source.rows(), source.cols(), CvType.CV_8UC1);
         Imgproc.cvtColor(source, result, Imgproc.COLOR_RGB2GRAY);
-        cache.cacheImage("ConvertToGreyScale_result", result);
+        cache.cacheImage("ConvertToGreyScale_result", result, ConversionCache.RecomputeCost.LOW);
 
         return result;
     }
 
-    private final Mat PerformCathodoLuminescenceCorrection (Mat source, double sigmaMultiplier, boolean performNoiseReduction, boolean maximizeContrast)
+    private final Mat PerformCathodoLuminescenceCorrection (ConversionSession session, Mat source, ConversionParameters params)
     {
-        ConversionCache cache = caches.get(ConversionType.CATHODO_LUMINESCENCE_CORRECTION);
-        CheckCathodoLuminescenceCorrectionCache(cache, sigmaMultiplier, performNoiseReduction, maximizeContrast);
-        return InternalPerformCathodoLuminescenceCorrection(cache, source, sigmaMultiplier, performNoiseReduction, maximizeContrast);
+        ConversionCache cache = session.getCache(ConversionType.CATHODO_LUMINESCENCE_CORRECTION);
+        return InternalPerformCathodoLuminescenceCorrection(session, cache, source, params);
     }
 
-    private boolean CheckCathodoLuminescenceCorrectionCache(ConversionCache cache, double sigmaMultiplier, boolean performNoiseReduction, boolean maximizeContrast)
+    // The images that depend on the parameters are cached with them, so the images of several recent parameters are
+    // kept at the same time (see ConversionCache.cacheImage), and going back to them does not compute them again.
+    private final Mat InternalPerformCathodoLuminescenceCorrection (ConversionSession session, ConversionCache cache, Mat source, ConversionParameters params)
     {
-        boolean changedSigma = (!cache.containsParameter(ConversionParameter.PARAM_SIGMA) || !cache.getParameter(ConversionParameter.PARAM_SIGMA).equals(Double.toString(sigmaMultiplier)));
-        boolean changedNoiseReduction = (!cache.containsParameter(ConversionParameter.NOISE_REDUCTION_ACTIVATED) || !cache.getParameter(ConversionParameter.NOISE_REDUCTION_ACTIVATED).equals(Boolean.toString(performNoiseReduction)));
-        boolean changedMaximizeContrast = (!cache.containsParameter(ConversionParameter.MAX_CONTRAST_ACTIVATED) || !cache.getParameter(ConversionParameter.MAX_CONTRAST_ACTIVATED).equals(Boolean.toString(maximizeContrast)));
-
-        if (changedSigma)
-            cache.clearCachedImage("CathodoLuminescenceCorrection_vChannelDivided_0_255");
-
-        if (changedSigma || changedNoiseReduction)
-            cache.clearCachedImage("CathodoLuminescenceCorrection_vChannelNew_0_255");
-
-        if (changedSigma || changedNoiseReduction || changedMaximizeContrast)
-            cache.clearCachedImage("CathodoLuminescenceCorrection_vChannel_CorrectGamma");
-
-        if (changedSigma || changedNoiseReduction || changedMaximizeContrast)
-            cache.clearCachedImage("CathodoLuminescenceCorrection_result");
-
-        // Uncomment to debug conversion parameters
-        // System.out.println(cache.params);
-        // System.out.println("sigmaMultiplier " + sigmaMultiplier);
-        // System.out.println("performNoiseReduction " + performNoiseReduction);
-        // System.out.println("maximizeContrast " + maximizeContrast);
-        // System.out.println("---------------");
+        double sigmaMultiplier = params.getSigma();
+        boolean performNoiseReduction = params.isNoiseReductionActivated();
+        boolean maximizeContrast = params.isMaxContrastActivated();
 
-        return changedSigma || changedNoiseReduction || changedMaximizeContrast;
-    }
-
-    private final Mat InternalPerformCathodoLuminescenceCorrection (ConversionCache cache, Mat source, double sigmaMultiplier, boolean performNoiseReduction, boolean maximizeContrast)
-    {
-        CheckCathodoLuminescenceCorrectionCache(cache, sigmaMultiplier, performNoiseReduction, maximizeContrast);
+        if (cache.containsImage("CathodoLuminescenceCorrection_result", params))
+        {
+            return cache.getImage("CathodoLuminescenceCorrection_result", params);
+        }
 
-        cache.setParameter(ConversionParameter.PARAM_SIGMA, Double.toString(sigmaMultiplier));
-        cache.setParameter(ConversionParameter.NOISE_REDUCTION_ACTIVATED, Boolean.toString(performNoiseReduction));
-        cache.setParameter(ConversionParameter.MAX_CONTRAST_ACTIVATED, Boolean.toString(maximizeContrast));
+        if (source.total() >= tiledConversionMinPixels && source.channels() == 3)
+        {
+            // The intermediate images of a very big image would not fit in memory: the image is converted band by band,
+            // and only the result is cached
+            WarnUnsupportedTiledConversionModes(source, params);
+            ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.TILED_CORRECTION);
+            Mat result = ComputeTiledCathodoLuminescenceCorrection(source, sigmaMultiplier, performNoiseReduction, maximizeContrast);
+            metrics.endStage(event, result);
+            cache.cacheImage("CathodoLuminescenceCorrection_result", result, ConversionCache.RecomputeCost.MEDIUM, params, ConversionParameters::isSameCathodoLuminescenceCorrection);
+            return result;
+        }
 
-        if (cache.containsImage("CathodoLuminescenceCorrection_result"))
+        if (params.getPrecisionMode() == PrecisionMode.REDUCED)
         {
-            return cache.getImage("CathodoLuminescenceCorrection_result");
+            return InternalPerformReducedPrecisionCathodoLuminescenceCorrection(session, cache, source, params);
         }
 
         int nRows = source.rows();
@@ -411,7 +888,6 @@ public class ImageConverter
         // Extract channels
         Mat hChannel = null;
         Mat sChannel = null;
-        Mat vChannel = null;
         if (cache.containsImage("CathodoLuminescenceCorrection_hChannel"))
         {
             hChannel = cache.getImage("CathodoLuminescenceCorrection_hChannel");
@@ -420,42 +896,34 @@ public class ImageConverter
         {
             sChannel = cache.getImage("CathodoLuminescenceCorrection_sChannel");
         }
-        if (cache.containsImage("CathodoLuminescenceCorrection_vChannel"))
-        {
-            vChannel = cache.getImage("CathodoLuminescenceCorrection_vChannel");
-        }
-        if (hChannel == null || sChannel == null || vChannel == null)
+        if (hChannel == null || sChannel == null)
         {
             // Convert to three 32-bit float components ranging in [0-255]
-            Mat source32F = Mat.zeros(nRows, nCols, CvType.CV_32FC3);
+            Mat source32F = matPool.acquire(nRows, nCols, CvType.CV_32FC3);
             source.convertTo(source32F, CvType.CV_32FC3);
 
             // Convert in HSV (ranging in [0-255])
-            Mat hsvMat = Mat.zeros(nRows, nCols, CvType.CV_32FC3);
+            Mat hsvMat = matPool.acquire(nRows, nCols, CvType.CV_32FC3);
             Imgproc.cvtColor(source32F, hsvMat, Imgproc.COLOR_RGB2HSV);
-            source32F.release();
+            matPool.release(source32F);
 
             // Extract channels
             if (hChannel == null)
             {
-                hChannel = Mat.zeros(nRows, nCols, CvType.CV_32FC1);
+                hChannel = matPool.acquire(nRows, nCols, CvType.CV_32FC1);
                 Core.extractChannel(hsvMat, hChannel, 0);
                 cache.cacheImage("CathodoLuminescenceCorrection_hChannel", hChannel);
             }
             if (sChannel == null)
             {
-                sChannel = Mat.zeros(nRows, nCols, CvType.CV_32FC1);
+                sChannel = matPool.acquire(nRows, nCols, CvType.CV_32FC1);
                 Core.extractChannel(hsvMat, sChannel, 1);
                 cache.cacheImage("CathodoLuminescenceCorrection_sChannel", sChannel);
             }
-            if (vChannel == null)
-            {
-                vChannel = Mat.zeros(nRows, nCols, CvType.CV_32FC1);
-                Core.extractChannel(hsvMat, vChannel, 2);
-                cache.cacheImage("CathodoLuminescenceCorrection_vChannel", vChannel);
-            }
-            hsvMat.release();
+            matPool.release(hsvMat);
         }
+        // The V channel is the same of the HSV conversion, and it is shared with the other conversion types
+        Mat vChannel = GetSharedVChannel32F(session, source);
 
         Core.MinMaxLocResult vChannelMinMax;
         if (cache.containsMinMaxLocResult("CathodoLuminescenceCorrection_vChannelMinMax"))
@@ -469,19 +937,20 @@ public class ImageConverter
         }
 
         Mat vChannelDivided_0_255;
-        if (cache.containsImage("CathodoLuminescenceCorrection_vChannelDivided_0_255"))
+        if (cache.containsImage("CathodoLuminescenceCorrection_vChannelDivided_0_255", params))
         {
-            vChannelDivided_0_255 = cache.getImage("CathodoLuminescenceCorrection_vChannelDivided_0_255");
+            vChannelDivided_0_255 = cache.getImage("CathodoLuminescenceCorrection_vChannelDivided_0_255", params);
         }
         else
         {
             // Apply gaussian blur with a big sigma that is dependent on the image size
-            Mat blurred = ComputeBlurredVChannel(vChannel, sigmaMultiplier);
+            // (the blurred image is shared with the blurred filter preview, so it must not be modified or released)
+            Mat blurred = GetSharedBlurredVChannel(session, source, params);
 
             // Result of Brightness
-            Mat vChannelDivided = Mat.zeros(nRows, nCols, CvType.CV_32FC1);
+            ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.NORMALIZATION);
+            Mat vChannelDivided = matPool.acquire(nRows, nCols, CvType.CV_32FC1);
             Core.divide(vChannel, blurred, vChannelDivided);
-            blurred.release();
             Core.MinMaxLocResult vChannelDividedMinMax = Core.minMaxLoc(vChannelDivided);
             //System.out.println("vChannelDivided min = " + vChannelDividedMinMax.minVal);
             //System.out.println("vChannelDivided max = " + vChannelDividedMinMax.maxVal);
@@ -489,36 +958,38 @@ public class ImageConverter
             // As vChannelDivided has been computed with a division,
             // is has very low values, resulting in a pitch black image.
             // Here the image is remapped linearly in the 0-255 range to make it useful.
-            vChannelDivided_0_255 = Mat.zeros(nRows, nCols, CvType.CV_32FC1);
+            vChannelDivided_0_255 = matPool.acquire(nRows, nCols, CvType.CV_32FC1);
             Core.subtract(vChannelDivided, new Scalar(vChannelDividedMinMax.minVal), vChannelDivided_0_255);
-            vChannelDivided.release();
+            matPool.release(vChannelDivided);
             Core.multiply(vChannelDivided_0_255, new Scalar(255.0 / (vChannelDividedMinMax.maxVal-vChannelDividedMinMax.minVal)), vChannelDivided_0_255);
             Core.MinMaxLocResult vChannelDivided_0_255_MinMax = Core.minMaxLoc(vChannelDivided_0_255);
             //System.out.println("vChannelDivided_0_255 min = " + vChannelDivided_0_255_MinMax.minVal);
             //System.out.println("vChannelDivided_0_255 max = " + vChannelDivided_0_255_MinMax.maxVal);
+            metrics.endStage(event, vChannelDivided_0_255);
 
-            cache.cacheImage("CathodoLuminescenceCorrection_vChannelDivided_0_255", vChannelDivided_0_255);
+            cache.cacheImage("CathodoLuminescenceCorrection_vChannelDivided_0_255", vChannelDivided_0_255, ConversionCache.RecomputeCost.MEDIUM, params, ConversionParameters::isSameBlurredFilter);
         }
 
         Mat vChannelNew_0_255;
         // if the sigma parameter is changed, the vChannelNew must be computed again
-        if (cache.containsImage("CathodoLuminescenceCorrection_vChannelNew_0_255"))
+        if (cache.containsImage("CathodoLuminescenceCorrection_vChannelNew_0_255", params))
         {
-            vChannelNew_0_255 = cache.getImage("CathodoLuminescenceCorrection_vChannelNew_0_255");
+            vChannelNew_0_255 = cache.getImage("CathodoLuminescenceCorrection_vChannelNew_0_255", params);
         }
         else
         {
-            vChannelNew_0_255 = Mat.zeros(nRows, nCols, CvType.CV_32FC1);
+            vChannelNew_0_255 = matPool.acquire(nRows, nCols, CvType.CV_32FC1);
             if (performNoiseReduction)
             {
-                Mat vChannelNew = Mat.zeros(nRows, nCols, CvType.CV_32FC1);
+                ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.NOISE_REDUCTION);
+                Mat vChannelNew = matPool.acquire(nRows, nCols, CvType.CV_32FC1);
 
                 double sigma2 = 10;
                 // Filter minimo
-                Mat vChannelDividedLowBlur = Mat.zeros(nRows, nCols, CvType.CV_32FC1);
+                Mat vChannelDividedLowBlur = matPool.acquire(nRows, nCols, CvType.CV_32FC1);
                 Imgproc.GaussianBlur(vChannelDivided_0_255, vChannelDividedLowBlur, new Size(0, 0), sigma2, sigma2, Core.BORDER_REPLICATE); // the size of the filter is computed using the sigma
                 Core.MinMaxLocResult vChannelDividedLowBlurMinMax = Core.minMaxLoc(vChannelDividedLowBlur);
-                vChannelDividedLowBlur.release();
+                matPool.release(vChannelDividedLowBlur);
                 //System.out.println("vChannelDividedLowBlur min = " + vChannelDividedLowBlurMinMax.minVal);
                 //System.out.println("vChannelDividedLowBlur max = " + vChannelDividedLowBlurMinMax.maxVal);
 
@@ -532,29 +1003,29 @@ public class ImageConverter
                 //System.out.println("vChannelNew max = " + vChannelNewMinMax.maxVal);
 
                 Core.multiply(vChannelNew, new Scalar(255.0 / (vChannelNewMinMax.maxVal - vChannelNewMinMax.minVal)), vChannelNew_0_255);
-                vChannelNew.release();
+                matPool.release(vChannelNew);
                 Core.MinMaxLocResult vChannelNew_0_255_MinMax = Core.minMaxLoc(vChannelNew_0_255);
                 //System.out.println("vChannelNew_0_255 min = " + vChannelNew_0_255_MinMax.minVal);
                 //System.out.println("vChannelNew_0_255 max = " + vChannelNew_0_255_MinMax.maxVal);
-
+                metrics.endStage(event, vChannelNew_0_255);
             }
             else
             {
                 vChannelDivided_0_255.copyTo(vChannelNew_0_255);
             }
 
-            cache.cacheImage("CathodoLuminescenceCorrection_vChannelNew_0_255", vChannelNew_0_255);
+            cache.cacheImage("CathodoLuminescenceCorrection_vChannelNew_0_255", vChannelNew_0_255, ConversionCache.RecomputeCost.MEDIUM, params, ConversionParameters::isSameNoiseReduction);
         }
 
         // Remap the channel to the original vChannel Max value
         Mat vChannel_CorrectGamma;
-        if (cache.containsImage("CathodoLuminescenceCorrection_vChannel_CorrectGamma"))
+        if (cache.containsImage("CathodoLuminescenceCorrection_vChannel_CorrectGamma", params))
         {
-            vChannel_CorrectGamma = cache.getImage("CathodoLuminescenceCorrection_vChannel_CorrectGamma");
+            vChannel_CorrectGamma = cache.getImage("CathodoLuminescenceCorrection_vChannel_CorrectGamma", params);
         }
         else
         {
-            vChannel_CorrectGamma = Mat.zeros(nRows, nCols, CvType.CV_32FC1);
+            vChannel_CorrectGamma = matPool.acquire(nRows, nCols, CvType.CV_32FC1);
             if (maximizeContrast)
             {
                 vChannelNew_0_255.copyTo(vChannel_CorrectGamma);
@@ -563,25 +1034,27 @@ public class ImageConverter
             {
                 Core.multiply(vChannelNew_0_255, new Scalar(vChannelMinMax.maxVal / 255.0), vChannel_CorrectGamma);
             }
-            cache.cacheImage("CathodoLuminescenceCorrection_vChannel_CorrectGamma", vChannel_CorrectGamma);
+            cache.cacheImage("CathodoLuminescenceCorrection_vChannel_CorrectGamma", vChannel_CorrectGamma, ConversionCache.RecomputeCost.LOW, params, ConversionParameters::isSameCathodoLuminescenceCorrection);
         }
 
         // recombine channels
-        Mat hsvResult = Mat.zeros(nRows, nCols, CvType.CV_32FC3);
+        ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.RECOMBINATION);
+        Mat hsvResult = matPool.acquire(nRows, nCols, CvType.CV_32FC3);
         Core.insertChannel(hChannel, hsvResult, 0);
         Core.insertChannel(sChannel, hsvResult, 1);
         Core.insertChannel(vChannel_CorrectGamma, hsvResult, 2);
 
-        Mat rgbResult = Mat.zeros(nRows, nCols, CvType.CV_32FC3);
+        Mat rgbResult = matPool.acquire(nRows, nCols, CvType.CV_32FC3);
         Imgproc.cvtColor(hsvResult, rgbResult, Imgproc.COLOR_HSV2RGB);
-        hsvResult.release();
+        matPool.release(hsvResult);
 
         // Convert back to three 8-bit float components in [0-255] range
-        Mat result = Mat.zeros(nRows, nCols, CvType.CV_8UC3);
+        Mat result = matPool.acquire(nRows, nCols, CvType.CV_8UC3);
         rgbResult.convertTo(result, CvType.CV_8UC3);
-        rgbResult.release();
+        matPool.release(rgbResult);
+        metrics.endStage(event, result);
 
-        // To uncomment these debug outputs, the Mat.release() methods in the above code should be commented,
+        // To uncomment these debug outputs, the matPool.release() calls in the above code should be commented,
         // otherwise the matrices will be cleared before the debug outputs and "null" will be printed.
         //System.out.println("source: " + Arrays.toString(source.get(100, 100)));
         //System.out.println("source32F: " + Arrays.toString(source32F.get(100, 100)));
@@ -597,167 +1070,686 @@ public class ImageConverter
         //System.out.println("hsvResult: " + Arrays.toString(hsvResult.get(100, 100)));
         //System.out.println("rgbResult: " + Arrays.toString(rgbResult.get(100, 100)));
 
-        cache.cacheImage("CathodoLuminescenceCorrection_result", result);
+        cache.cacheImage("CathodoLuminescenceCorrection_result", result, ConversionCache.RecomputeCost.MEDIUM, params, ConversionParameters::isSameCathodoLuminescenceCorrection);
 
         return result;
     }
 
-    private final Mat PerformThresholdTest (Mat source, double thresholdValue)
+    /**
+     * Version of InternalPerformCathodoLuminescenceCorrection that keeps the intermediate images in 16-bit fixed-point
+     * (see FIXED_POINT_ONE) or 8-bit values instead of 32-bit float values, so they are computed faster and the cached
+     * ones use from a half to a quarter of the memory. Only the blurred filter and the division by it are still computed
+     * with float values, as the division needs their precision.
+     * The hue and the saturation are taken from the 8-bit HSV conversion (256 hue levels instead of continuous values):
+     * the result differs from the float one by about 0.2 levels on average, and at most by 2 levels on the synthetic
+     * images of the benchmarks, as measured by PrecisionAccuracyReport (in the benchmarks module). The largest difference
+     * depends on the saturation of the image: it reached 6 levels on the most saturated pixels of real micrographs.
+     */
+    private final Mat InternalPerformReducedPrecisionCathodoLuminescenceCorrection (ConversionSession session, ConversionCache cache, Mat source, ConversionParameters params)
     {
-        ConversionCache cache = caches.get(ConversionType.THRESHOLD_TEST);
-        return InternalPerformThresholdTest(cache, source, thresholdValue);
+        int nRows = source.rows();
+        int nCols = source.cols();
+
+        Mat hChannel = null;
+        Mat sChannel = null;
+        if (cache.containsImage("CathodoLuminescenceCorrection_hChannel8U"))
+        {
+            hChannel = cache.getImage("CathodoLuminescenceCorrection_hChannel8U");
+        }
+        if (cache.containsImage("CathodoLuminescenceCorrection_sChannel8U"))
+        {
+            sChannel = cache.getImage("CathodoLuminescenceCorrection_sChannel8U");
+        }
+        if (hChannel == null || sChannel == null)
+        {
+            // The full range conversion maps the hue in [0-255] instead of [0-180]
+            Mat hsvMat = matPool.acquire(nRows, nCols, CvType.CV_8UC3);
+            Imgproc.cvtColor(source, hsvMat, Imgproc.COLOR_RGB2HSV_FULL);
+            if (hChannel == null)
+            {
+                hChannel = matPool.acquire(nRows, nCols, CvType.CV_8UC1);
+                Core.extractChannel(hsvMat, hChannel, 0);
+                cache.cacheImage("CathodoLuminescenceCorrection_hChannel8U", hChannel);
+            }
+            if (sChannel == null)
+            {
+                sChannel = matPool.acquire(nRows, nCols, CvType.CV_8UC1);
+                Core.extractChannel(hsvMat, sChannel, 1);
+                cache.cacheImage("CathodoLuminescenceCorrection_sChannel8U", sChannel);
+            }
+            matPool.release(hsvMat);
+        }
+
+        Core.MinMaxLocResult vChannelMinMax;
+        if (cache.containsMinMaxLocResult("CathodoLuminescenceCorrection_vChannelMinMax"))
+        {
+            vChannelMinMax = cache.getMinMaxLocResult("CathodoLuminescenceCorrection_vChannelMinMax");
+        }
+        else
+        {
+            vChannelMinMax = Core.minMaxLoc(GetSharedVChannel8U(session, source));
+            cache.cacheMinMaxLocResult("CathodoLuminescenceCorrection_vChannelMinMax", vChannelMinMax);
+        }
+
+        Mat vChannelDivided_16U;
+        if (cache.containsImage("CathodoLuminescenceCorrection_vChannelDivided_16U", params))
+        {
+            vChannelDivided_16U = cache.getImage("CathodoLuminescenceCorrection_vChannelDivided_16U", params);
+        }
+        else
+        {
+            // (the shared images must not be modified or released)
+            Mat vChannel = GetSharedVChannel32F(session, source);
+            Mat blurred = GetSharedBlurredVChannel(session, source, params);
+            ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.NORMALIZATION);
+            Mat vChannelDivided = matPool.acquire(nRows, nCols, CvType.CV_32FC1);
+            Core.divide(vChannel, blurred, vChannelDivided);
+            Core.MinMaxLocResult vChannelDividedMinMax = Core.minMaxLoc(vChannelDivided);
+
+            // Remapped linearly in the 0-255 range, as in the float correction, and stored in fixed-point
+            double scale = FIXED_POINT_ONE * 255.0 / (vChannelDividedMinMax.maxVal - vChannelDividedMinMax.minVal);
+            vChannelDivided_16U = matPool.acquire(nRows, nCols, CvType.CV_16UC1);
+            vChannelDivided.convertTo(vChannelDivided_16U, CvType.CV_16U, scale, -vChannelDividedMinMax.minVal * scale);
+            matPool.release(vChannelDivided);
+            metrics.endStage(event, vChannelDivided_16U);
+
+            cache.cacheImage("CathodoLuminescenceCorrection_vChannelDivided_16U", vChannelDivided_16U, ConversionCache.RecomputeCost.MEDIUM, params, ConversionParameters::isSameBlurredFilter);
+        }
+
+        Mat vChannelNew_16U;
+        if (cache.containsImage("CathodoLuminescenceCorrection_vChannelNew_16U", params))
+        {
+            vChannelNew_16U = cache.getImage("CathodoLuminescenceCorrection_vChannelNew_16U", params);
+        }
+        else
+        {
+            vChannelNew_16U = matPool.acquire(nRows, nCols, CvType.CV_16UC1);
+            if (params.isNoiseReductionActivated())
+            {
+                ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.NOISE_REDUCTION);
+                double sigma2 = 10;
+                Mat vChannelDividedLowBlur = matPool.acquire(nRows, nCols, CvType.CV_16UC1);
+                Imgproc.GaussianBlur(vChannelDivided_16U, vChannelDividedLowBlur, new Size(0, 0), sigma2, sigma2, Core.BORDER_REPLICATE);
+                Core.MinMaxLocResult vChannelDividedLowBlurMinMax = Core.minMaxLoc(vChannelDividedLowBlur);
+                matPool.release(vChannelDividedLowBlur);
+
+                // The conversion to unsigned values saturates the negative values to zero, as the threshold of the float correction
+                vChannelDivided_16U.convertTo(vChannelNew_16U, CvType.CV_16U, 1.0, -vChannelDividedLowBlurMinMax.minVal);
+                Core.MinMaxLocResult vChannelNewMinMax = Core.minMaxLoc(vChannelNew_16U);
+                vChannelNew_16U.convertTo(vChannelNew_16U, CvType.CV_16U, FIXED_POINT_ONE * 255.0 / (vChannelNewMinMax.maxVal - vChannelNewMinMax.minVal));
+                metrics.endStage(event, vChannelNew_16U);
+            }
+            else
+            {
+                vChannelDivided_16U.copyTo(vChannelNew_16U);
+            }
+
+            cache.cacheImage("CathodoLuminescenceCorrection_vChannelNew_16U", vChannelNew_16U, ConversionCache.RecomputeCost.MEDIUM, params, ConversionParameters::isSameNoiseReduction);
+        }
+
+        // Remap the channel to the original vChannel Max value, and back to 8-bit values
+        Mat vChannel_CorrectGamma_8U;
+        if (cache.containsImage("CathodoLuminescenceCorrection_vChannel_CorrectGamma_8U", params))
+        {
+            vChannel_CorrectGamma_8U = cache.getImage("CathodoLuminescenceCorrection_vChannel_CorrectGamma_8U", params);
+        }
+        else
+        {
+            double gamma = params.isMaxContrastActivated() ? 1.0 : vChannelMinMax.maxVal / 255.0;
+            vChannel_CorrectGamma_8U = matPool.acquire(nRows, nCols, CvType.CV_8UC1);
+            vChannelNew_16U.convertTo(vChannel_CorrectGamma_8U, CvType.CV_8U, gamma / FIXED_POINT_ONE);
+            cache.cacheImage("CathodoLuminescenceCorrection_vChannel_CorrectGamma_8U", vChannel_CorrectGamma_8U, ConversionCache.RecomputeCost.LOW, params, ConversionParameters::isSameCathodoLuminescenceCorrection);
+        }
+
+        // recombine channels
+        ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.RECOMBINATION);
+        Mat hsvResult = matPool.acquire(nRows, nCols, CvType.CV_8UC3);
+        Core.merge(Arrays.asList(hChannel, sChannel, vChannel_CorrectGamma_8U), hsvResult);
+        Mat result = matPool.acquire(nRows, nCols, CvType.CV_8UC3);
+        Imgproc.cvtColor(hsvResult, result, Imgproc.COLOR_HSV2RGB_FULL);
+        matPool.release(hsvResult);
+        metrics.endStage(event, result);
+
+        cache.cacheImage("CathodoLuminescenceCorrection_result", result, ConversionCache.RecomputeCost.MEDIUM, params, ConversionParameters::isSameCathodoLuminescenceCorrection);
+
+        return result;
     }
 
-    private final Mat PerformCathodoLuminescenceCorrectionAndThresholdTest (Mat source, double sigmaMultiplier, boolean performNoiseReduction, boolean maximizeContrast, double thresholdValue)
+    /**
+     * Band by band version of InternalPerformCathodoLuminescenceCorrection, for the images whose intermediate float
+     * images would not fit in memory. Only the 8-bit source and result images are kept whole: the float images are
+     * computed for a band of rows at a time (plus a halo of rows for the blur filters), so their memory is bounded by
+     * the band size instead of the image size. The global values used by the normalizations (min and max values)
+     * are gathered by separate passes over the bands, so the result is the same of the whole image conversion,
+     * except for the blurred filter, which is always computed as in the PYRAMID blur mode: its radius can be as big
+     * as the image, so it is computed from the downsampled V channel (see TiledBlurredVChannel).
+     * The intermediate images are always computed as in the FLOAT precision mode. The other modes are not supported
+     * (EXACT and RECURSIVE would need the whole V channel, REDUCED a second band by band pipeline): they are reported
+     * by WarnUnsupportedTiledConversionModes.
+     * @param source (Mat of type CvType.CV_8UC3)
+     * @return The converted image (Mat of type CvType.CV_8UC3)
+     */
+    private final Mat ComputeTiledCathodoLuminescenceCorrection (Mat source, double sigmaMultiplier, boolean performNoiseReduction, boolean maximizeContrast)
     {
-        ConversionCache cache = caches.get(ConversionType.CATHODO_LUMINESCENCE_CORRECTION_THRESHOLD_TEST);
+        int nRows = source.rows();
+        int nCols = source.cols();
+
+        double sigma1 = Math.min(nRows, nCols) * sigmaMultiplier;
+        TiledBlurredVChannel blurred = new TiledBlurredVChannel(source, sigma1);
+
+        // The bands are aligned to the downsampling blocks of the blurred filter
+        int factor = blurred.getDownsamplingFactor();
+        int bandRows = ((tiledConversionBandRows + factor - 1) / factor) * factor;
+
+        // Pass 1: V channel max value, and downsampled V channel for the blurred filter
+        double vChannelMax = 0;
+        for (int firstRow = 0; firstRow < nRows; firstRow += bandRows)
+        {
+            int endRow = Math.min(firstRow + bandRows, nRows);
+            Mat vChannel = ComputeVChannelBand(source, firstRow, endRow);
+            vChannelMax = Math.max(vChannelMax, Core.minMaxLoc(vChannel).maxVal);
+            blurred.addVChannelBand(vChannel, firstRow);
+            vChannel.release();
+        }
+        blurred.completeVChannelBands();
+
+        // Pass 2: min and max values of the Result of Brightness
+        double vChannelDividedMin = Double.MAX_VALUE;
+        double vChannelDividedMax = -Double.MAX_VALUE;
+        for (int firstRow = 0; firstRow < nRows; firstRow += bandRows)
+        {
+            int endRow = Math.min(firstRow + bandRows, nRows);
+            Mat vChannelDivided = ComputeVChannelDividedBand(source, blurred, firstRow, endRow);
+            Core.MinMaxLocResult vChannelDividedMinMax = Core.minMaxLoc(vChannelDivided);
+            vChannelDividedMin = Math.min(vChannelDividedMin, vChannelDividedMinMax.minVal);
+            vChannelDividedMax = Math.max(vChannelDividedMax, vChannelDividedMinMax.maxVal);
+            vChannelDivided.release();
+        }
+
+        // Pass 3 (noise reduction only): min value of the low blurred image, and min and max values of the remapped
+        // Result of Brightness. As the subtraction and the threshold to zero are monotonic, the min and max values of
+        // vChannelNew are computed from the ones of vChannelDivided_0_255, without another pass.
+        double sigma2 = 10;
+        int sigma2HaloRows = (int)Math.ceil(4 * sigma2) + 1; // radius of the filter computed by GaussianBlur
+        double vChannelDividedLowBlurMin = Double.MAX_VALUE;
+        double vChannelNewMin = 0;
+        double vChannelNewMax = 0;
+        if (performNoiseReduction)
+        {
+            double vChannelDivided_0_255_Min = Double.MAX_VALUE;
+            double vChannelDivided_0_255_Max = -Double.MAX_VALUE;
+            for (int firstRow = 0; firstRow < nRows; firstRow += bandRows)
+            {
+                int endRow = Math.min(firstRow + bandRows, nRows);
+                int haloFirstRow = Math.max(0, firstRow - sigma2HaloRows);
+                int haloEndRow = Math.min(nRows, endRow + sigma2HaloRows);
+                Mat vChannelDivided_0_255 = ComputeVChannelDividedBand(source, blurred, haloFirstRow, haloEndRow);
+                RemapVChannelDivided(vChannelDivided_0_255, vChannelDividedMin, vChannelDividedMax);
+
+                Mat vChannelDividedLowBlur = new Mat();
+                Imgproc.GaussianBlur(vChannelDivided_0_255, vChannelDividedLowBlur, new Size(0, 0), sigma2, sigma2, Core.BORDER_REPLICATE);
+                Core.MinMaxLocResult vChannelDividedLowBlurMinMax = Core.minMaxLoc(vChannelDividedLowBlur.rowRange(firstRow - haloFirstRow, endRow - haloFirstRow));
+                vChannelDividedLowBlur.release();
+                vChannelDividedLowBlurMin = Math.min(vChannelDividedLowBlurMin, vChannelDividedLowBlurMinMax.minVal);
+
+                Core.MinMaxLocResult vChannelDivided_0_255_MinMax = Core.minMaxLoc(vChannelDivided_0_255.rowRange(firstRow - haloFirstRow, endRow - haloFirstRow));
+                vChannelDivided_0_255.release();
+                vChannelDivided_0_255_Min = Math.min(vChannelDivided_0_255_Min, vChannelDivided_0_255_MinMax.minVal);
+                vChannelDivided_0_255_Max = Math.max(vChannelDivided_0_255_Max, vChannelDivided_0_255_MinMax.maxVal);
+            }
+            // the same float operations of the whole image conversion, applied to the min and max values
+            vChannelNewMin = Math.max(0, (float)vChannelDivided_0_255_Min - (float)vChannelDividedLowBlurMin);
+            vChannelNewMax = Math.max(0, (float)vChannelDivided_0_255_Max - (float)vChannelDividedLowBlurMin);
+        }
 
-        // Make the checks before the conversion methods because the threshold cache must be cleared when the conversion parameters change,
-        // even if the threshold value remains the same
-        boolean changedConversionParams = CheckCathodoLuminescenceCorrectionCache(cache, sigmaMultiplier, performNoiseReduction, maximizeContrast);
-        CheckThresholdTestCache(cache, thresholdValue, changedConversionParams);
+        // Pass 4: result
+        Mat result = new Mat(nRows, nCols, CvType.CV_8UC3);
+        for (int firstRow = 0; firstRow < nRows; firstRow += bandRows)
+        {
+            int endRow = Math.min(firstRow + bandRows, nRows);
+            Mat vChannelNew_0_255 = ComputeVChannelDividedBand(source, blurred, firstRow, endRow);
+            RemapVChannelDivided(vChannelNew_0_255, vChannelDividedMin, vChannelDividedMax);
+            if (performNoiseReduction)
+            {
+                Core.subtract(vChannelNew_0_255, new Scalar(vChannelDividedLowBlurMin), vChannelNew_0_255);
+                Imgproc.threshold(vChannelNew_0_255, vChannelNew_0_255, 0, 0, Imgproc.THRESH_TOZERO);
+                Core.multiply(vChannelNew_0_255, new Scalar(255.0 / (vChannelNewMax - vChannelNewMin)), vChannelNew_0_255);
+            }
 
-        return InternalPerformThresholdTest(cache
-                ,InternalPerformCathodoLuminescenceCorrection(cache, source, sigmaMultiplier, performNoiseReduction, maximizeContrast)
-        , thresholdValue);
+            // Remap the channel to the original vChannel Max value
+            if (!maximizeContrast)
+            {
+                Core.multiply(vChannelNew_0_255, new Scalar(vChannelMax / 255.0), vChannelNew_0_255);
+            }
+
+            // Convert the band in HSV and replace its V channel
+            Mat hsvBand = new Mat();
+            source.rowRange(firstRow, endRow).convertTo(hsvBand, CvType.CV_32FC3);
+            Imgproc.cvtColor(hsvBand, hsvBand, Imgproc.COLOR_RGB2HSV);
+            Core.insertChannel(vChannelNew_0_255, hsvBand, 2);
+            vChannelNew_0_255.release();
+
+            Imgproc.cvtColor(hsvBand, hsvBand, Imgproc.COLOR_HSV2RGB);
+            Mat resultBand = result.rowRange(firstRow, endRow);
+            hsvBand.convertTo(resultBand, CvType.CV_8UC3);
+            hsvBand.release();
+        }
+        blurred.release();
+
+        return result;
     }
 
-    private final boolean CheckThresholdTestCache (ConversionCache cache, double thresholdValue, boolean force)
+    // V channel of the rows [firstRow, endRow[ of the source, as 32-bit float values ranging in [0-255]
+    private final Mat ComputeVChannelBand (Mat source, int firstRow, int endRow)
     {
-        if (force || !cache.containsParameter(ConversionParameter.THRESHOLD_TEST_VALUE) || !cache.getParameter(ConversionParameter.THRESHOLD_TEST_VALUE).equals(Double.toString(thresholdValue)))
+        Mat vChannel8U = ComputeVChannel(source.rowRange(firstRow, endRow));
+        Mat vChannel = new Mat();
+        vChannel8U.convertTo(vChannel, CvType.CV_32FC1);
+        vChannel8U.release();
+        return vChannel;
+    }
+
+    // The same parameters give a different algorithm on the images converted band by band, so the modes that are
+    // replaced are logged as warnings, once for each mode (the batch conversions of many big images log them once)
+    private final void WarnUnsupportedTiledConversionModes (Mat source, ConversionParameters params)
+    {
+        String image = source.cols() + "x" + source.rows() + " image";
+        if (params.getBlurMode() != BlurMode.PYRAMID && reportedTiledConversionModes.add(params.getBlurMode()))
         {
-            cache.clearCachedImage("ThresholdTest_result");
-            // cache the parameter value that makes the cache valid
-            return true;
+            LOGGER.log(System.Logger.Level.WARNING, "The " + image + " is converted band by band (at least " + tiledConversionMinPixels + " pixels), which supports only the PYRAMID blur mode: "
+                    + "the " + params.getBlurMode() + " blur mode is computed as PYRAMID for all the images converted band by band");
+        }
+        if (params.getPrecisionMode() != PrecisionMode.FLOAT && reportedTiledConversionModes.add(params.getPrecisionMode()))
+        {
+            LOGGER.log(System.Logger.Level.WARNING, "The " + image + " is converted band by band (at least " + tiledConversionMinPixels + " pixels), which supports only the FLOAT precision mode: "
+                    + "the " + params.getPrecisionMode() + " precision mode is computed as FLOAT for all the images converted band by band");
         }
-        return false;
     }
 
-    private final Mat InternalPerformThresholdTest (ConversionCache cache, Mat source, double thresholdValue)
+    // Result of Brightness of the rows [firstRow, endRow[ of the source
+    private final Mat ComputeVChannelDividedBand (Mat source, TiledBlurredVChannel blurred, int firstRow, int endRow)
     {
-        CheckThresholdTestCache(cache, thresholdValue, false);
+        Mat vChannel = ComputeVChannelBand(source, firstRow, endRow);
+        Mat blurredBand = blurred.computeBand(firstRow, endRow);
+        Core.divide(vChannel, blurredBand, vChannel);
+        blurredBand.release();
+        return vChannel;
+    }
 
-        cache.setParameter(ConversionParameter.THRESHOLD_TEST_VALUE, Double.toString(thresholdValue));
+    // Remaps the Result of Brightness linearly in the 0-255 range, as the whole image conversion
+    private static void RemapVChannelDivided (Mat vChannelDivided, double vChannelDividedMin, double vChannelDividedMax)
+    {
+        Core.subtract(vChannelDivided, new Scalar(vChannelDividedMin), vChannelDivided);
+        Core.multiply(vChannelDivided, new Scalar(255.0 / (vChannelDividedMax - vChannelDividedMin)), vChannelDivided);
+    }
 
-        if (cache.containsImage("ThresholdTest_result"))
+    /**
+     * Blurred filter of the tiled conversion, computed band by band.
+     * With big sigmas, it is computed as ComputePyramidGaussianBlur does: the V channel bands are padded and shrunk
+     * (the bands are aligned to the downsampling blocks, so the shrunk image is the same of the whole image),
+     * the small shrunk image is blurred as a whole, and each band of the result is enlarged from the few shrunk rows
+     * around it. With small sigmas (no downsampling), each band is blurred with a halo of rows around it.
+     */
+    private final class TiledBlurredVChannel
+    {
+        private final Mat source;
+        private final double sigma;
+        private final int factor;
+        private final int paddingTop;
+        private final int paddingBottom;
+        private final int paddingLeft;
+        private final int paddingRight;
+
+        private final List<Mat> shrunkBands = new ArrayList<>();
+        private Mat shrunk = null;
+
+        TiledBlurredVChannel (Mat source, double sigma)
         {
-            return cache.getImage("ThresholdTest_result");
+            this.source = source;
+            this.sigma = sigma;
+            this.factor = (sigma >= 1) ? ComputePyramidDownsamplingFactor(sigma) : 1;
+            paddingTop = 2 * factor;
+            paddingLeft = 2 * factor;
+            paddingRight = 2 * factor + (factor - source.cols() % factor) % factor;
+            paddingBottom = 2 * factor + (factor - source.rows() % factor) % factor;
         }
 
-        Mat result = Mat.zeros(source.rows(), source.cols(), CvType.CV_32FC1);
-        if (!source.empty())
+        int getDownsamplingFactor() { return factor; }
+
+        // Must be called for all the V channel bands, in order. All the bands but the last must have a multiple of factor rows.
+        void addVChannelBand (Mat vChannelBand, int firstRow)
         {
-            // Convert to three 32-bit float components ranging in [0-255]
-            Mat source32F = Mat.zeros(source.rows(), source.cols(), CvType.CV_32FC3);
-            source.convertTo(source32F, CvType.CV_32FC3);
+            if (factor > 1)
+            {
+                int top = (firstRow == 0) ? paddingTop : 0;
+                int bottom = (firstRow + vChannelBand.rows() == source.rows()) ? paddingBottom : 0;
+                Mat padded = new Mat();
+                Core.copyMakeBorder(vChannelBand, padded, top, bottom, paddingLeft, paddingRight, Core.BORDER_REPLICATE);
+                Mat shrunkBand = new Mat();
+                Imgproc.resize(padded, shrunkBand, new Size(padded.cols() / factor, padded.rows() / factor), 0, 0, Imgproc.INTER_AREA);
+                padded.release();
+                shrunkBands.add(shrunkBand);
+            }
+        }
 
-            // Convert in HSV (ranging in [0-255])
-            Mat hsvMat = Mat.zeros(source.rows(), source.cols(), CvType.CV_32FC3);
-            Imgproc.cvtColor(source32F, hsvMat, Imgproc.COLOR_RGB2HSV);
-            source32F.release();
+        void completeVChannelBands ()
+        {
+            if (factor > 1)
+            {
+                shrunk = new Mat();
+                Core.vconcat(shrunkBands, shrunk);
+                for (Mat shrunkBand : shrunkBands)
+                {
+                    shrunkBand.release();
+                }
+                shrunkBands.clear();
 
-            // extract vChannel
-            Mat vChannel = Mat.zeros(source.rows(), source.cols(), CvType.CV_32FC1);
-            Core.extractChannel(hsvMat, vChannel, 2);
-            hsvMat.release();
+                double shrunkSigma = Math.sqrt(Math.max(sigma * sigma - (factor * (double)factor - 1) / 12.0, 0)) / factor;
+                Imgproc.GaussianBlur(shrunk, shrunk, new Size(0, 0), shrunkSigma, shrunkSigma, Core.BORDER_REPLICATE);
+            }
+        }
 
-            Imgproc.threshold(vChannel, result, thresholdValue, 255.0, Imgproc.THRESH_BINARY);
+        // Blurred filter of the rows [firstRow, endRow[ of the source
+        Mat computeBand (int firstRow, int endRow)
+        {
+            Mat band = new Mat();
+            if (factor > 1)
+            {
+                // The enlargement maps the padded row y to the shrunk row (y + 0.5) / factor - 0.5, interpolating the two
+                // nearest shrunk rows. The factor is a power of 2, so enlarging the shrunk rows [a, b[ gives exactly the
+                // padded rows [a * factor, b * factor[ of the whole enlargement, except near the borders of the range.
+                int paddedFirstRow = firstRow + paddingTop;
+                int paddedLastRow = endRow - 1 + paddingTop;
+                int a = Math.max(0, (int)Math.floor((paddedFirstRow + 0.5) / factor - 0.5));
+                int b = Math.min(shrunk.rows(), (int)Math.floor((paddedLastRow + 0.5) / factor - 0.5) + 2);
+                Mat enlarged = new Mat();
+                Imgproc.resize(shrunk.rowRange(a, b), enlarged, new Size(shrunk.cols() * factor, (b - a) * factor), 0, 0, Imgproc.INTER_LINEAR);
+                enlarged.submat(paddedFirstRow - a * factor, paddedLastRow + 1 - a * factor, paddingLeft, paddingLeft + source.cols()).copyTo(band);
+                enlarged.release();
+            }
+            else if (sigma >= 1)
+            {
+                int haloRows = (int)Math.ceil(4 * sigma) + 1; // radius of the filter computed by GaussianBlur
+                int haloFirstRow = Math.max(0, firstRow - haloRows);
+                int haloEndRow = Math.min(source.rows(), endRow + haloRows);
+                Mat vChannel = ComputeVChannelBand(source, haloFirstRow, haloEndRow);
+                Imgproc.GaussianBlur(vChannel, vChannel, new Size(0, 0), sigma, sigma, Core.BORDER_REPLICATE);
+                vChannel.rowRange(firstRow - haloFirstRow, endRow - haloFirstRow).copyTo(band);
+                vChannel.release();
+            }
+            else
+            {
+                band = ComputeVChannelBand(source, firstRow, endRow);
+            }
+            return band;
         }
 
-        cache.cacheImage("ThresholdTest_result", result);
-        return result;
+        void release ()
+        {
+            if (shrunk != null)
+            {
+                shrunk.release();
+            }
+        }
     }
 
-    private final boolean CheckCathodoLuminescenceCorrectionBlurCache (ConversionCache cache, double sigmaMultiplier)
+    private final Mat PerformThresholdTest (ConversionSession session, Mat source, ConversionParameters params)
     {
-        if (!cache.containsParameter(ConversionParameter.PARAM_SIGMA) || !cache.getParameter(ConversionParameter.PARAM_SIGMA).equals(Double.toString(sigmaMultiplier)))
+        ConversionCache cache = session.getCache(ConversionType.THRESHOLD_TEST);
+
+        if (cache.containsImage("ThresholdTest_result", params))
         {
-            cache.clearCachedImage("CathodoLuminescenceCorrectionBlur_result");
-            return true;
+            return cache.getImage("ThresholdTest_result", params);
         }
-        return false;
-    }
-    private final Mat PerformCathodoLuminescenceCorrectionBlur (Mat source, double sigmaMultiplier)
-    {
-        ConversionCache cache = caches.get(ConversionType.BLURRED_FILTER);
 
-        CheckCathodoLuminescenceCorrectionBlurCache(cache, sigmaMultiplier);
+        // The shared V channel must not be released
+        Mat result = ComputeThresholdTest(GetSharedVChannel8U(session, source), params.getThresholdTestValue());
+        cache.cacheImage("ThresholdTest_result", result, ConversionCache.RecomputeCost.LOW, params, ConversionParameters::isSameThresholdTest);
+        return result;
+    }
 
-        cache.setParameter(ConversionParameter.PARAM_SIGMA, Double.toString(sigmaMultiplier));
+    private final Mat PerformCathodoLuminescenceCorrectionAndThresholdTest (ConversionSession session, Mat source, ConversionParameters params)
+    {
+        // This cache contains only the threshold test images: the correction images are cached by the correction conversion type.
+        ConversionCache cache = session.getCache(ConversionType.CATHODO_LUMINESCENCE_CORRECTION_THRESHOLD_TEST);
 
-        if (cache.containsImage("CathodoLuminescenceCorrectionBlur_result"))
+        if (cache.containsImage("ThresholdTest_result", params))
         {
-            return cache.getImage("CathodoLuminescenceCorrectionBlur_result");
+            return cache.getImage("ThresholdTest_result", params);
         }
 
+        // The brightness of the correction result does not depend on the threshold value, so it is kept
+        // and a threshold change only applies the lookup table again
         Mat vChannel;
-        if (cache.containsImage("CathodoLuminescenceCorrectionBlur_vChannel"))
+        if (cache.containsImage("ThresholdTest_vChannel", params))
         {
-            vChannel = cache.getImage("CathodoLuminescenceCorrectionBlur_vChannel");
+            vChannel = cache.getImage("ThresholdTest_vChannel", params);
         }
         else
         {
-            int nRows = source.rows();
-            int nCols = source.cols();
+            vChannel = ComputeVChannel(PerformCathodoLuminescenceCorrection(session, source, params));
+            cache.cacheImage("ThresholdTest_vChannel", vChannel, ConversionCache.RecomputeCost.LOW, params, ConversionParameters::isSameCathodoLuminescenceCorrection);
+        }
+        Mat result = ComputeThresholdTest(vChannel, params.getThresholdTestValue());
 
-            // Convert to three 32-bit float components ranging in [0-255]
-            Mat source32F = Mat.zeros(nRows, nCols, CvType.CV_32FC3);
-            source.convertTo(source32F, CvType.CV_32FC3);
+        cache.cacheImage("ThresholdTest_result", result, ConversionCache.RecomputeCost.LOW, params, ConversionParameters::isSameCathodoLuminescenceCorrectionThresholdTest);
+        return result;
+    }
 
-            // Convert in HSV (ranging in [0-255])
-            Mat hsvMat = Mat.zeros(nRows, nCols, CvType.CV_32FC3);
-            Imgproc.cvtColor(source32F, hsvMat, Imgproc.COLOR_RGB2HSV);
-            source32F.release();
+    /**
+     * The test is a single lookup table pass on the brightness values, so it can be applied again at each
+     * threshold change without converting the image.
+     * @param vChannel The brightness image (Mat of type CvType.CV_8UC1)
+     * @return The image whose pixels are white where the brightness is greater than the threshold, black elsewhere (Mat of type CvType.CV_8UC1)
+     */
+    private final Mat ComputeThresholdTest (Mat vChannel, double thresholdValue)
+    {
+        ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.THRESHOLD_TEST);
+        Mat result = matPool.acquire(vChannel.rows(), vChannel.cols(), CvType.CV_8UC1);
+        if (!vChannel.empty())
+        {
+            // A pixel passes the test only if its value is greater than the threshold, exactly as in the float conversion
+            byte[] table = new byte[256];
+            for (int i = 0; i < table.length; i++)
+            {
+                table[i] = (i > thresholdValue) ? (byte) 255 : 0;
+            }
+            Mat lookUpTable = new Mat(1, table.length, CvType.CV_8UC1);
+            lookUpTable.put(0, 0, table);
+            Core.LUT(vChannel, lookUpTable, result);
+            lookUpTable.release();
+        }
+        metrics.endStage(event, result);
+        return result;
+    }
 
-            // Extract v channel
-            vChannel = Mat.zeros(nRows, nCols, CvType.CV_32FC1);
-            Core.extractChannel(hsvMat, vChannel, 2);
-            hsvMat.release();
+    private final Mat PerformCathodoLuminescenceCorrectionBlur (ConversionSession session, Mat source, ConversionParameters params)
+    {
+        ConversionCache cache = session.getCache(ConversionType.BLURRED_FILTER);
 
-            cache.cacheImage("CathodoLuminescenceCorrectionBlur_vChannel", vChannel);
+        if (cache.containsImage("CathodoLuminescenceCorrectionBlur_result", params))
+        {
+            return cache.getImage("CathodoLuminescenceCorrectionBlur_result", params);
         }
 
-        // Apply gaussian blur with a big sigma that is dependent on the image size
-        Mat result = ComputeBlurredVChannel(vChannel, sigmaMultiplier);
+        // The blurred image is shared with the correction conversion, so the remapping is done on a copy
+        Mat blurred = GetSharedBlurredVChannel(session, source, params);
+        Mat result = matPool.acquire(blurred.rows(), blurred.cols(), CvType.CV_32FC1);
+        blurred.copyTo(result);
 
         // Remap the blur background in 0-255 range
         Core.MinMaxLocResult vChannelNewMinMax = Core.minMaxLoc(result);
         Core.subtract(result, new Scalar(vChannelNewMinMax.minVal), result);
         Core.multiply(result, new Scalar(255.0 / (vChannelNewMinMax.maxVal - vChannelNewMinMax.minVal)), result);
 
-        cache.cacheImage("CathodoLuminescenceCorrectionBlur_result", result);
+        cache.cacheImage("CathodoLuminescenceCorrectionBlur_result", result, ConversionCache.RecomputeCost.LOW, params, ConversionParameters::isSameBlurredFilter);
 
         return result;
     }
 
+    // The shared images are computed from the resized source, and they are cleared with it
+
+    private final Mat GetSharedVChannel8U (ConversionSession session, Mat source)
+    {
+        ConversionCache cache = session.getSharedCache();
+        if (cache.containsImage(V_CHANNEL_8U_CACHE_KEY))
+        {
+            return cache.getImage(V_CHANNEL_8U_CACHE_KEY);
+        }
+        Mat vChannel = ComputeVChannel(source);
+        cache.cacheImage(V_CHANNEL_8U_CACHE_KEY, vChannel, ConversionCache.RecomputeCost.LOW);
+        return vChannel;
+    }
+
+    // V channel as 32-bit float values ranging in [0-255]
+    private final Mat GetSharedVChannel32F (ConversionSession session, Mat source)
+    {
+        ConversionCache cache = session.getSharedCache();
+        if (cache.containsImage(V_CHANNEL_32F_CACHE_KEY))
+        {
+            return cache.getImage(V_CHANNEL_32F_CACHE_KEY);
+        }
+        Mat vChannel8U = GetSharedVChannel8U(session, source);
+        Mat vChannel = matPool.acquire(vChannel8U.rows(), vChannel8U.cols(), CvType.CV_32FC1);
+        vChannel8U.convertTo(vChannel, CvType.CV_32FC1);
+        cache.cacheImage(V_CHANNEL_32F_CACHE_KEY, vChannel, ConversionCache.RecomputeCost.LOW);
+        return vChannel;
+    }
+
+    private final Mat GetSharedBlurredVChannel (ConversionSession session, Mat source, ConversionParameters params)
+    {
+        ConversionCache cache = session.getSharedCache();
+        if (cache.containsImage(BLURRED_V_CHANNEL_CACHE_KEY, params))
+        {
+            return cache.getImage(BLURRED_V_CHANNEL_CACHE_KEY, params);
+        }
+        Mat blurred = ComputeBlurredVChannel(GetSharedVChannel32F(session, source), params.getSigma(), params.getBlurMode());
+        cache.cacheImage(BLURRED_V_CHANNEL_CACHE_KEY, blurred, ConversionCache.RecomputeCost.HIGH, params, ConversionParameters::isSameBlurredFilter);
+        return blurred;
+    }
+
+    /**
+     * Extracts the brightness of an 8-bit image, which is the V channel of the HSV color space.
+     * As V is the maximum value among the color channels, it is computed directly from the source channels,
+     * without converting the whole image to float and HSV. The result is the same of the V channel extracted
+     * from the float HSV conversion.
+     * @param source (Mat of type CvType.CV_8UC3 or CvType.CV_8UC1)
+     * @return The brightness image (Mat of type CvType.CV_8UC1)
+     */
+    final Mat ComputeVChannel (Mat source)
+    {
+        assert (source.depth() == CvType.CV_8U);
+
+        ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.V_CHANNEL);
+        if (source.channels() == 1)
+        {
+            Mat vChannel = source.clone();
+            metrics.endStage(event, vChannel);
+            return vChannel;
+        }
+
+        List<Mat> channels = new ArrayList<>(source.channels());
+        Core.split(source, channels);
+        Mat vChannel = channels.get(0);
+        for (int i = 1; i < channels.size(); ++i)
+        {
+            if (i < 3) // an alpha channel is not part of the brightness
+            {
+                Core.max(vChannel, channels.get(i), vChannel);
+            }
+            channels.get(i).release();
+        }
+        metrics.endStage(event, vChannel);
+        return vChannel;
+    }
+
     /**
      * Performs an image blurring using a radius that is dependent on the image size.
      * The image must be a greyscale image represented with float pixels in the [0, 1] range.
      * @param vChannel (Mat of type CvType.CV_32FC1)
      * @param sigmaMultiplier Multiplier of the image size. The blur radius will be computed applying this multiplier to the image size.
+     * @param blurMode The algorithm used to compute the blur.
      * @return The blurred image (Mat of type CvType.CV_32FC1)
      */
-    private final Mat ComputeBlurredVChannel (Mat vChannel, double sigmaMultiplier)
+    final Mat ComputeBlurredVChannel (Mat vChannel, double sigmaMultiplier, BlurMode blurMode)
     {
         assert (vChannel.type() == CvType.CV_32FC1);
 
         int nRows = vChannel.rows();
         int nCols = vChannel.cols();
 
-        Core.MinMaxLocResult vChannelMinMax = Core.minMaxLoc(vChannel);
-
         // Apply gaussian blur with a big sigma that is dependent on the image size
         double sigma1 = Math.min(nRows, nCols) * sigmaMultiplier;
-        Mat result = Mat.zeros(nRows, nCols, CvType.CV_32FC1);
-        if (sigma1 >= 1)
+        ConversionStageEvent event = metrics.beginStage(ConversionMetrics.Stage.BLUR);
+        Mat result = matPool.acquire(nRows, nCols, CvType.CV_32FC1);
+        if (sigma1 >= 1 && blurMode == BlurMode.RECURSIVE)
         {
-            Imgproc.GaussianBlur(vChannel, result, new Size(0, 0), sigma1, sigma1, Core.BORDER_REPLICATE); // the size of the filter is computed using the sigma
+            RecursiveGaussianBlur.apply(vChannel, result, sigma1);
+        }
+        else if (sigma1 >= 1)
+        {
+            int pyramidDownsamplingFactor = (blurMode == BlurMode.PYRAMID) ? ComputePyramidDownsamplingFactor(sigma1) : 1;
+            if (pyramidDownsamplingFactor > 1)
+            {
+                ComputePyramidGaussianBlur(vChannel, result, sigma1, pyramidDownsamplingFactor);
+            }
+            else
+            {
+                Imgproc.GaussianBlur(vChannel, result, new Size(0, 0), sigma1, sigma1, Core.BORDER_REPLICATE); // the size of the filter is computed using the sigma
+            }
         }
         else
         {
             vChannel.copyTo(result);
         }
+        metrics.endStage(event, result);
 
         return result;
     }
+
+    /**
+     * @return The greatest power of 2 that keeps the sigma of the downsampled image blur above the pyramidBlurMinSigma value,
+     * or 1 if the image should not be downsampled.
+     */
+    private final int ComputePyramidDownsamplingFactor (double sigma)
+    {
+        double minSigma = pyramidBlurMinSigma;
+        int factor = 1;
+        while (sigma / (factor * 2) >= minSigma)
+        {
+            factor *= 2;
+        }
+        return factor;
+    }
+
+    /**
+     * Approximates a gaussian blur with a big sigma: the image is shrunk by the given factor, blurred with a
+     * proportionally smaller sigma, and enlarged back to its original size.
+     * The image is padded with replicated borders (to a multiple of the factor) before the shrinking, so the
+     * upsampling interpolation never reaches the image borders and the result is consistent with BORDER_REPLICATE.
+     */
+    private final void ComputePyramidGaussianBlur (Mat src, Mat dst, double sigma, int factor)
+    {
+        int paddingLeft = 2 * factor;
+        int paddingTop = 2 * factor;
+        int paddingRight = 2 * factor + (factor - src.cols() % factor) % factor;
+        int paddingBottom = 2 * factor + (factor - src.rows() % factor) % factor;
+
+        Mat padded = new Mat();
+        Core.copyMakeBorder(src, padded, paddingTop, paddingBottom, paddingLeft, paddingRight, Core.BORDER_REPLICATE);
+
+        // INTER_AREA averages each factor x factor block, so the shrinking is a box filter.
+        Mat shrunk = new Mat();
+        Imgproc.resize(padded, shrunk, new Size(padded.cols() / factor, padded.rows() / factor), 0, 0, Imgproc.INTER_AREA);
+
+        // The box filter variance ((factor^2 - 1) / 12) is already part of the total blur
+        double shrunkSigma = Math.sqrt(Math.max(sigma * sigma - (factor * (double)factor - 1) / 12.0, 0)) / factor;
+        Imgproc.GaussianBlur(shrunk, shrunk, new Size(0, 0), shrunkSigma, shrunkSigma, Core.BORDER_REPLICATE);
+
+        Imgproc.resize(shrunk, padded, padded.size(), 0, 0, Imgproc.INTER_LINEAR);
+        shrunk.release();
+
+        padded.submat(paddingTop, paddingTop + src.rows(), paddingLeft, paddingLeft + src.cols()).copyTo(dst);
+        padded.release();
+    }
 }
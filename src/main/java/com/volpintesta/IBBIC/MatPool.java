@@ -0,0 +1,180 @@
+package com.volpintesta.IBBIC;
+
+import org.opencv.core.Mat;
+
+import java.util.*;
+
+/**
+ * Pool of image buffers shared by all the sessions of an {@link ImageConverter}, so the conversions of images with
+ * the same size reuse the native memory of the previous ones instead of allocating it again.
+ * The buffers are reference counted: a Mat acquired from the pool has one reference, owned by the code that acquired
+ * it (or by the cache that holds it), and it goes back to the pool when its last reference is released.
+ * A Mat shared by several owners (e.g. a cached image still used after its cache is cleared) is retained by each
+ * additional owner, so it is never recycled while in use, without copying it.
+ * The idle buffers are bounded: when they exceed the limit, the least recently released ones are freed.
+ */
+class MatPool
+{
+    public static final long DEFAULT_MAX_IDLE_BYTES = 256L * 1024 * 1024;
+
+    // Size and type of a buffer
+    private static final class BufferKey
+    {
+        private final int rows;
+        private final int cols;
+        private final int type;
+
+        BufferKey (int rows, int cols, int type)
+        {
+            this.rows = rows;
+            this.cols = cols;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals (Object o)
+        {
+            if (this == o) return true;
+            if (!(o instanceof BufferKey)) return false;
+            BufferKey other = (BufferKey) o;
+            return rows == other.rows && cols == other.cols && type == other.type;
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return Objects.hash(rows, cols, type);
+        }
+    }
+
+    // Guarded by this
+    private final Map<BufferKey, ArrayDeque<Mat>> idleMats = new HashMap<>();
+    private final ArrayDeque<Mat> idleOrder = new ArrayDeque<>(); // from the least recently released
+    private final IdentityHashMap<Mat, Integer> referenceCounts = new IdentityHashMap<>();
+    private long idleBytes = 0;
+    private long maxIdleBytes;
+    private final ConversionMetrics metrics;
+
+    MatPool (long maxIdleBytes, ConversionMetrics metrics)
+    {
+        this.metrics = metrics;
+        setMaxIdleBytes(maxIdleBytes);
+    }
+
+    final synchronized long getMaxIdleBytes() { return maxIdleBytes; }
+    final synchronized void setMaxIdleBytes (long maxIdleBytes)
+    {
+        if (maxIdleBytes < 0) throw new IllegalArgumentException("maxIdleBytes must be greater or equal than 0");
+        this.maxIdleBytes = maxIdleBytes;
+        freeExceedingIdleMats();
+    }
+
+    final synchronized long getIdleBytes() { return idleBytes; }
+
+    /**
+     * @return A Mat of the given size and type, with one reference. Its content is undefined: it must be completely
+     * written before being read (e.g. as the destination of an OpenCV operation).
+     */
+    final synchronized Mat acquire (int rows, int cols, int type)
+    {
+        Mat mat = null;
+        ArrayDeque<Mat> sameBuffers = idleMats.get(new BufferKey(rows, cols, type));
+        if (sameBuffers != null && !sameBuffers.isEmpty())
+        {
+            mat = sameBuffers.pollLast();
+            idleOrder.remove(mat);
+            idleBytes -= getBytes(mat);
+            metrics.addNativeBytesReused(getBytes(mat));
+        }
+        else
+        {
+            mat = new Mat(rows, cols, type);
+            metrics.addNativeBytesAllocated(getBytes(mat));
+        }
+        referenceCounts.put(mat, 1);
+        return mat;
+    }
+
+    /**
+     * Adds a reference to the Mat. A Mat that has not been acquired from the pool is handled as if it had been,
+     * so it is recycled when all its references are released.
+     */
+    final synchronized void retain (Mat mat)
+    {
+        referenceCounts.merge(mat, 2, (count, ignored) -> count + 1);
+    }
+
+    /**
+     * Removes a reference to the Mat: when there are no more references, it goes back to the pool.
+     * A Mat that has not been acquired from the pool (nor retained) could share its memory with other Mats,
+     * so it is released instead.
+     */
+    final synchronized void release (Mat mat)
+    {
+        Integer count = referenceCounts.get(mat);
+        if (count == null)
+        {
+            mat.release();
+        }
+        else if (count > 1)
+        {
+            referenceCounts.put(mat, count - 1);
+        }
+        else
+        {
+            referenceCounts.remove(mat);
+            recycle(mat);
+        }
+    }
+
+    private void recycle (Mat mat)
+    {
+        long bytes = getBytes(mat);
+        // a submatrix shares the memory of its parent, and an empty Mat has nothing to reuse
+        if (mat.empty() || mat.isSubmatrix() || !mat.isContinuous() || bytes > maxIdleBytes)
+        {
+            mat.release();
+            return;
+        }
+        idleMats.computeIfAbsent(new BufferKey(mat.rows(), mat.cols(), mat.type()), k -> new ArrayDeque<>()).addLast(mat);
+        idleOrder.addLast(mat);
+        idleBytes += bytes;
+        freeExceedingIdleMats();
+    }
+
+    private void freeExceedingIdleMats ()
+    {
+        while (idleBytes > maxIdleBytes && !idleOrder.isEmpty())
+        {
+            Mat mat = idleOrder.pollFirst();
+            BufferKey key = new BufferKey(mat.rows(), mat.cols(), mat.type());
+            ArrayDeque<Mat> sameBuffers = idleMats.get(key);
+            sameBuffers.remove(mat);
+            if (sameBuffers.isEmpty())
+            {
+                idleMats.remove(key);
+            }
+            idleBytes -= getBytes(mat);
+            mat.release();
+        }
+    }
+
+    /**
+     * Frees all the idle buffers. The Mats in use are not affected.
+     */
+    final synchronized void clear ()
+    {
+        for (Mat mat : idleOrder)
+        {
+            mat.release();
+        }
+        idleOrder.clear();
+        idleMats.clear();
+        idleBytes = 0;
+    }
+
+    private static long getBytes (Mat mat)
+    {
+        return mat.total() * mat.elemSize();
+    }
+}
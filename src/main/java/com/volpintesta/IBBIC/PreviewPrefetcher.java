@@ -0,0 +1,104 @@
+package com.volpintesta.IBBIC;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts in background the previews that will probably be requested soon (e.g. the previews of the files
+ * next to the current one), so they are found in the conversion caches when they are requested.
+ * Each preview is converted with the session that will compute it when requested, so it is found in that session caches.
+ * The conversions are serialized by the session, so a prefetched preview can delay a requested one by one conversion
+ * at most: to avoid this while the user is changing the parameters, the prefetch starts only after a delay,
+ * and each call to prefetch or cancel discards the previously requested previews.
+ */
+class PreviewPrefetcher
+{
+    public static final long DEFAULT_START_DELAY_MILLIS = 300;
+
+    static final class Preview
+    {
+        private final ConversionSession session;
+        private final File file;
+        private final ImageConverter.ConversionType conversionType;
+        private final ConversionParameters params;
+        private final int desiredWidth;
+        private final int desiredHeight;
+
+        Preview (ConversionSession session, File file, ImageConverter.ConversionType conversionType, ConversionParameters params, int desiredWidth, int desiredHeight)
+        {
+            this.session = session;
+            this.file = file;
+            this.conversionType = conversionType;
+            this.params = params;
+            this.desiredWidth = desiredWidth;
+            this.desiredHeight = desiredHeight;
+        }
+    }
+
+    private final ImageConverter imageConverter;
+    private final long startDelayMillis;
+    private final ScheduledExecutorService executor;
+
+    // Incremented by each request: the previews of the older requests are not converted anymore
+    private final AtomicLong generation = new AtomicLong(0);
+
+    PreviewPrefetcher (ImageConverter imageConverter, long startDelayMillis)
+    {
+        this.imageConverter = imageConverter;
+        this.startDelayMillis = startDelayMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "IBBIC-preview-prefetcher");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+    PreviewPrefetcher (ImageConverter imageConverter)
+    {
+        this(imageConverter, DEFAULT_START_DELAY_MILLIS);
+    }
+
+    /**
+     * Discards the previously requested previews and converts the given ones in background, in the given order.
+     */
+    final void prefetch (List<Preview> previews)
+    {
+        long requestGeneration = generation.incrementAndGet();
+        List<Preview> requestPreviews = new ArrayList<>(previews);
+        executor.schedule(() -> convertPreviews(requestGeneration, requestPreviews), startDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Discards the previously requested previews. A preview whose conversion is already running is completed.
+     */
+    final void cancel ()
+    {
+        generation.incrementAndGet();
+    }
+
+    private void convertPreviews (long requestGeneration, List<Preview> previews)
+    {
+        for (Preview preview : previews)
+        {
+            if (generation.get() != requestGeneration)
+            {
+                return; // a newer request has been made
+            }
+            if (preview.file != null && preview.file.exists())
+            {
+                try
+                {
+                    // the converted image is cached by the converter, so the returned pixels can be discarded
+                    imageConverter.convertImageToPixels(preview.session, preview.file.getAbsolutePath(), preview.conversionType, preview.params, preview.desiredWidth, preview.desiredHeight);
+                }
+                catch (RuntimeException e)
+                {
+                    // the preview will be converted again when requested, and the error will be handled there
+                }
+            }
+        }
+    }
+}
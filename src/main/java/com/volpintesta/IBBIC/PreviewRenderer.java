@@ -0,0 +1,124 @@
+package com.volpintesta.IBBIC;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Renders the preview images of a pane on a background thread, so the JavaFX thread is never blocked by conversions.
+ * Only the latest request is rendered: a request that is still waiting when a new one is made is discarded, and the
+ * result of a request that is superseded while it is being rendered is not delivered (the running conversion cannot be
+ * interrupted, but it is at most one). So, while a slider is dragged, the pane shows the most recent possible preview
+ * instead of rendering all the intermediate ones.
+ */
+class PreviewRenderer
+{
+    private static final class Request
+    {
+        private final long generation;
+        private final Supplier<Image> renderer;
+        private final Consumer<Image> listener;
+
+        Request (long generation, Supplier<Image> renderer, Consumer<Image> listener)
+        {
+            this.generation = generation;
+            this.renderer = renderer;
+            this.listener = listener;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final AtomicLong generation = new AtomicLong(0);
+
+    // Guarded by this
+    private Request pendingRequest = null;
+    private boolean rendering = false;
+
+    PreviewRenderer (String threadName)
+    {
+        executor = Executors.newSingleThreadExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Renders an image in background, superseding any previous request.
+     * @param renderer Computes the image. It is called on the background thread; it can return null
+     *                 (if it throws an unchecked exception, null is delivered).
+     * @param listener Receives the rendered image. It is called on the JavaFX thread, only if no other request
+     *                 has been made in the meanwhile.
+     */
+    final void render (Supplier<Image> renderer, Consumer<Image> listener)
+    {
+        Request request = new Request(generation.incrementAndGet(), renderer, listener);
+        synchronized (this)
+        {
+            pendingRequest = request;
+            if (!rendering)
+            {
+                rendering = true;
+                executor.execute(this::renderPendingRequests);
+            }
+        }
+    }
+
+    /**
+     * Discards the pending request and the result of the request being rendered, if any.
+     */
+    final void cancel ()
+    {
+        generation.incrementAndGet();
+        synchronized (this)
+        {
+            pendingRequest = null;
+        }
+    }
+
+    private void renderPendingRequests ()
+    {
+        while (true)
+        {
+            Request request;
+            synchronized (this)
+            {
+                request = pendingRequest;
+                pendingRequest = null;
+                if (request == null)
+                {
+                    rendering = false;
+                    return;
+                }
+            }
+
+            if (generation.get() == request.generation)
+            {
+                Image renderedImage;
+                try
+                {
+                    renderedImage = request.renderer.get();
+                }
+                catch (RuntimeException e)
+                {
+                    renderedImage = null; // the listener handles it as a broken image
+                }
+                Image image = renderedImage;
+                Platform.runLater(() ->
+                {
+                    // check again, as a new request could have been made while this runnable was waiting
+                    if (generation.get() == request.generation)
+                    {
+                        request.listener.accept(image);
+                    }
+                });
+            }
+        }
+    }
+}
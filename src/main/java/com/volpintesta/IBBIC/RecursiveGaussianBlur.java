@@ -0,0 +1,272 @@
+package com.volpintesta.IBBIC;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Recursive (IIR) approximation of the gaussian blur, in the form described by Young and van Vliet
+ * ("Recursive implementation of the Gaussian filter", Signal Processing, 1995).
+ * Each image line is filtered by a third order causal filter followed by the same filter in anti-causal direction,
+ * so the cost is a fixed number of operations per pixel, whatever the sigma is.
+ * The borders are handled as replicated (as Core.BORDER_REPLICATE): the initial state of the causal pass is the
+ * steady state of the first pixel, and the initial state of the anti-causal pass is computed from the response
+ * of the filter to the replicated last pixel (see computeBoundaryMatrix).
+ */
+final class RecursiveGaussianBlur
+{
+    // Sigma values lower than this are not supported by the coefficients formulas
+    static final double MIN_SIGMA = 0.5;
+
+    // Poles of the third order filter, in logarithmic form: each pole is exp(-(POLE_LOG + i * POLE_ARGUMENT) / q),
+    // where q is the scale that gives the requested sigma. The values have been fitted to minimize the maximum
+    // difference between the impulse response and the gaussian: it is below 1% of the gaussian peak for sigmas >= 3.
+    private static final double REAL_POLE_LOG = 1.120000;
+    private static final double COMPLEX_POLE_LOG = 1.0;
+    private static final double COMPLEX_POLE_ARGUMENT = 1.065092;
+
+    // Pixels of the strips of rows copied in the Java heap at the same time (1 MB)
+    private static final int STRIP_PIXELS = 1 << 18;
+
+    private final double b;
+    private final double a1;
+    private final double a2;
+    private final double a3;
+
+    // Maps the last three transients of the causal pass (w[n] - x[last] for n = last, last-1, last-2)
+    // into the anti-causal pass initial state (y[n] - x[last] for n = last+1, last+2, last+3)
+    private final double[][] boundaryMatrix;
+
+    private RecursiveGaussianBlur (double sigma)
+    {
+        // The coefficients are computed from the poles, since the polynomial approximation of the original paper
+        // loses precision with large sigmas (the filter would be narrower than expected).
+        double scale = computePolesScale(sigma);
+        double realPole = Math.exp(-REAL_POLE_LOG / scale);
+        double complexPoleModulus = Math.exp(-COMPLEX_POLE_LOG / scale);
+        double complexPoleArgument = -COMPLEX_POLE_ARGUMENT / scale;
+        double complexPoleRe = complexPoleModulus * Math.cos(complexPoleArgument);
+        double complexPoleSquaredModulus = complexPoleModulus * complexPoleModulus;
+
+        a1 = realPole + 2 * complexPoleRe;
+        a2 = -(complexPoleSquaredModulus + 2 * realPole * complexPoleRe);
+        a3 = realPole * complexPoleSquaredModulus;
+        b = 1 - (a1 + a2 + a3);
+
+        boundaryMatrix = computeBoundaryMatrix(sigma);
+    }
+
+    /**
+     * @return The scale q of the poles that gives to the filter the requested variance.
+     */
+    private static double computePolesScale (double sigma)
+    {
+        double targetVariance = sigma * sigma;
+        double minLogScale = Math.log(1e-3);
+        double maxLogScale = Math.log(1e6);
+        for (int i = 0; i < 100; ++i)
+        {
+            double logScale = (minLogScale + maxLogScale) / 2;
+            if (computeVariance(Math.exp(logScale)) < targetVariance)
+                minLogScale = logScale;
+            else
+                maxLogScale = logScale;
+        }
+        return Math.exp((minLogScale + maxLogScale) / 2);
+    }
+
+    // Variance of the causal and anti-causal filters: each first order section with pole p adds 2p/(1-p)^2
+    private static double computeVariance (double scale)
+    {
+        double realPole = Math.exp(-REAL_POLE_LOG / scale);
+        double variance = 2 * realPole / ((1 - realPole) * (1 - realPole));
+
+        // p/(1-p)^2 for the complex pole, whose conjugate adds the same real part
+        double modulus = Math.exp(-COMPLEX_POLE_LOG / scale);
+        double argument = -COMPLEX_POLE_ARGUMENT / scale;
+        double re = modulus * Math.cos(argument);
+        double im = modulus * Math.sin(argument);
+        double denRe = (1 - re) * (1 - re) - im * im;
+        double denIm = -2 * (1 - re) * im;
+        double den = denRe * denRe + denIm * denIm;
+        double ratioRe = (re * denRe + im * denIm) / den;
+        variance += 2 * 2 * ratioRe;
+        return variance;
+    }
+
+    /**
+     * Blurs a single channel float image.
+     * The image is filtered in place in strips of rows, copied to and from the native memory through a small buffer
+     * (see STRIP_PIXELS), so the whole image is never copied in the Java heap.
+     * @param src (Mat of type CvType.CV_32FC1)
+     * @param dst The blurred image (Mat of type CvType.CV_32FC1). It can be the same Mat as src.
+     * @param sigma The gaussian sigma, in pixels. It must be greater or equal than MIN_SIGMA.
+     */
+    static void apply (Mat src, Mat dst, double sigma)
+    {
+        assert (src.type() == CvType.CV_32FC1);
+        if (sigma < MIN_SIGMA) throw new IllegalArgumentException("sigma must be greater or equal than " + MIN_SIGMA);
+
+        int nRows = src.rows();
+        int nCols = src.cols();
+        dst.create(nRows, nCols, CvType.CV_32FC1);
+        int stripRows = Math.max(1, Math.min(nRows, STRIP_PIXELS / Math.max(1, nCols)));
+        float[] strip = new float[stripRows * nCols];
+
+        RecursiveGaussianBlur filter = new RecursiveGaussianBlur(sigma);
+        filter.filterRows(src, dst, strip, stripRows);
+        filter.filterColumns(dst, strip, stripRows);
+    }
+
+    private double[][] computeBoundaryMatrix (double sigma)
+    {
+        // The transient of the causal pass after the last pixel follows the homogeneous recursion
+        // and decays in a few sigmas; it is simulated long enough to be negligible, then filtered backward.
+        int length = (int)Math.ceil(16 * sigma) + 64;
+        double[] causalTail = new double[length + 3];
+        double[] response = new double[length + 3];
+        double[][] matrix = new double[3][3];
+        for (int j = 0; j < 3; ++j)
+        {
+            // causalTail[0..2] = causal transients at last, last-1, last-2 (stored in reverse order)
+            causalTail[0] = causalTail[1] = causalTail[2] = 0;
+            causalTail[2 - j] = 1;
+            for (int n = 3; n < length + 3; ++n)
+            {
+                causalTail[n] = a1 * causalTail[n - 1] + a2 * causalTail[n - 2] + a3 * causalTail[n - 3];
+            }
+            double z1 = 0, z2 = 0, z3 = 0;
+            for (int n = length + 2; n >= 3; --n)
+            {
+                double z = b * causalTail[n] + a1 * z1 + a2 * z2 + a3 * z3;
+                z3 = z2;
+                z2 = z1;
+                z1 = z;
+                response[n] = z;
+            }
+            for (int k = 0; k < 3; ++k)
+            {
+                matrix[k][j] = response[3 + k];
+            }
+        }
+        return matrix;
+    }
+
+    // Each strip of rows is read from src, filtered and written in dst
+    private void filterRows (Mat src, Mat dst, float[] strip, int stripRows)
+    {
+        int nRows = src.rows();
+        int nCols = src.cols();
+        double[] line = new double[nCols];
+        for (int stripRow = 0; stripRow < nRows; stripRow += stripRows)
+        {
+            int stripRowsCount = Math.min(stripRows, nRows - stripRow);
+            float[] pixels = (stripRowsCount == stripRows) ? strip : new float[stripRowsCount * nCols];
+            src.get(stripRow, 0, pixels);
+            for (int row = 0; row < stripRowsCount; ++row)
+            {
+                filterRow(pixels, row * nCols, nCols, line);
+            }
+            dst.put(stripRow, 0, pixels);
+        }
+    }
+
+    private void filterRow (float[] pixels, int offset, int nCols, double[] line)
+    {
+        // causal pass
+        double first = pixels[offset];
+        double w1 = first, w2 = first, w3 = first;
+        for (int col = 0; col < nCols; ++col)
+        {
+            double w = b * pixels[offset + col] + a1 * w1 + a2 * w2 + a3 * w3;
+            w3 = w2;
+            w2 = w1;
+            w1 = w;
+            line[col] = w;
+        }
+
+        // anti-causal pass
+        double last = pixels[offset + nCols - 1];
+        double e0 = w1 - last, e1 = w2 - last, e2 = w3 - last;
+        double y1 = last + boundaryMatrix[0][0] * e0 + boundaryMatrix[0][1] * e1 + boundaryMatrix[0][2] * e2;
+        double y2 = last + boundaryMatrix[1][0] * e0 + boundaryMatrix[1][1] * e1 + boundaryMatrix[1][2] * e2;
+        double y3 = last + boundaryMatrix[2][0] * e0 + boundaryMatrix[2][1] * e1 + boundaryMatrix[2][2] * e2;
+        for (int col = nCols - 1; col >= 0; --col)
+        {
+            double y = b * line[col] + a1 * y1 + a2 * y2 + a3 * y3;
+            y3 = y2;
+            y2 = y1;
+            y1 = y;
+            pixels[offset + col] = (float)y;
+        }
+    }
+
+    // The columns are filtered sweeping the strips of rows (downward, then upward), so the memory is always accessed
+    // sequentially, and only the filter state of each column is kept between the strips
+    private void filterColumns (Mat image, float[] strip, int stripRows)
+    {
+        int nRows = image.rows();
+        int nCols = image.cols();
+        double[] w1 = new double[nCols];
+        double[] w2 = new double[nCols];
+        double[] w3 = new double[nCols];
+        float[] lastRow = new float[nCols];
+        image.get(nRows - 1, 0, lastRow);
+
+        // causal pass (the causal output replaces the pixels)
+        float[] firstRow = new float[nCols];
+        image.get(0, 0, firstRow);
+        for (int col = 0; col < nCols; ++col)
+        {
+            w1[col] = w2[col] = w3[col] = firstRow[col];
+        }
+        for (int stripRow = 0; stripRow < nRows; stripRow += stripRows)
+        {
+            int stripRowsCount = Math.min(stripRows, nRows - stripRow);
+            float[] pixels = (stripRowsCount == stripRows) ? strip : new float[stripRowsCount * nCols];
+            image.get(stripRow, 0, pixels);
+            for (int row = 0; row < stripRowsCount; ++row)
+            {
+                int offset = row * nCols;
+                for (int col = 0; col < nCols; ++col)
+                {
+                    double w = b * pixels[offset + col] + a1 * w1[col] + a2 * w2[col] + a3 * w3[col];
+                    w3[col] = w2[col];
+                    w2[col] = w1[col];
+                    w1[col] = w;
+                    pixels[offset + col] = (float)w;
+                }
+            }
+            image.put(stripRow, 0, pixels);
+        }
+
+        // anti-causal pass (w1, w2, w3 are reused for the anti-causal state)
+        for (int col = 0; col < nCols; ++col)
+        {
+            double last = lastRow[col];
+            double e0 = w1[col] - last, e1 = w2[col] - last, e2 = w3[col] - last;
+            w1[col] = last + boundaryMatrix[0][0] * e0 + boundaryMatrix[0][1] * e1 + boundaryMatrix[0][2] * e2;
+            w2[col] = last + boundaryMatrix[1][0] * e0 + boundaryMatrix[1][1] * e1 + boundaryMatrix[1][2] * e2;
+            w3[col] = last + boundaryMatrix[2][0] * e0 + boundaryMatrix[2][1] * e1 + boundaryMatrix[2][2] * e2;
+        }
+        for (int stripEnd = nRows; stripEnd > 0; stripEnd -= stripRows)
+        {
+            int stripRow = Math.max(0, stripEnd - stripRows);
+            int stripRowsCount = stripEnd - stripRow;
+            float[] pixels = (stripRowsCount == stripRows) ? strip : new float[stripRowsCount * nCols];
+            image.get(stripRow, 0, pixels);
+            for (int row = stripRowsCount - 1; row >= 0; --row)
+            {
+                int offset = row * nCols;
+                for (int col = 0; col < nCols; ++col)
+                {
+                    double y = b * pixels[offset + col] + a1 * w1[col] + a2 * w2[col] + a3 * w3[col];
+                    w3[col] = w2[col];
+                    w2[col] = w1[col];
+                    w1[col] = y;
+                    pixels[offset + col] = (float)y;
+                }
+            }
+            image.put(stripRow, 0, pixels);
+        }
+    }
+}
@@ -2,6 +2,7 @@ module com.volpintesta.IBBIC {
     requires javafx.controls;
     requires javafx.fxml;
     requires opencv;
+    requires jdk.jfr;
 
     opens com.volpintesta.IBBIC to javafx.fxml;
     exports com.volpintesta.IBBIC;
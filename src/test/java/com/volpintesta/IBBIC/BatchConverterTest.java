@@ -0,0 +1,251 @@
+package com.volpintesta.IBBIC;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchConverterTest
+{
+    private static final ConversionParameters PARAMS = new ConversionParameters.Builder()
+            .setSigma(0.2)
+            .setNoiseReductionActivated(true)
+            .build();
+
+    @TempDir
+    File directory;
+
+    @Test
+    void parallelConversionSavesTheSameImagesOfSequentialConversion () throws IOException
+    {
+        File srcDirectory = createDirectory("src");
+        String[] fileNames = { "a.png", "b.jpg", "c.bmp", "d.tif", "e.png", "f.jpg", "g.png", "h.bmp" };
+        for (int i = 0; i < fileNames.length; ++i)
+        {
+            TestImages.writeImage(srcDirectory, fileNames[i], 160 + 8 * i, 120 - 4 * i, i);
+        }
+
+        File sequentialDirectory = convertDirectory(srcDirectory, "sequential", 1);
+        File parallelDirectory = convertDirectory(srcDirectory, "parallel", 4);
+
+        for (String fileName : fileNames)
+        {
+            byte[] sequentialBytes = Files.readAllBytes(new File(sequentialDirectory, fileName).toPath());
+            byte[] parallelBytes = Files.readAllBytes(new File(parallelDirectory, fileName).toPath());
+            assertArrayEquals(sequentialBytes, parallelBytes, fileName);
+        }
+    }
+
+    @Test
+    void manifestRecordsTheBatchConversionForItsResume () throws IOException
+    {
+        File srcDirectory = createDirectory("src");
+        TestImages.writeImage(srcDirectory, "a.png", 96, 64, 1);
+        TestImages.writeImage(srcDirectory, "b.png", 80, 72, 2);
+        Files.writeString(srcDirectory.toPath().resolve("c.png"), "not an image");
+        File dstDirectory = createDirectory("dst");
+        Map<File, File> filePairs = getFilePairs(srcDirectory, dstDirectory);
+
+        try (BatchManifest manifest = BatchManifest.open(dstDirectory))
+        {
+            List<File> errorFiles = new BatchConverter(new ImageConverter(), 2).convertAndSaveFiles(filePairs, Collections.emptyList(), ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, PARAMS, null, manifest);
+            assertEquals(List.of(new File(srcDirectory, "c.png")), errorFiles);
+        }
+
+        try (BatchManifest manifest = BatchManifest.open(dstDirectory))
+        {
+            for (Map.Entry<File, File> filePair : filePairs.entrySet())
+            {
+                File validOutput = manifest.getValidOutput(filePair.getKey(), ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, PARAMS);
+                if (filePair.getKey().getName().equals("c.png"))
+                {
+                    assertNull(validOutput);
+                }
+                else
+                {
+                    assertEquals(filePair.getValue().getAbsoluteFile(), validOutput);
+                }
+            }
+        }
+    }
+
+    @Test
+    void identicalFilesAreSavedAsCopiesOfTheFirstConversion () throws IOException
+    {
+        for (BatchConverter.DuplicatesHandling duplicatesHandling : new BatchConverter.DuplicatesHandling[] { BatchConverter.DuplicatesHandling.COPY, BatchConverter.DuplicatesHandling.LINK })
+        {
+            File srcDirectory = createDirectory("src-" + duplicatesHandling);
+            File firstFile = TestImages.writeImage(srcDirectory, "a.bmp", 96, 64, 1);
+            Files.copy(firstFile.toPath(), srcDirectory.toPath().resolve("b.bmp"));
+            Files.copy(firstFile.toPath(), srcDirectory.toPath().resolve("c.bmp"));
+            TestImages.writeImage(srcDirectory, "d.bmp", 96, 64, 2); // same size, different content
+            File dstDirectory = createDirectory("dst-" + duplicatesHandling);
+
+            ImageConverter imageConverter = new ImageConverter();
+            BatchConverter batchConverter = new BatchConverter(imageConverter, 4);
+            batchConverter.setDuplicatesHandling(duplicatesHandling);
+            List<File> errorFiles = batchConverter.convertAndSaveFiles(getFilePairs(srcDirectory, dstDirectory), Collections.emptyList(), ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, PARAMS, null);
+
+            assertEquals(Collections.emptyList(), errorFiles);
+            assertEquals(2, imageConverter.getMetrics().getDuplicateFilesSaved(), duplicatesHandling.toString());
+            byte[] firstBytes = Files.readAllBytes(new File(dstDirectory, "a.bmp").toPath());
+            assertArrayEquals(firstBytes, Files.readAllBytes(new File(dstDirectory, "b.bmp").toPath()));
+            assertArrayEquals(firstBytes, Files.readAllBytes(new File(dstDirectory, "c.bmp").toPath()));
+            assertArrayEquals(convertFile(new File(srcDirectory, "d.bmp")), Files.readAllBytes(new File(dstDirectory, "d.bmp").toPath()));
+        }
+    }
+
+    @Test
+    void identicalFilesAreConvertedIfDuplicatesAreConverted () throws IOException
+    {
+        File srcDirectory = createDirectory("src");
+        File firstFile = TestImages.writeImage(srcDirectory, "a.png", 96, 64, 1);
+        Files.copy(firstFile.toPath(), srcDirectory.toPath().resolve("b.png"));
+        File dstDirectory = createDirectory("dst");
+
+        ImageConverter imageConverter = new ImageConverter();
+        BatchConverter batchConverter = new BatchConverter(imageConverter, 2);
+        batchConverter.setDuplicatesHandling(BatchConverter.DuplicatesHandling.CONVERT);
+        batchConverter.convertAndSaveFiles(getFilePairs(srcDirectory, dstDirectory), Collections.emptyList(), ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, PARAMS, null);
+
+        assertEquals(0, imageConverter.getMetrics().getDuplicateFilesSaved());
+        assertArrayEquals(Files.readAllBytes(new File(dstDirectory, "a.png").toPath()), Files.readAllBytes(new File(dstDirectory, "b.png").toPath()));
+    }
+
+    @Test
+    void differentFilesWithTheSameChecksumAreConvertedSeparately () throws IOException
+    {
+        // BMP files with a trailer after the pixels, which is ignored by the decoder: the trailer of the second file
+        // makes its checksum equal to the one of the first file
+        File srcDirectory = createDirectory("src");
+        byte[] firstBytes = appendBytes(Files.readAllBytes(TestImages.writeImage(directory, "a.bmp", 96, 64, 1).toPath()), new byte[4]);
+        byte[] secondBytes = Files.readAllBytes(TestImages.writeImage(directory, "b.bmp", 96, 64, 2).toPath());
+        secondBytes = appendBytes(secondBytes, forgeChecksumTrailer(secondBytes, computeChecksum(firstBytes)));
+        File firstFile = Files.write(srcDirectory.toPath().resolve("a.bmp"), firstBytes).toFile();
+        File secondFile = Files.write(srcDirectory.toPath().resolve("b.bmp"), secondBytes).toFile();
+        assertEquals(firstFile.length(), secondFile.length());
+        assertEquals(computeChecksum(firstBytes), computeChecksum(secondBytes));
+        assertFalse(java.util.Arrays.equals(firstBytes, secondBytes));
+        File dstDirectory = createDirectory("dst");
+
+        ImageConverter imageConverter = new ImageConverter();
+        BatchConverter batchConverter = new BatchConverter(imageConverter, 2);
+        batchConverter.setDuplicatesHandling(BatchConverter.DuplicatesHandling.COPY);
+        List<File> errorFiles = batchConverter.convertAndSaveFiles(getFilePairs(srcDirectory, dstDirectory), Collections.emptyList(), ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, PARAMS, null);
+
+        assertEquals(Collections.emptyList(), errorFiles);
+        assertEquals(0, imageConverter.getMetrics().getDuplicateFilesSaved());
+        assertArrayEquals(convertFile(firstFile), Files.readAllBytes(new File(dstDirectory, "a.bmp").toPath()));
+        assertArrayEquals(convertFile(secondFile), Files.readAllBytes(new File(dstDirectory, "b.bmp").toPath()));
+    }
+
+    // The output of the conversion of the file on its own
+    private byte[] convertFile (File srcFile) throws IOException
+    {
+        File dstFile = Files.createTempFile(directory.toPath(), "converted-", "-" + srcFile.getName()).toFile();
+        new FileManager(new ImageConverter()).convertAndReplaceFile(srcFile, dstFile, ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, PARAMS);
+        return Files.readAllBytes(dstFile.toPath());
+    }
+
+    private static byte[] appendBytes (byte[] bytes, byte[] otherBytes)
+    {
+        byte[] result = java.util.Arrays.copyOf(bytes, bytes.length + otherBytes.length);
+        System.arraycopy(otherBytes, 0, result, bytes.length, otherBytes.length);
+        return result;
+    }
+
+    private static long computeChecksum (byte[] bytes)
+    {
+        CRC32C checksum = new CRC32C();
+        checksum.update(bytes);
+        return checksum.getValue();
+    }
+
+    /**
+     * @return The 4 bytes that, appended to the content, give the target CRC32C checksum. The checksum of the content
+     * with the appended bytes is an affine function of their 32 bits, so they are found solving a linear system in GF(2).
+     */
+    private static byte[] forgeChecksumTrailer (byte[] content, long targetChecksum)
+    {
+        long zeroChecksum = computeChecksum(appendBytes(content, toBytes(0)));
+        // Index = the highest bit of the vector; the masks are the trailer bits whose sum gives the vectors
+        long[] pivotVectors = new long[32];
+        long[] pivotMasks = new long[32];
+        for (int bit = 0; bit < 32; ++bit)
+        {
+            long vector = computeChecksum(appendBytes(content, toBytes(1L << bit))) ^ zeroChecksum;
+            long mask = 1L << bit;
+            for (int pivot = 31; pivot >= 0 && vector != 0; --pivot)
+            {
+                if (((vector >>> pivot) & 1) != 0)
+                {
+                    if (pivotVectors[pivot] == 0)
+                    {
+                        pivotVectors[pivot] = vector;
+                        pivotMasks[pivot] = mask;
+                        vector = 0;
+                    }
+                    else
+                    {
+                        vector ^= pivotVectors[pivot];
+                        mask ^= pivotMasks[pivot];
+                    }
+                }
+            }
+        }
+        long target = targetChecksum ^ zeroChecksum;
+        long trailer = 0;
+        for (int pivot = 31; pivot >= 0; --pivot)
+        {
+            if (((target >>> pivot) & 1) != 0)
+            {
+                assertNotEquals(0, pivotVectors[pivot]);
+                target ^= pivotVectors[pivot];
+                trailer ^= pivotMasks[pivot];
+            }
+        }
+        return toBytes(trailer);
+    }
+
+    private static byte[] toBytes (long value)
+    {
+        return new byte[] { (byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24) };
+    }
+
+    private File convertDirectory (File srcDirectory, String dstDirectoryName, int workersCount) throws IOException
+    {
+        File dstDirectory = createDirectory(dstDirectoryName);
+        BatchConverter batchConverter = new BatchConverter(new ImageConverter(), workersCount);
+        List<File> errorFiles = batchConverter.convertAndSaveFiles(getFilePairs(srcDirectory, dstDirectory), Collections.emptyList(), ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION, PARAMS, null);
+        assertEquals(Collections.emptyList(), errorFiles);
+        return dstDirectory;
+    }
+
+    // Key = each file of the source directory, sorted by name; Value = the file with the same name in the destination directory
+    private static Map<File, File> getFilePairs (File srcDirectory, File dstDirectory)
+    {
+        File[] srcFiles = srcDirectory.listFiles();
+        assertNotNull(srcFiles);
+        java.util.Arrays.sort(srcFiles);
+        LinkedHashMap<File, File> filePairs = new LinkedHashMap<>();
+        for (File srcFile : srcFiles)
+        {
+            filePairs.put(srcFile, new File(dstDirectory, srcFile.getName()));
+        }
+        return filePairs;
+    }
+
+    private File createDirectory (String name) throws IOException
+    {
+        return Files.createDirectory(directory.toPath().resolve(name)).toFile();
+    }
+}
@@ -0,0 +1,144 @@
+package com.volpintesta.IBBIC;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchManifestTest
+{
+    private static final ImageConverter.ConversionType CONVERSION_TYPE = ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION;
+    private static final ConversionParameters PARAMS = new ConversionParameters.Builder().setSigma(0.2).build();
+    private static final long LAST_MODIFIED = 1600000000000L;
+
+    @TempDir
+    File directory;
+
+    private File srcFile;
+    private File dstFile;
+
+    @BeforeEach
+    void createFiles () throws IOException
+    {
+        srcFile = writeFile("src.png", "source");
+        dstFile = writeFile("dst.png", "output");
+    }
+
+    @Test
+    void outputIsValidAfterTheConversionIsRecorded () throws IOException
+    {
+        try (BatchManifest manifest = BatchManifest.open(directory))
+        {
+            assertNull(manifest.getValidOutput(srcFile, CONVERSION_TYPE, PARAMS));
+            manifest.recordConverted(srcFile, dstFile, CONVERSION_TYPE, PARAMS, 10);
+            assertEquals(dstFile.getAbsoluteFile(), manifest.getValidOutput(srcFile, CONVERSION_TYPE, PARAMS));
+            assertEquals(dstFile.getAbsoluteFile(), manifest.getReplaceableOutput(srcFile, CONVERSION_TYPE, PARAMS));
+        }
+    }
+
+    @Test
+    void outputIsValidAfterTheManifestIsReopened () throws IOException
+    {
+        try (BatchManifest manifest = BatchManifest.open(directory))
+        {
+            manifest.recordConverted(srcFile, dstFile, CONVERSION_TYPE, PARAMS, 10);
+        }
+        try (BatchManifest manifest = BatchManifest.open(directory))
+        {
+            assertEquals(dstFile.getAbsoluteFile(), manifest.getValidOutput(srcFile, CONVERSION_TYPE, PARAMS));
+        }
+    }
+
+    @Test
+    void failedConversionHasNoOutput () throws IOException
+    {
+        try (BatchManifest manifest = BatchManifest.open(directory))
+        {
+            manifest.recordConverted(srcFile, dstFile, CONVERSION_TYPE, PARAMS, 10);
+            manifest.recordFailed(srcFile, dstFile, CONVERSION_TYPE, PARAMS, 10);
+            assertNull(manifest.getValidOutput(srcFile, CONVERSION_TYPE, PARAMS));
+            assertNull(manifest.getReplaceableOutput(srcFile, CONVERSION_TYPE, PARAMS));
+        }
+    }
+
+    @Test
+    void outputOfAChangedSourceIsStale () throws IOException
+    {
+        try (BatchManifest manifest = BatchManifest.open(directory))
+        {
+            manifest.recordConverted(srcFile, dstFile, CONVERSION_TYPE, PARAMS, 10);
+            assertTrue(srcFile.setLastModified(LAST_MODIFIED + 1000));
+            assertNull(manifest.getValidOutput(srcFile, CONVERSION_TYPE, PARAMS));
+            assertEquals(dstFile.getAbsoluteFile(), manifest.getReplaceableOutput(srcFile, CONVERSION_TYPE, PARAMS));
+
+            Files.writeString(srcFile.toPath(), "changed source", StandardCharsets.UTF_8);
+            assertTrue(srcFile.setLastModified(LAST_MODIFIED));
+            assertNull(manifest.getValidOutput(srcFile, CONVERSION_TYPE, PARAMS));
+            assertEquals(dstFile.getAbsoluteFile(), manifest.getReplaceableOutput(srcFile, CONVERSION_TYPE, PARAMS));
+        }
+    }
+
+    @Test
+    void changedOrRemovedOutputIsNotValidNorReplaceable () throws IOException
+    {
+        try (BatchManifest manifest = BatchManifest.open(directory))
+        {
+            manifest.recordConverted(srcFile, dstFile, CONVERSION_TYPE, PARAMS, 10);
+            assertTrue(dstFile.setLastModified(LAST_MODIFIED + 1000));
+            assertNull(manifest.getValidOutput(srcFile, CONVERSION_TYPE, PARAMS));
+            assertNull(manifest.getReplaceableOutput(srcFile, CONVERSION_TYPE, PARAMS));
+
+            manifest.recordConverted(srcFile, dstFile, CONVERSION_TYPE, PARAMS, 10);
+            Files.delete(dstFile.toPath());
+            assertNull(manifest.getValidOutput(srcFile, CONVERSION_TYPE, PARAMS));
+            assertNull(manifest.getReplaceableOutput(srcFile, CONVERSION_TYPE, PARAMS));
+        }
+    }
+
+    @Test
+    void outputOfOtherParametersIsNotValid () throws IOException
+    {
+        try (BatchManifest manifest = BatchManifest.open(directory))
+        {
+            manifest.recordConverted(srcFile, dstFile, CONVERSION_TYPE, PARAMS, 10);
+            ConversionParameters otherParams = new ConversionParameters.Builder().setSigma(0.3).build();
+            assertNull(manifest.getValidOutput(srcFile, CONVERSION_TYPE, otherParams));
+            assertNull(manifest.getReplaceableOutput(srcFile, CONVERSION_TYPE, otherParams));
+            assertNull(manifest.getValidOutput(srcFile, ImageConverter.ConversionType.GREYSCALE, PARAMS));
+        }
+    }
+
+    @Test
+    void incompleteLastLineIsIgnored () throws IOException
+    {
+        File manifestFile;
+        try (BatchManifest manifest = BatchManifest.open(directory))
+        {
+            manifest.recordConverted(srcFile, dstFile, CONVERSION_TYPE, PARAMS, 10);
+            manifestFile = manifest.getFile();
+        }
+        // the line of a conversion of the same source, written by a terminated program
+        Files.writeString(manifestFile.toPath(), "FAILED\t" + srcFile.getAbsolutePath() + "\t6\t", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        try (BatchManifest manifest = BatchManifest.open(directory))
+        {
+            assertEquals(dstFile.getAbsoluteFile(), manifest.getValidOutput(srcFile, CONVERSION_TYPE, PARAMS));
+        }
+        assertFalse(Files.readString(manifestFile.toPath(), StandardCharsets.UTF_8).contains("FAILED"));
+        assertFalse(new File(directory, FileManager.PARTIAL_FILE_PREFIX + BatchManifest.FILE_NAME).exists());
+    }
+
+    private File writeFile (String fileName, String content) throws IOException
+    {
+        File file = new File(directory, fileName);
+        Files.writeString(file.toPath(), content, StandardCharsets.UTF_8);
+        assertTrue(file.setLastModified(LAST_MODIFIED));
+        return file;
+    }
+}
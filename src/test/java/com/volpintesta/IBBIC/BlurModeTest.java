@@ -0,0 +1,64 @@
+package com.volpintesta.IBBIC;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the error bounds of the approximated blur modes stated in the README: the result differs from the one of
+ * the EXACT blur mode by less than 0.1% (PYRAMID) and 0.5% (RECURSIVE) of the filter brightness, which is the max
+ * value of the exact blurred image. The V channels are grainy, so their borders are the worst case of the approximations.
+ */
+class BlurModeTest
+{
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 320;
+    private static final double[] SIGMA_MULTIPLIERS = { 0.05, 0.075, 0.2, 0.5 };
+
+    @Test
+    void pyramidBlurDiffersFromTheExactOneByLessThan01Percent ()
+    {
+        assertBlurErrorBelow(ImageConverter.BlurMode.PYRAMID, 0.001);
+    }
+
+    @Test
+    void recursiveBlurDiffersFromTheExactOneByLessThan05Percent ()
+    {
+        assertBlurErrorBelow(ImageConverter.BlurMode.RECURSIVE, 0.005);
+    }
+
+    private static void assertBlurErrorBelow (ImageConverter.BlurMode blurMode, double maxRelativeError)
+    {
+        ImageConverter imageConverter = new ImageConverter();
+        for (long seed = 0; seed < 3; ++seed)
+        {
+            Mat vChannel = createVChannel(imageConverter, seed);
+            for (double sigmaMultiplier : SIGMA_MULTIPLIERS)
+            {
+                Mat exact = imageConverter.ComputeBlurredVChannel(vChannel, sigmaMultiplier, ImageConverter.BlurMode.EXACT);
+                Mat approximated = imageConverter.ComputeBlurredVChannel(vChannel, sigmaMultiplier, blurMode);
+                double filterBrightness = Core.minMaxLoc(exact).maxVal;
+                double relativeError = Core.norm(exact, approximated, Core.NORM_INF) / filterBrightness;
+                assertTrue(relativeError < maxRelativeError, blurMode + " blur, seed " + seed + ", sigma multiplier " + sigmaMultiplier + ": relative error " + relativeError);
+                exact.release();
+                approximated.release();
+            }
+            vChannel.release();
+        }
+    }
+
+    // (Mat of type CvType.CV_32FC1, in the [0, 1] range)
+    private static Mat createVChannel (ImageConverter imageConverter, long seed)
+    {
+        Mat image = TestImages.createImage(WIDTH, HEIGHT, seed);
+        Mat vChannel8U = imageConverter.ComputeVChannel(image);
+        Mat vChannel = new Mat();
+        vChannel8U.convertTo(vChannel, CvType.CV_32FC1, 1.0 / 255);
+        image.release();
+        vChannel8U.release();
+        return vChannel;
+    }
+}
@@ -0,0 +1,69 @@
+package com.volpintesta.IBBIC;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileManagerTest
+{
+    private static final ImageConverter.ConversionType CONVERSION_TYPE = ImageConverter.ConversionType.CATHODO_LUMINESCENCE_CORRECTION;
+    private static final ConversionParameters PARAMS = new ConversionParameters.Builder().setSigma(0.2).build();
+
+    @TempDir
+    File directory;
+
+    @Test
+    void convertAndReplaceFileReplacesTheDestinationFile () throws IOException
+    {
+        File srcFile = TestImages.writeImage(directory, "src.png", 96, 64, 1);
+        File dstFile = new File(directory, "dst.png");
+        Files.writeString(dstFile.toPath(), "previous output", StandardCharsets.UTF_8);
+        File expectedFile = new File(directory, "expected.png");
+        FileManager fileManager = new FileManager(new ImageConverter());
+        fileManager.convertAndSaveFile(srcFile, expectedFile, CONVERSION_TYPE, PARAMS);
+
+        fileManager.convertAndReplaceFile(srcFile, dstFile, CONVERSION_TYPE, PARAMS);
+
+        assertArrayEquals(Files.readAllBytes(expectedFile.toPath()), Files.readAllBytes(dstFile.toPath()));
+        assertFalse(getPartialFile(dstFile).exists());
+    }
+
+    @Test
+    void convertAndReplaceFileReplacesAPartialFileOfATerminatedConversion () throws IOException
+    {
+        File srcFile = TestImages.writeImage(directory, "src.png", 96, 64, 1);
+        File dstFile = new File(directory, "dst.png");
+        Files.writeString(getPartialFile(dstFile).toPath(), "partial output", StandardCharsets.UTF_8);
+
+        new FileManager(new ImageConverter()).convertAndReplaceFile(srcFile, dstFile, CONVERSION_TYPE, PARAMS);
+
+        assertTrue(dstFile.length() > 0);
+        assertFalse(getPartialFile(dstFile).exists());
+    }
+
+    @Test
+    void failedConversionKeepsThePreviousDestinationFile () throws IOException
+    {
+        File srcFile = new File(directory, "src.png");
+        Files.writeString(srcFile.toPath(), "not an image", StandardCharsets.UTF_8);
+        File dstFile = new File(directory, "dst.png");
+        Files.writeString(dstFile.toPath(), "previous output", StandardCharsets.UTF_8);
+
+        FileManager fileManager = new FileManager(new ImageConverter());
+        assertThrows(IOException.class, () -> fileManager.convertAndReplaceFile(srcFile, dstFile, CONVERSION_TYPE, PARAMS));
+
+        assertEquals("previous output", Files.readString(dstFile.toPath(), StandardCharsets.UTF_8));
+        assertFalse(getPartialFile(dstFile).exists());
+    }
+
+    private static File getPartialFile (File dstFile)
+    {
+        return new File(dstFile.getParentFile(), FileManager.PARTIAL_FILE_PREFIX + dstFile.getName());
+    }
+}
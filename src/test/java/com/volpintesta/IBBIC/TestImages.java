@@ -0,0 +1,68 @@
+package com.volpintesta.IBBIC;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Small synthetic images for the tests, like the ones of the benchmarks: a grain texture with an inhomogeneous
+ * brightness, which is brighter in the center, and a color tint. The content depends only on the seed.
+ */
+final class TestImages
+{
+    static
+    {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private TestImages () { }
+
+    /**
+     * Writes the image in the directory, encoded as the file extension.
+     * @return The image file.
+     */
+    static File writeImage (File directory, String fileName, int width, int height, long seed) throws IOException
+    {
+        File file = new File(directory, fileName);
+        Mat image = createImage(width, height, seed);
+        boolean written = Imgcodecs.imwrite(file.getAbsolutePath(), image);
+        image.release();
+        if (!written)
+        {
+            throw new IOException("Cannot write the test image " + file);
+        }
+        return file;
+    }
+
+    // (Mat of type CvType.CV_8UC3, in BGR order)
+    static Mat createImage (int width, int height, long seed)
+    {
+        Random random = new Random(seed);
+        double[] tint = { 0.6 + 0.4 * random.nextDouble(), 0.6 + 0.4 * random.nextDouble(), 0.6 + 0.4 * random.nextDouble() };
+        byte[] pixels = new byte[width * height * 3];
+        double centerX = width * (0.3 + 0.4 * random.nextDouble());
+        double centerY = height * (0.3 + 0.4 * random.nextDouble());
+        double maxDistance2 = width * width + height * height;
+        int i = 0;
+        for (int y = 0; y < height; ++y)
+        {
+            for (int x = 0; x < width; ++x)
+            {
+                double distance2 = ((x - centerX) * (x - centerX) + (y - centerY) * (y - centerY)) / maxDistance2;
+                double brightness = (1.0 - 0.7 * distance2) * (0.35 + 0.65 * random.nextDouble());
+                for (int channel = 0; channel < 3; ++channel)
+                {
+                    pixels[i++] = (byte) Math.round(brightness * tint[channel] * 255);
+                }
+            }
+        }
+        Mat image = new Mat(height, width, CvType.CV_8UC3);
+        image.put(0, 0, pixels);
+        return image;
+    }
+}